@@ -0,0 +1,139 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.appservice;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of the strings.
+ * <br>
+ * Answers "definitely not added" or "might be added". The false positive probability grows when more than the expected number
+ * of the strings are added.
+ */
+public class BloomFilter {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final long MIX_1 = 0xff51afd7ed558ccdL;
+
+    private static final long MIX_2 = 0xc4ceb9fe1a85ec53L;
+
+    private static final int MIX_SHIFT = 33;
+
+    private static final int BYTE_MASK = 0xff;
+
+    private static final int WORD_SHIFT = 6;
+
+    private static final int WORD_MASK = 63;
+
+    private final AtomicLongArray words;
+
+    private final long bits;
+
+    private final int hashes;
+
+    /**
+     * Create the filter.
+     *
+     * @param expectedInsertions The expected number of the strings.
+     * @param falsePositive      The desired false positive probability, between 0 and 1.
+     */
+    public BloomFilter(long expectedInsertions, double falsePositive) {
+        if (expectedInsertions <= 0) {
+            throw new IllegalArgumentException("Expected insertions should be positive.");
+        }
+        if (falsePositive <= 0 || falsePositive >= 1) {
+            throw new IllegalArgumentException("False positive probability should be between 0 and 1.");
+        }
+        double ln2 = Math.log(2);
+        long size = (long) Math.ceil(-expectedInsertions * Math.log(falsePositive) / (ln2 * ln2));
+        int wordCount = (int) Math.min(Integer.MAX_VALUE - WORD_MASK, (size + WORD_MASK) >>> WORD_SHIFT);
+        this.words = new AtomicLongArray(wordCount);
+        this.bits = (long) wordCount << WORD_SHIFT;
+        this.hashes = Math.max(1, (int) Math.round((double) bits / expectedInsertions * ln2));
+    }
+
+    /**
+     * Add the string.
+     *
+     * @param value The string.
+     */
+    public void add(String value) {
+        long hash = hash(value);
+        long first = hash;
+        long second = mix(hash);
+        for (int i = 0; i < hashes; i++) {
+            long index = Math.floorMod(first + i * second, bits);
+            int word = (int) (index >>> WORD_SHIFT);
+            long mask = 1L << (index & WORD_MASK);
+            long current = words.get(word);
+            while ((current & mask) == 0 && !words.compareAndSet(word, current, current | mask)) {
+                current = words.get(word);
+            }
+        }
+    }
+
+    /**
+     * Check the string.
+     *
+     * @param value The string.
+     * @return {@code false} if the string definitely wasn't added, {@code true} if it might be added.
+     */
+    public boolean mightContain(String value) {
+        long hash = hash(value);
+        long first = hash;
+        long second = mix(hash);
+        for (int i = 0; i < hashes; i++) {
+            long index = Math.floorMod(first + i * second, bits);
+            if ((words.get((int) (index >>> WORD_SHIFT)) & (1L << (index & WORD_MASK))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove all strings.
+     */
+    public void clear() {
+        for (int i = 0; i < words.length(); i++) {
+            words.set(i, 0);
+        }
+    }
+
+    private static long hash(String value) {
+        long hash = FNV_OFFSET;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & BYTE_MASK;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long mix(long hash) {
+        long result = hash;
+        result ^= result >>> MIX_SHIFT;
+        result *= MIX_1;
+        result ^= result >>> MIX_SHIFT;
+        result *= MIX_2;
+        result ^= result >>> MIX_SHIFT;
+        return result | 1;
+    }
+}
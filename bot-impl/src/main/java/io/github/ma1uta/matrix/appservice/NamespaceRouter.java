@@ -0,0 +1,240 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.appservice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Router of the ids by the appservice namespaces.
+ * <br>
+ * The literal prefix of each namespace regex (for example {@code @irc_} of the {@code @irc_.*:example\.org}) is compiled
+ * into the char trie. The id is scanned once through the trie and only the namespaces which prefixes match the id are checked
+ * by the regex. Namespaces without regex metacharacters are matched by the trie alone, namespaces without the literal prefix
+ * are checked for each id. Namespaces can be added and removed at runtime, the trie is updated in place.
+ * <br>
+ * Like the homeserver, the regex is anchored at the start of the id only.
+ *
+ * @param <T> target of the namespace, for example the bot or the bridge.
+ */
+public class NamespaceRouter<T> {
+
+    private static final String META = ".[]{}()*+?^$|\\";
+
+    private static final String OPTIONAL = "?*{";
+
+    private final Map<Type, Node<T>> roots = new EnumMap<>(Type.class);
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Namespace type.
+     */
+    public enum Type {
+        /**
+         * User ids.
+         */
+        USERS,
+
+        /**
+         * Room aliases.
+         */
+        ALIASES,
+
+        /**
+         * Room ids.
+         */
+        ROOMS
+    }
+
+    public NamespaceRouter() {
+        for (Type type : Type.values()) {
+            roots.put(type, new Node<>());
+        }
+    }
+
+    /**
+     * Add the namespace.
+     *
+     * @param type   The namespace type.
+     * @param regex  The namespace regex.
+     * @param target The target.
+     */
+    public void add(Type type, String regex, T target) {
+        Objects.requireNonNull(regex, "Regex should be specified.");
+        Objects.requireNonNull(target, "Target should be specified.");
+        StringBuilder prefix = new StringBuilder();
+        boolean literal = literalPrefix(regex, prefix);
+        Namespace<T> namespace = new Namespace<>(sequence.incrementAndGet(), literal ? null : Pattern.compile(regex), target);
+
+        Node<T> node = roots.get(type);
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.children.computeIfAbsent(prefix.charAt(i), key -> new Node<>());
+        }
+        node.namespaces.add(namespace);
+    }
+
+    /**
+     * Remove all namespaces of the target.
+     *
+     * @param target The target.
+     */
+    public void remove(T target) {
+        roots.values().forEach(root -> removeTarget(root, target));
+    }
+
+    /**
+     * Find all targets which namespaces match the id.
+     *
+     * @param type The namespace type.
+     * @param id   The id.
+     * @return The targets in the order of adding.
+     */
+    public List<T> match(Type type, String id) {
+        List<Namespace<T>> matched = new ArrayList<>();
+        Node<T> node = roots.get(type);
+        int position = 0;
+        while (node != null) {
+            for (Namespace<T> namespace : node.namespaces) {
+                if (namespace.pattern == null || namespace.pattern.matcher(id).lookingAt()) {
+                    matched.add(namespace);
+                }
+            }
+            node = position < id.length() ? node.children.get(id.charAt(position++)) : null;
+        }
+        if (matched.isEmpty()) {
+            return Collections.emptyList();
+        }
+        matched.sort(Comparator.comparingLong(namespace -> namespace.order));
+        List<T> targets = new ArrayList<>(matched.size());
+        matched.forEach(namespace -> targets.add(namespace.target));
+        return targets;
+    }
+
+    /**
+     * Find the first target which namespace matches the id.
+     *
+     * @param type The namespace type.
+     * @param id   The id.
+     * @return The target or {@code null}.
+     */
+    public T first(Type type, String id) {
+        List<T> targets = match(type, id);
+        return targets.isEmpty() ? null : targets.get(0);
+    }
+
+    /**
+     * Check that any namespace matches the id.
+     *
+     * @param type The namespace type.
+     * @param id   The id.
+     * @return {@code true} if the id is in any namespace, else {@code false}.
+     */
+    public boolean matches(Type type, String id) {
+        return !match(type, id).isEmpty();
+    }
+
+    /**
+     * Extract the literal prefix of the regex.
+     *
+     * @param regex  The regex.
+     * @param prefix The literal prefix.
+     * @return {@code true} if the whole regex is the literal, else {@code false}.
+     */
+    protected static boolean literalPrefix(String regex, StringBuilder prefix) {
+        if (containsAlternation(regex)) {
+            return false;
+        }
+        int position = regex.startsWith("^") ? 1 : 0;
+        while (position < regex.length()) {
+            char ch = regex.charAt(position);
+            int next = position + 1;
+            char literal;
+            if (ch == '\\') {
+                if (next >= regex.length() || Character.isLetterOrDigit(regex.charAt(next))) {
+                    return false;
+                }
+                literal = regex.charAt(next);
+                next++;
+            } else if (META.indexOf(ch) >= 0) {
+                return false;
+            } else {
+                literal = ch;
+            }
+            if (next < regex.length() && OPTIONAL.indexOf(regex.charAt(next)) >= 0) {
+                return false;
+            }
+            prefix.append(literal);
+            position = next;
+        }
+        return true;
+    }
+
+    private static boolean containsAlternation(String regex) {
+        for (int i = 0; i < regex.length(); i++) {
+            char ch = regex.charAt(i);
+            if (ch == '\\') {
+                i++;
+            } else if (ch == '|') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static <T> void removeTarget(Node<T> node, T target) {
+        node.namespaces.removeIf(namespace -> namespace.target.equals(target));
+        node.children.values().forEach(child -> removeTarget(child, target));
+    }
+
+    /**
+     * Trie node.
+     */
+    private static final class Node<T> {
+
+        private final Map<Character, Node<T>> children = new ConcurrentHashMap<>();
+
+        private final List<Namespace<T>> namespaces = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * Compiled namespace.
+     */
+    private static final class Namespace<T> {
+
+        private final long order;
+
+        private final Pattern pattern;
+
+        private final T target;
+
+        Namespace(long order, Pattern pattern, T target) {
+            this.order = order;
+            this.pattern = pattern;
+            this.target = target;
+        }
+    }
+}
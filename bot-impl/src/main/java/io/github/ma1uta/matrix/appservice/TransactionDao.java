@@ -16,6 +16,12 @@
 
 package io.github.ma1uta.matrix.appservice;
 
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
 /**
  * DAO for transactions.
  *
@@ -37,4 +43,41 @@ public interface TransactionDao<T extends Transaction> {
      * @return {@code true} if exist else {@code false}.
      */
     boolean exist(String txnId);
+
+    /**
+     * Save new transactions by the one batch.
+     *
+     * @param transactions transactions.
+     */
+    default void saveAll(List<T> transactions) {
+        transactions.forEach(this::save);
+    }
+
+    /**
+     * Find the existing transactions.
+     *
+     * @param txnIds transaction ids.
+     * @return ids of the existing transactions.
+     */
+    default Set<String> existAll(Collection<String> txnIds) {
+        Set<String> existing = new HashSet<>();
+        for (String txnId : txnIds) {
+            if (exist(txnId)) {
+                existing.add(txnId);
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * Find ids of all processed transactions.
+     * <br>
+     * Used to rebuild the {@link TransactionDeduplicator} at startup. By default isn't supported and the deduplicator
+     * checks each new transaction with the {@link #exist(String)}.
+     *
+     * @return transaction ids or the empty optional if the dao cannot list them.
+     */
+    default Optional<List<String>> findAllIds() {
+        return Optional.empty();
+    }
 }
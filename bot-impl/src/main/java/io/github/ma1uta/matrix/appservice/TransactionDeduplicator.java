@@ -0,0 +1,181 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.appservice;
+
+import io.github.ma1uta.matrix.bot.PersistentService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * In-memory front of the {@link TransactionDao#exist(String)}.
+ * <br>
+ * Recently processed transaction ids are kept in the bounded LRU, all processed ids are added to the {@link BloomFilter}.
+ * The dao is queried only when the id isn't in the LRU and the filter answers "might be processed", so the new transactions
+ * (almost all of them) skip the database.
+ * <br>
+ * The filter is complete only after the {@link #load(PersistentService)}. Before that or if the dao doesn't support
+ * {@link TransactionDao#findAllIds()} all ids missing in the LRU are checked by the dao. The reload builds the new filter aside
+ * and swaps it with the ids processed during the reload, the live filter is never cleared.
+ */
+public class TransactionDeduplicator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransactionDeduplicator.class);
+
+    /**
+     * Default number of the recent ids.
+     */
+    public static final int DEFAULT_RECENT = 1024;
+
+    /**
+     * Default expected number of the processed transactions.
+     */
+    public static final long DEFAULT_EXPECTED = 1_000_000L;
+
+    /**
+     * Default false positive probability of the filter.
+     */
+    public static final double DEFAULT_FALSE_POSITIVE = 0.01;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final Set<String> recent;
+
+    private final long expected;
+
+    private final double falsePositive;
+
+    private final Object swapLock = new Object();
+
+    private final Object loadLock = new Object();
+
+    private volatile BloomFilter filter;
+
+    private Set<String> replay;
+
+    private volatile boolean complete;
+
+    /**
+     * Create the deduplicator with the default settings.
+     */
+    public TransactionDeduplicator() {
+        this(DEFAULT_RECENT, DEFAULT_EXPECTED, DEFAULT_FALSE_POSITIVE);
+    }
+
+    /**
+     * Create the deduplicator.
+     *
+     * @param recent        The number of the recent ids in the LRU.
+     * @param expected      The expected number of the processed transactions.
+     * @param falsePositive The false positive probability of the filter.
+     */
+    public TransactionDeduplicator(int recent, long expected, double falsePositive) {
+        this.recent = Collections.newSetFromMap(Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(recent, LOAD_FACTOR, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > recent;
+            }
+        }));
+        this.expected = expected;
+        this.falsePositive = falsePositive;
+        this.filter = new BloomFilter(expected, falsePositive);
+    }
+
+    /**
+     * Rebuild the filter from the processed transactions.
+     *
+     * @param service The service of the transaction dao.
+     * @param <T>     transaction.
+     * @param <D>     transaction dao.
+     */
+    public <T extends Transaction, D extends TransactionDao<T>> void load(PersistentService<D> service) {
+        synchronized (loadLock) {
+            synchronized (swapLock) {
+                replay = new HashSet<>();
+            }
+            try {
+                Optional<List<String>> ids = service.invoke(dao -> {
+                    return dao.findAllIds();
+                });
+                if (!ids.isPresent()) {
+                    LOGGER.warn("Transaction dao cannot list ids, each transaction will be checked by the dao.");
+                    return;
+                }
+                BloomFilter next = new BloomFilter(expected, falsePositive);
+                ids.get().forEach(next::add);
+                synchronized (swapLock) {
+                    replay.forEach(next::add);
+                    filter = next;
+                    complete = true;
+                }
+                LOGGER.debug("Loaded {} transaction ids", ids.get().size());
+            } finally {
+                synchronized (swapLock) {
+                    replay = null;
+                }
+            }
+        }
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Check that the transaction has been processed.
+     *
+     * @param txnId    The transaction id.
+     * @param fallback The dao check which is used when the transaction might be processed.
+     * @return {@code true} if the transaction has been processed, else {@code false}.
+     */
+    public boolean exist(String txnId, Predicate<String> fallback) {
+        if (recent.contains(txnId)) {
+            return true;
+        }
+        if (complete && !filter.mightContain(txnId)) {
+            return false;
+        }
+        boolean exist = fallback.test(txnId);
+        if (exist) {
+            recent.add(txnId);
+        }
+        return exist;
+    }
+
+    /**
+     * Add the processed transaction.
+     *
+     * @param txnId The transaction id.
+     */
+    public void processed(String txnId) {
+        synchronized (swapLock) {
+            filter.add(txnId);
+            if (replay != null) {
+                replay.add(txnId);
+            }
+        }
+        recent.add(txnId);
+    }
+}
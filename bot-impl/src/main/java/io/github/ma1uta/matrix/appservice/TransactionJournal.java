@@ -0,0 +1,471 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.appservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the received transactions.
+ * <br>
+ * Raw transaction bodies are appended to the memory-mapped segments and forced to the disk by groups: all appends which arrive
+ * while the previous group is being forced are forced at once. The future returned by the {@link #append(String, byte[])}
+ * is completed after the force, so the transaction can be acknowledged before it is processed.
+ * <br>
+ * Record format: {@code [int payload length][int crc32 of the payload][byte type][int id length][id utf-8][body]}. The zero
+ * length marks the end of the segment, the record with the wrong checksum (torn write) is dropped with the rest of the segment.
+ * <br>
+ * The processed transactions are marked by the {@link #done(String)}: the marker record is appended to the current segment and
+ * forced with the next group. Segments are deleted from the oldest one when all their transactions are done, so the marker is
+ * never deleted before the record it marks. Unfinished transactions are returned by the {@link #open()} at startup. A lost marker
+ * (crash before the force) only returns the processed transaction, which is checked by the dao during the recovery.
+ */
+public class TransactionJournal implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransactionJournal.class);
+
+    /**
+     * Default size of the segment.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Default time to collect the group of the appends before the force.
+     */
+    public static final long DEFAULT_SYNC_DELAY = TimeUnit.MILLISECONDS.toMicros(1);
+
+    private static final String SUFFIX = ".journal";
+
+    private static final String NAME_FORMAT = "%020d" + SUFFIX;
+
+    private static final int HEADER = 2 * Integer.BYTES;
+
+    private static final int MIN_PAYLOAD = 1 + Integer.BYTES;
+
+    private static final byte RECORD = 0;
+
+    private static final byte DONE = 1;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final long syncDelay;
+
+    private final Object lock = new Object();
+
+    private final Map<String, Segment> pending = new HashMap<>();
+
+    private final Map<String, Segment> failed = new HashMap<>();
+
+    private final Deque<Segment> segments = new ArrayDeque<>();
+
+    private final Set<Segment> dirty = new LinkedHashSet<>();
+
+    private final List<CompletableFuture<Void>> waiters = new ArrayList<>();
+
+    private Segment current;
+
+    private long sequence;
+
+    private Thread syncThread;
+
+    private boolean closed;
+
+    /**
+     * Create the journal with the default settings.
+     *
+     * @param directory The directory of the segments.
+     */
+    public TransactionJournal(Path directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_DELAY);
+    }
+
+    /**
+     * Create the journal.
+     *
+     * @param directory   The directory of the segments.
+     * @param segmentSize The size of the segment in bytes. The bigger transaction is written to the separate segment.
+     * @param syncDelay   The time in microseconds to collect the group of the appends before the force.
+     */
+    public TransactionJournal(Path directory, int segmentSize, long syncDelay) {
+        this.directory = Objects.requireNonNull(directory, "Directory should be specified.");
+        if (segmentSize <= HEADER) {
+            throw new IllegalArgumentException("Segment is too small.");
+        }
+        this.segmentSize = segmentSize;
+        this.syncDelay = syncDelay;
+    }
+
+    /**
+     * Open the journal: read the existing segments and start the sync thread.
+     *
+     * @return The unfinished transactions in the order of receiving.
+     * @throws IOException when cannot read the segments.
+     */
+    public List<Entry> open() throws IOException {
+        synchronized (lock) {
+            if (syncThread != null) {
+                throw new IllegalStateException("Journal is already opened.");
+            }
+            Files.createDirectories(directory);
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+                stream.forEach(files::add);
+            }
+            Collections.sort(files);
+
+            Map<String, Entry> entries = new LinkedHashMap<>();
+            for (Path file : files) {
+                long number = Long.parseLong(file.getFileName().toString().replace(SUFFIX, ""));
+                sequence = Math.max(sequence, number);
+                Segment segment = new Segment(file, map(file, Files.size(file)));
+                read(segment, entries);
+                segments.add(segment);
+            }
+            compact();
+            LOGGER.debug("Journal has {} unfinished transactions", entries.size());
+
+            syncThread = new Thread(this::syncLoop, "transaction-journal-sync");
+            syncThread.setDaemon(true);
+            syncThread.start();
+            return new ArrayList<>(entries.values());
+        }
+    }
+
+    /**
+     * Append the transaction.
+     *
+     * @param txnId The transaction id.
+     * @param body  The request body.
+     * @return The future which is completed when the transaction is forced to the disk.
+     */
+    public CompletableFuture<Void> append(String txnId, byte[] body) {
+        byte[] record = record(RECORD, txnId, body);
+        int checksum = checksum(record);
+
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        synchronized (lock) {
+            if (syncThread == null || closed) {
+                result.completeExceptionally(new IllegalStateException("Journal isn't opened."));
+                return result;
+            }
+            try {
+                Segment segment = write(record, checksum);
+                Segment previous = pending.put(txnId, segment);
+                if (previous == null) {
+                    previous = failed.remove(txnId);
+                }
+                segment.outstanding++;
+                if (previous != null) {
+                    previous.outstanding--;
+                    compact();
+                }
+                waiters.add(result);
+                lock.notifyAll();
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check that the transaction is appended and isn't done yet.
+     *
+     * @param txnId The transaction id.
+     * @return {@code true} if the transaction is unfinished, else {@code false}.
+     */
+    public boolean isPending(String txnId) {
+        synchronized (lock) {
+            return pending.containsKey(txnId);
+        }
+    }
+
+    /**
+     * Mark the transaction as processed.
+     * <br>
+     * The marker is forced with the next group of the appends or when the journal is closed.
+     *
+     * @param txnId The transaction id.
+     */
+    public void done(String txnId) {
+        byte[] record = record(DONE, txnId, EMPTY);
+        int checksum = checksum(record);
+        synchronized (lock) {
+            Segment segment = pending.remove(txnId);
+            if (segment == null) {
+                segment = failed.remove(txnId);
+            }
+            if (segment == null) {
+                return;
+            }
+            segment.outstanding--;
+            if (syncThread != null && !closed) {
+                try {
+                    write(record, checksum);
+                } catch (IOException e) {
+                    LOGGER.warn(String.format("Cannot mark the transaction '%s' as done, it will be checked after restart", txnId), e);
+                }
+            }
+            compact();
+        }
+    }
+
+    /**
+     * Mark the transaction as failed.
+     * <br>
+     * The transaction isn't pending anymore, so the retry of the homeserver is processed again. The record is kept and the
+     * transaction is returned by the {@link #open()} after restart until it is appended again or done.
+     *
+     * @param txnId The transaction id.
+     */
+    public void fail(String txnId) {
+        synchronized (lock) {
+            Segment segment = pending.remove(txnId);
+            if (segment != null) {
+                failed.put(txnId, segment);
+            }
+        }
+    }
+
+    /**
+     * Force the appended transactions and stop the sync thread.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (lock) {
+            closed = true;
+            thread = syncThread;
+            lock.notifyAll();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void syncLoop() {
+        while (true) {
+            List<CompletableFuture<Void>> group;
+            List<Segment> forced;
+            boolean last;
+            synchronized (lock) {
+                try {
+                    while (waiters.isEmpty() && !closed) {
+                        lock.wait();
+                    }
+                    if (syncDelay > 0 && !closed) {
+                        TimeUnit.MICROSECONDS.timedWait(lock, syncDelay);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    closed = true;
+                }
+                last = closed && waiters.isEmpty();
+                group = new ArrayList<>(waiters);
+                waiters.clear();
+                forced = new ArrayList<>(dirty);
+                dirty.clear();
+            }
+            try {
+                forced.forEach(segment -> segment.buffer.force());
+                group.forEach(future -> future.complete(null));
+            } catch (Exception e) {
+                LOGGER.error("Cannot force the journal", e);
+                group.forEach(future -> future.completeExceptionally(e));
+            }
+            if (last) {
+                return;
+            }
+        }
+    }
+
+    private Segment write(byte[] record, int checksum) throws IOException {
+        Segment segment = segmentFor(HEADER + record.length);
+        MappedByteBuffer buffer = segment.buffer;
+        int start = buffer.position();
+        buffer.position(start + Integer.BYTES);
+        buffer.putInt(checksum);
+        buffer.put(record);
+        buffer.putInt(start, record.length);
+        dirty.add(segment);
+        return segment;
+    }
+
+    private Segment segmentFor(int size) throws IOException {
+        if (current != null && current.buffer.remaining() >= size + Integer.BYTES) {
+            return current;
+        }
+        sequence++;
+        Path file = directory.resolve(String.format(NAME_FORMAT, sequence));
+        current = new Segment(file, map(file, Math.max(segmentSize, size + Integer.BYTES)));
+        segments.add(current);
+        syncDirectory();
+        compact();
+        return current;
+    }
+
+    private void compact() {
+        while (!segments.isEmpty() && segments.peek().outstanding == 0 && segments.peek() != current) {
+            delete(segments.poll());
+        }
+    }
+
+    private void read(Segment segment, Map<String, Entry> entries) {
+        MappedByteBuffer buffer = segment.buffer;
+        while (buffer.remaining() >= HEADER) {
+            int start = buffer.position();
+            int payload = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (payload < MIN_PAYLOAD || payload > buffer.remaining()) {
+                break;
+            }
+            byte[] record = new byte[payload];
+            buffer.get(record);
+            if (checksum(record) != checksum) {
+                LOGGER.warn("Broken record in the segment {} at {}, skip the rest of the segment", segment.file, start);
+                break;
+            }
+
+            ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+            byte type = recordBuffer.get();
+            int idLength = recordBuffer.getInt();
+            if (idLength < 0 || idLength > recordBuffer.remaining()) {
+                break;
+            }
+            byte[] id = new byte[idLength];
+            recordBuffer.get(id);
+            String txnId = new String(id, StandardCharsets.UTF_8);
+            Segment previous = type == DONE ? pending.remove(txnId) : pending.put(txnId, segment);
+            if (previous != null) {
+                previous.outstanding--;
+                entries.remove(txnId);
+            }
+            if (type == RECORD) {
+                byte[] body = new byte[recordBuffer.remaining()];
+                recordBuffer.get(body);
+                segment.outstanding++;
+                entries.put(txnId, new Entry(txnId, body));
+            }
+        }
+    }
+
+    private void delete(Segment segment) {
+        try {
+            Files.deleteIfExists(segment.file);
+            LOGGER.debug("Segment {} is compacted", segment.file);
+        } catch (IOException e) {
+            LOGGER.error(String.format("Cannot delete the segment %s", segment.file), e);
+        }
+    }
+
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            LOGGER.debug("Cannot force the journal directory", e);
+        }
+    }
+
+    private static byte[] record(byte type, String txnId, byte[] body) {
+        byte[] id = txnId.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(MIN_PAYLOAD + id.length + body.length).put(type).putInt(id.length).put(id).put(body).array();
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    private static MappedByteBuffer map(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Segment of the journal.
+     */
+    private static final class Segment {
+
+        private final Path file;
+
+        private final MappedByteBuffer buffer;
+
+        private int outstanding;
+
+        Segment(Path file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Unfinished transaction.
+     */
+    public static final class Entry {
+
+        private final String txnId;
+
+        private final byte[] body;
+
+        Entry(String txnId, byte[] body) {
+            this.txnId = txnId;
+            this.body = body;
+        }
+
+        public String getTxnId() {
+            return txnId;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+}
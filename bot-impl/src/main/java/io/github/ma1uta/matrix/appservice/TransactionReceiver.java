@@ -0,0 +1,562 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.appservice;
+
+import io.github.ma1uta.matrix.bot.GroupCommitExecutor;
+import io.github.ma1uta.matrix.bot.PersistentService;
+import io.github.ma1uta.matrix.event.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Receiver of the appservice transactions ({@code PUT /transactions/{txnId}}).
+ * <br>
+ * The receiver doesn't depend on the http server: the resource passes the transaction id and the raw body to the
+ * {@link #receive(String, byte[])} and sends the response when the returned future is completed. A failed future means that the
+ * homeserver should retry the transaction.
+ * <br>
+ * Transactions are processed one by one in the order of receiving on the specified executor. The transaction is parsed,
+ * dispatched (for example, to the {@link io.github.ma1uta.matrix.bot.AbstractApplicationServiceBotPool#send(List)}) and saved
+ * before the response, so the processed transaction is never lost. Retries of the saved or in-flight transaction are
+ * acknowledged without the second dispatch.
+ * <br>
+ * With the {@link TransactionJournal} the transaction is acknowledged as soon as it is forced to the disk, the processing
+ * continues in the background.
+ * <br>
+ * At most {@code capacity} transactions are accepted at once. Next transactions wait for the free slot, so the homeserver
+ * receives the delayed response and slows down.
+ *
+ * @param <T> transaction.
+ * @param <D> transaction dao.
+ */
+public class TransactionReceiver<T extends Transaction, D extends TransactionDao<T>> implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransactionReceiver.class);
+
+    /**
+     * Default number of the accepted transactions.
+     */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * Default number of the attempts to process the journaled transaction.
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+    /**
+     * Default delay in milliseconds before the first retry, the delay is doubled for each next retry.
+     */
+    public static final long DEFAULT_RETRY_DELAY = 1000L;
+
+    private final PersistentService<D> service;
+
+    private final Supplier<T> transactionFactory;
+
+    private final Parser parser;
+
+    private final Consumer<List<Event>> dispatcher;
+
+    private final Executor executor;
+
+    private final int capacity;
+
+    private TransactionDeduplicator deduplicator;
+
+    private TransactionJournal journal;
+
+    private GroupCommitExecutor<D, T> groupCommit;
+
+    private ScheduledExecutorService retryScheduler;
+
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    private long retryDelay = DEFAULT_RETRY_DELAY;
+
+    private final Map<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+
+    private final Queue<Waiting> waiting = new ArrayDeque<>();
+
+    private final Object admission = new Object();
+
+    private int accepted;
+
+    private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+
+    private boolean closed;
+
+    /**
+     * Create the receiver.
+     *
+     * @param service            The service of the transaction dao.
+     * @param transactionFactory The factory of the new transactions.
+     * @param parser             The parser of the transaction body.
+     * @param dispatcher         The consumer of the transaction events.
+     * @param executor           The executor to process transactions.
+     * @param capacity           The maximum number of the accepted transactions.
+     */
+    public TransactionReceiver(PersistentService<D> service, Supplier<T> transactionFactory, Parser parser,
+                               Consumer<List<Event>> dispatcher, Executor executor, int capacity) {
+        this.service = Objects.requireNonNull(service, "Service should be specified.");
+        this.transactionFactory = Objects.requireNonNull(transactionFactory, "Transaction factory should be specified.");
+        this.parser = Objects.requireNonNull(parser, "Parser should be specified.");
+        this.dispatcher = Objects.requireNonNull(dispatcher, "Dispatcher should be specified.");
+        this.executor = Objects.requireNonNull(executor, "Executor should be specified.");
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity should be positive.");
+        }
+        this.capacity = capacity;
+    }
+
+    public TransactionDeduplicator getDeduplicator() {
+        return deduplicator;
+    }
+
+    /**
+     * Set the in-memory front of the {@link TransactionDao#exist(String)}.
+     *
+     * @param deduplicator The deduplicator or {@code null} to check each transaction by the dao.
+     */
+    public void setDeduplicator(TransactionDeduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+    }
+
+    public TransactionJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Set the journal to acknowledge the transaction as soon as it is written to the disk.
+     * <br>
+     * With the journal the transaction is acknowledged before it is processed, the unfinished transactions are processed again
+     * by the {@link #recover()} after restart. The {@link #recover()} should be invoked before the first transaction.
+     *
+     * @param journal The journal or {@code null} to acknowledge the transaction after processing.
+     */
+    public void setJournal(TransactionJournal journal) {
+        this.journal = journal;
+    }
+
+    public GroupCommitExecutor<D, T> getGroupCommit() {
+        return groupCommit;
+    }
+
+    /**
+     * Set the group commit to save processed transactions by batches.
+     * <br>
+     * The next transaction is processed without waiting for the save of the previous one, the transaction is acknowledged
+     * (without the journal) and released when its group is committed.
+     *
+     * @param groupCommit The group commit, for example {@code new GroupCommitExecutor<>(service, TransactionDao::saveAll)},
+     *                    or {@code null} to save each transaction by the separate database transaction.
+     */
+    public void setGroupCommit(GroupCommitExecutor<D, T> groupCommit) {
+        this.groupCommit = groupCommit;
+    }
+
+    public ScheduledExecutorService getRetryScheduler() {
+        return retryScheduler;
+    }
+
+    /**
+     * Set the scheduler of the retries.
+     * <br>
+     * With the journal the transaction is already acknowledged, so the failed one is processed again by the receiver after
+     * the delay. The transaction keeps its slot until it is processed or fails all attempts. The failed transaction is kept in
+     * the journal: it is processed again on the retry of the homeserver or by the {@link #recover()} after restart.
+     *
+     * @param retryScheduler The scheduler or {@code null} to retry without the delay.
+     */
+    public void setRetryScheduler(ScheduledExecutorService retryScheduler) {
+        this.retryScheduler = retryScheduler;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("Max attempts should be positive.");
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Open the journal and process the unfinished transactions.
+     * <br>
+     * The transactions which have been saved before the crash are checked by the one {@link TransactionDao#existAll(java.util.Collection)}
+     * and are only marked as done.
+     *
+     * @throws IOException when cannot read the journal.
+     */
+    public void recover() throws IOException {
+        TransactionJournal transactionJournal = getJournal();
+        if (transactionJournal == null) {
+            return;
+        }
+        List<TransactionJournal.Entry> entries = transactionJournal.open();
+        if (entries.isEmpty()) {
+            return;
+        }
+        List<String> txnIds = new ArrayList<>(entries.size());
+        entries.forEach(entry -> txnIds.add(entry.getTxnId()));
+        Set<String> saved = service.invoke(dao -> {
+            return dao.existAll(txnIds);
+        });
+        LOGGER.info("Recover {} unfinished transactions, {} of them have been already saved", entries.size(), saved.size());
+        for (TransactionJournal.Entry entry : entries) {
+            if (saved.contains(entry.getTxnId())) {
+                transactionJournal.done(entry.getTxnId());
+            } else {
+                admit(() -> enqueue(entry.getTxnId(), entry.getBody(), null, 1), null);
+            }
+        }
+    }
+
+    /**
+     * Receive the transaction.
+     *
+     * @param txnId The transaction id.
+     * @param body  The request body.
+     * @return The future which is completed when the transaction is processed and saved (or written to the journal).
+     */
+    public CompletableFuture<Void> receive(String txnId, byte[] body) {
+        Objects.requireNonNull(txnId, "Transaction id should be specified.");
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        CompletableFuture<Void> existing = inFlight.putIfAbsent(txnId, result);
+        if (existing != null) {
+            LOGGER.debug("Transaction '{}' is already in progress", txnId);
+            return existing;
+        }
+        result.whenComplete((r, e) -> inFlight.remove(txnId, result));
+        admit(() -> start(txnId, body, result), result);
+        return result;
+    }
+
+    /**
+     * Number of the accepted transactions.
+     *
+     * @return The number of the accepted and not yet processed transactions.
+     */
+    public synchronized int accepted() {
+        return accepted;
+    }
+
+    /**
+     * Process the transaction: skip the duplicate, parse and dispatch the events and save the transaction.
+     *
+     * @param txnId The transaction id.
+     * @param body  The request body.
+     * @return The future which is completed when the transaction is saved.
+     * @throws IOException when cannot parse the body.
+     */
+    protected CompletableFuture<Void> process(String txnId, byte[] body) throws IOException {
+        TransactionDeduplicator dedup = getDeduplicator();
+        boolean exists = dedup != null ? dedup.exist(txnId, this::exist) : exist(txnId);
+        if (exists) {
+            LOGGER.debug("Transaction '{}' has been already processed", txnId);
+            done(txnId);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        List<Event> events = parser.parse(body);
+        LOGGER.debug("Transaction '{}': {} events", txnId, events.size());
+        dispatcher.accept(events);
+
+        T transaction = transactionFactory.get();
+        transaction.setId(txnId);
+        transaction.setProcessed(LocalDateTime.now());
+        CompletableFuture<Void> saved;
+        if (getGroupCommit() != null) {
+            saved = getGroupCommit().submit(transaction);
+        } else {
+            service.invoke(dao -> {
+                dao.save(transaction);
+            });
+            saved = CompletableFuture.completedFuture(null);
+        }
+        return saved.thenRun(() -> {
+            if (dedup != null) {
+                dedup.processed(txnId);
+            }
+            done(txnId);
+        });
+    }
+
+    private void done(String txnId) {
+        if (getJournal() != null) {
+            getJournal().done(txnId);
+        }
+    }
+
+    private boolean exist(String txnId) {
+        return service.invoke(dao -> {
+            return dao.exist(txnId);
+        });
+    }
+
+    private void admit(Runnable task, CompletableFuture<Void> result) {
+        synchronized (admission) {
+            synchronized (this) {
+                if (closed) {
+                    if (result != null) {
+                        result.completeExceptionally(new IllegalStateException("Receiver is closed."));
+                    }
+                    return;
+                }
+                if (accepted >= capacity) {
+                    LOGGER.debug("Receiver is full, delay the transaction");
+                    waiting.add(new Waiting(task, result));
+                    return;
+                }
+                accepted++;
+            }
+            task.run();
+        }
+    }
+
+    private void release() {
+        synchronized (admission) {
+            Waiting next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    accepted--;
+                    return;
+                }
+            }
+            next.task.run();
+        }
+    }
+
+    private void start(String txnId, byte[] body, CompletableFuture<Void> result) {
+        TransactionJournal transactionJournal = getJournal();
+        if (transactionJournal == null) {
+            enqueue(txnId, body, result, 1);
+            return;
+        }
+        if (transactionJournal.isPending(txnId)) {
+            LOGGER.debug("Transaction '{}' is already in the journal", txnId);
+            result.complete(null);
+            release();
+            return;
+        }
+        transactionJournal.append(txnId, body).whenComplete((r, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+                release();
+            } else {
+                result.complete(null);
+                enqueue(txnId, body, null, 1);
+            }
+        });
+    }
+
+    private void enqueue(String txnId, byte[] body, CompletableFuture<Void> result, int attempt) {
+        CompletableFuture<Void> current = new CompletableFuture<>();
+        CompletableFuture<Void> previous;
+        synchronized (this) {
+            previous = tail;
+            tail = current;
+        }
+        chain(previous, current, txnId, body, result, attempt);
+    }
+
+    private void requeue(String txnId, byte[] body, int attempt) {
+        CompletableFuture<Void> current = new CompletableFuture<>();
+        CompletableFuture<Void> previous = null;
+        synchronized (this) {
+            if (!closed) {
+                previous = tail;
+                tail = current;
+            }
+        }
+        if (previous == null) {
+            LOGGER.debug("Receiver is closed, the transaction '{}' is kept in the journal", txnId);
+            release();
+            return;
+        }
+        chain(previous, current, txnId, body, null, attempt);
+    }
+
+    private void chain(CompletableFuture<Void> previous, CompletableFuture<Void> current, String txnId, byte[] body,
+                       CompletableFuture<Void> result, int attempt) {
+        previous.whenComplete((r, e) -> {
+            try {
+                executor.execute(() -> run(txnId, body, result, current, attempt));
+            } catch (RejectedExecutionException ex) {
+                current.complete(null);
+                if (result == null) {
+                    fail(txnId, attempt, ex);
+                } else {
+                    finish(result, ex);
+                }
+            }
+        });
+    }
+
+    private void run(String txnId, byte[] body, CompletableFuture<Void> result, CompletableFuture<Void> current, int attempt) {
+        saved(txnId, body, current).whenComplete((r, e) -> {
+            if (e == null) {
+                finish(result, null);
+            } else if (result == null) {
+                retry(txnId, body, attempt, e);
+            } else {
+                LOGGER.error(String.format("Cannot process the transaction '%s'", txnId), e);
+                finish(result, e);
+            }
+        });
+    }
+
+    private void retry(String txnId, byte[] body, int attempt, Throwable error) {
+        if (attempt >= getMaxAttempts()) {
+            fail(txnId, attempt, error);
+            return;
+        }
+        ScheduledExecutorService scheduler = getRetryScheduler();
+        long delay = scheduler != null ? getRetryDelay() << (attempt - 1) : 0L;
+        LOGGER.warn(String.format("Cannot process the transaction '%s', retry in %d ms", txnId, delay), error);
+        if (scheduler == null) {
+            requeue(txnId, body, attempt + 1);
+            return;
+        }
+        try {
+            scheduler.schedule(() -> requeue(txnId, body, attempt + 1), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            fail(txnId, attempt, e);
+        }
+    }
+
+    private void fail(String txnId, int attempt, Throwable error) {
+        try {
+            LOGGER.error(String.format("Cannot process the transaction '%s' after %d attempts, keep it in the journal", txnId, attempt),
+                error);
+            TransactionJournal transactionJournal = getJournal();
+            if (transactionJournal != null) {
+                transactionJournal.fail(txnId);
+            }
+        } finally {
+            release();
+        }
+    }
+
+    private CompletableFuture<Void> saved(String txnId, byte[] body, CompletableFuture<Void> current) {
+        try {
+            return process(txnId, body);
+        } catch (Exception e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        } finally {
+            current.complete(null);
+        }
+    }
+
+    private void finish(CompletableFuture<Void> result, Throwable error) {
+        try {
+            if (result == null) {
+                return;
+            }
+            if (error == null) {
+                result.complete(null);
+            } else {
+                result.completeExceptionally(error);
+            }
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Reject the waiting transactions and wait for the accepted ones.
+     */
+    @Override
+    public void close() {
+        Queue<Waiting> rejected;
+        CompletableFuture<Void> last;
+        synchronized (this) {
+            closed = true;
+            rejected = new ArrayDeque<>(waiting);
+            waiting.clear();
+            last = tail;
+        }
+        if (!rejected.isEmpty()) {
+            LOGGER.debug("Reject {} waiting transactions", rejected.size());
+        }
+        rejected.stream().filter(w -> w.result != null)
+            .forEach(w -> w.result.completeExceptionally(new IllegalStateException("Receiver is closed.")));
+        last.join();
+    }
+
+    /**
+     * Transaction which waits for the free slot.
+     */
+    private static final class Waiting {
+
+        private final Runnable task;
+
+        private final CompletableFuture<Void> result;
+
+        Waiting(Runnable task, CompletableFuture<Void> result) {
+            this.task = task;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Parser of the transaction body, for example the {@code ObjectMapper} with the jackson-support module or
+     * the {@code Jsonb} with the jsonb-support module.
+     */
+    @FunctionalInterface
+    public interface Parser {
+
+        /**
+         * Parse the events of the transaction.
+         *
+         * @param body The request body.
+         * @return The events.
+         * @throws IOException when cannot parse the body.
+         */
+        List<Event> parse(byte[] body) throws IOException;
+    }
+}
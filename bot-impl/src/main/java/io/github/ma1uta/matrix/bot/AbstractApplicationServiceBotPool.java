@@ -16,17 +16,23 @@
 
 package io.github.ma1uta.matrix.bot;
 
+import io.github.ma1uta.matrix.appservice.NamespaceRouter;
 import io.github.ma1uta.matrix.client.factory.RequestFactory;
 import io.github.ma1uta.matrix.event.Event;
 import io.github.ma1uta.matrix.event.RoomEvent;
 import io.github.ma1uta.matrix.event.RoomMember;
-import io.github.ma1uta.matrix.event.content.RoomMemberContent;
+import io.github.ma1uta.matrix.event.RoomMessage;
+import io.github.ma1uta.matrix.event.content.RoomMessageContent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Set;
 
 /**
  * Bot service.
@@ -43,6 +49,14 @@ public abstract class AbstractApplicationServiceBotPool<C extends BotConfig, D e
 
     private final String appToken;
 
+    private final RoomRoutingIndex roomIndex = new RoomRoutingIndex();
+
+    private final PrefixRouter prefixRouter = new PrefixRouter();
+
+    private final NamespaceRouter<String> namespaceRouter = new NamespaceRouter<>();
+
+    private boolean prefixRouting;
+
     public AbstractApplicationServiceBotPool(RequestFactory requestFactory, String displayName, String appToken, S service,
                                              List<Class<? extends Command<C, D, S, E>>> commandClasses) {
         super(requestFactory, displayName, service, commandClasses);
@@ -53,68 +67,229 @@ public abstract class AbstractApplicationServiceBotPool<C extends BotConfig, D e
         return appToken;
     }
 
+    public RoomRoutingIndex getRoomIndex() {
+        return roomIndex;
+    }
+
+    public PrefixRouter getPrefixRouter() {
+        return prefixRouter;
+    }
+
+    /**
+     * Router of the appservice namespaces to the bots' user ids.
+     * <br>
+     * The bot which claims the room namespace receives all events of the matched rooms even if it isn't joined. The bot which
+     * claims the user namespace receives the membership events of the matched users (for example, the invites of the bridged
+     * users). The claims are owned by the application: they survive the hibernation and the restart of the bot and the events
+     * of the claims of the stopped bot are skipped.
+     *
+     * @return The namespace router.
+     */
+    public NamespaceRouter<String> getNamespaceRouter() {
+        return namespaceRouter;
+    }
+
+    public boolean isPrefixRouting() {
+        return prefixRouting;
+    }
+
     /**
-     * Send an one event to the bot.
+     * Enable the routing of the messages by the command prefixes.
+     * <br>
+     * The message is delivered only to the bots which prefix matches the message body and to the bots with the default command
+     * instead of all bots joined to the room. The skipped messages are not acknowledged by the read receipts.
+     *
+     * @param prefixRouting {@code true} to route the messages by the prefixes, else {@code false}.
+     */
+    public void setPrefixRouting(boolean prefixRouting) {
+        this.prefixRouting = prefixRouting;
+    }
+
+    /**
+     * Send an one event to the bots.
+     * <br>
+     * The event is delivered to all bots joined to the room and to the bot which membership is changed by the event
+     * (for example, invited bot).
      *
      * @param roomId room id.
      * @param event  event.
      * @return {@code true} if event was processed, else {@code false}.
      */
     public boolean send(String roomId, Event event) {
-        LOGGER.debug("Receive event in the room: {0}", roomId);
-        Optional<ApplicationServiceBot<C, D, S, E>> bot = getBotMap().entrySet().stream()
-            .filter(entry -> {
-                Context<C, D, S, E> context = entry.getValue().getContext();
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Bot \"{}\"", context.getConfig().getUserId());
-                }
-                List<String> joinedRooms;
-                try {
-                    joinedRooms = context.getMatrixClient().room().joinedRooms().join();
-                } catch (Exception e) {
-                    LOGGER.error("Cannot retrieve joined rooms.", e);
-                    return false;
-                }
-                if (LOGGER.isDebugEnabled()) {
-                    joinedRooms.forEach(joinedRoom -> LOGGER.debug("Room: {}", joinedRoom));
-                }
-                if (joinedRooms.contains(roomId)) {
-                    return true;
-                }
-                if (event instanceof RoomMember) {
-                    RoomMember roomMember = (RoomMember) event;
-                    String stateKey = roomMember.getStateKey();
-                    String membership = roomMember.getContent().getMembership();
-                    if (LOGGER.isDebugEnabled()) {
-                        LOGGER.debug("Membership: {}", membership);
-                        LOGGER.debug("Event type: {}", event.getType());
-                        LOGGER.debug("State key: {}", stateKey);
-                    }
-                    return context.getConfig().getUserId().equals(stateKey) && RoomMemberContent.INVITE.equals(membership);
-                }
-                return false;
-            }).map(Map.Entry::getValue).findFirst();
-
-        if (bot.isPresent() && event instanceof RoomEvent) {
-            LOGGER.debug("Bot \"{}\" is found.", bot.get().getContext().getConfig().getUserId());
-            bot.get().send((RoomEvent) event);
-            return true;
-        } else {
+        LOGGER.debug("Receive event in the room: {}", roomId);
+        if (!(event instanceof RoomEvent)) {
+            LOGGER.debug("Skip non-room event.");
+            return false;
+        }
+
+        boolean delivered = false;
+        for (String userId : recipients(roomId, event)) {
+            delivered |= deliver(userId, (RoomEvent) event);
+        }
+
+        if (!delivered) {
+            LOGGER.debug("Bot didn't found.");
+        }
+        return delivered;
+    }
+
+    /**
+     * Send the batch of the events (for example, the appservice transaction) to the bots.
+     * <br>
+     * Each bot receives all its events at once, so the read receipt is sent once per room and the bot's configuration is saved
+     * once per batch. The order of the events is kept.
+     *
+     * @param events events.
+     * @return {@code true} if any event was processed, else {@code false}.
+     */
+    public boolean send(List<Event> events) {
+        Map<String, List<RoomEvent>> batches = new LinkedHashMap<>();
+        for (Event event : events) {
+            if (!(event instanceof RoomEvent)) {
+                LOGGER.debug("Skip non-room event.");
+                continue;
+            }
+            RoomEvent roomEvent = (RoomEvent) event;
+            for (String userId : recipients(roomEvent.getRoomId(), roomEvent)) {
+                batches.computeIfAbsent(userId, id -> new ArrayList<>()).add(roomEvent);
+            }
+        }
+
+        boolean delivered = false;
+        for (Map.Entry<String, List<RoomEvent>> entry : batches.entrySet()) {
+            delivered |= deliver(entry.getKey(), entry.getValue());
+        }
+        if (!delivered) {
             LOGGER.debug("Bot didn't found.");
+        }
+        return delivered;
+    }
+
+    /**
+     * Find the bots which should receive the event: all bots joined to the room, the bots which namespaces match the room
+     * and the bot which membership is changed or which namespace matches the changed member.
+     * <br>
+     * When the prefix routing is enabled the message is received only by the joined bots which prefix matches the message
+     * and by the bots which namespaces match the room.
+     *
+     * @param roomId room id.
+     * @param event  event.
+     * @return user ids of the bots.
+     */
+    protected Set<String> recipients(String roomId, Event event) {
+        Set<String> recipients = new LinkedHashSet<>(getRoomIndex().bots(roomId));
+        if (isPrefixRouting() && event instanceof RoomMessage) {
+            RoomMessageContent content = (RoomMessageContent) ((RoomMessage) event).getContent();
+            String body = content != null && content.getBody() != null ? content.getBody().trim() : "";
+            recipients.retainAll(getPrefixRouter().route(body));
+        }
+        if (roomId != null) {
+            recipients.addAll(getNamespaceRouter().match(NamespaceRouter.Type.ROOMS, roomId));
+        }
+        if (event instanceof RoomMember) {
+            RoomMember roomMember = (RoomMember) event;
+            String stateKey = roomMember.getStateKey();
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Membership: {}", roomMember.getContent() != null ? roomMember.getContent().getMembership() : null);
+                LOGGER.debug("State key: {}", stateKey);
+            }
+            if (stateKey != null) {
+                recipients.add(stateKey);
+                recipients.addAll(getNamespaceRouter().match(NamespaceRouter.Type.USERS, stateKey));
+            }
+        }
+        return recipients;
+    }
+
+    /**
+     * Deliver the event to the bot.
+     *
+     * @param userId The bot's user id.
+     * @param event  The event.
+     * @return {@code true} if the bot is found, else {@code false}.
+     */
+    protected boolean deliver(String userId, RoomEvent event) {
+        return deliver(userId, Collections.singletonList(event));
+    }
+
+    /**
+     * Deliver the events to the bot.
+     *
+     * @param userId The bot's user id.
+     * @param events The events.
+     * @return {@code true} if the bot is found, else {@code false}.
+     */
+    protected boolean deliver(String userId, List<RoomEvent> events) {
+        ApplicationServiceBot<C, D, S, E> bot = getBotMap().get(userId);
+        if (bot == null) {
+            bot = wake(userId);
+        }
+        if (bot == null) {
             return false;
         }
+        LOGGER.debug("Bot \"{}\" is found.", userId);
+        touch(userId);
+        try {
+            bot.send(events);
+        } catch (Exception e) {
+            LOGGER.error(String.format("Bot '%s' cannot process the event", userId), e);
+        }
+        return true;
+    }
+
+    @Override
+    protected boolean canHibernate(ApplicationServiceBot<C, D, S, E> bot) {
+        return true;
+    }
+
+    @Override
+    protected void stopHibernated(String userId) {
+        super.stopHibernated(userId);
+        getRoomIndex().remove(userId);
+        getPrefixRouter().remove(userId);
     }
 
     @Override
     protected ApplicationServiceBot<C, D, S, E> createBotInstance(C config) {
-        return new ApplicationServiceBot<>(getRequestFactory(), getAppToken(), true, config, getService(), getCommandClasses());
+        return new ApplicationServiceBot<>(getRequestFactory(), getAppToken(), true, config, getService(), getCommandRegistry(),
+            getFilterRegistry());
     }
 
     @Override
     protected void submitBot(ApplicationServiceBot<C, D, S, E> bot) {
+        String userId = bot.getContext().getConfig().getUserId();
+        bot.getJoinedRooms().addListener(getRoomIndex().listener(userId));
+        bot.getContext().addShutdownListener(() -> {
+            getRoomIndex().remove(userId);
+            getPrefixRouter().remove(userId);
+            return null;
+        });
+        bot.getContext().addConfigListener(config -> updateRoute(bot));
         if (BotState.NEW.equals(bot.getContext().getConfig().getState())) {
             bot.newState();
         }
         bot.init();
+        updateRoute(bot);
+        Set<String> rooms = getRoomIndex().rooms(userId);
+        if (!rooms.isEmpty()) {
+            bot.getJoinedRooms().restore(rooms);
+        } else if (BotState.JOINED.equals(bot.getContext().getConfig().getState())) {
+            try {
+                bot.getJoinedRooms().reconcile();
+            } catch (Exception e) {
+                LOGGER.error(String.format("Cannot retrieve joined rooms of the bot '%s'", userId), e);
+            }
+        }
+    }
+
+    /**
+     * Update the bot's route after the prefix or the default command is changed.
+     *
+     * @param bot The bot.
+     */
+    protected void updateRoute(ApplicationServiceBot<C, D, S, E> bot) {
+        C config = bot.getContext().getConfig();
+        boolean defaultCommand = config.getDefaultCommand() != null && !config.getDefaultCommand().trim().isEmpty();
+        getPrefixRouter().update(config.getUserId(), bot.getPrefix(), defaultCommand);
     }
 }
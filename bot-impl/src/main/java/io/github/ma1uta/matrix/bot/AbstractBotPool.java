@@ -16,13 +16,24 @@
 
 package io.github.ma1uta.matrix.bot;
 
+import io.github.ma1uta.matrix.bot.cluster.ClusterCoordinator;
+import io.github.ma1uta.matrix.client.ephemeral.EphemeralCoalescer;
 import io.github.ma1uta.matrix.client.factory.RequestFactory;
+import io.github.ma1uta.matrix.client.filter.FilterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Bot service.
@@ -38,6 +49,11 @@ public abstract class AbstractBotPool<C extends BotConfig, D extends BotDao<C>,
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AbstractBotPool.class);
 
+    /**
+     * Default number of the bots started at once.
+     */
+    public static final int DEFAULT_STARTUP_CONCURRENCY = 8;
+
     private final RequestFactory requestFactory;
 
     private final String displayName;
@@ -46,7 +62,53 @@ public abstract class AbstractBotPool<C extends BotConfig, D extends BotDao<C>,
 
     private final List<Class<? extends Command<C, D, S, E>>> commandClasses;
 
-    private Map<String, B> botMap = new HashMap<>();
+    private CommandRegistry<C, D, S, E> commandRegistry;
+
+    private Map<String, B> botMap = new ConcurrentHashMap<>();
+
+    private FilterRegistry filterRegistry = new FilterRegistry();
+
+    private Executor commandExecutor;
+
+    private ConfigWriteBehind<C, D> writeBehind;
+
+    private long ephemeralWindow;
+
+    private double outboundRate;
+
+    private int outboundBurst = 1;
+
+    private int outboundCapacity = OutboundQueue.DEFAULT_CAPACITY;
+
+    private TokenBucket globalOutboundBucket;
+
+    private ScheduledExecutorService scheduler;
+
+    private Executor outboundExecutor;
+
+    private ExecutorService defaultOutboundExecutor;
+
+    private ExecutorService startupExecutor;
+
+    private int commandConcurrency = CommandExecutor.DEFAULT_CONCURRENCY;
+
+    private TokenBucket authBucket;
+
+    private int startupConcurrency = DEFAULT_STARTUP_CONCURRENCY;
+
+    private long hibernateAfter;
+
+    private final Map<String, Long> lastActivity = new ConcurrentHashMap<>();
+
+    private final Map<String, C> hibernated = new ConcurrentHashMap<>();
+
+    private final Object hibernationLock = new Object();
+
+    private final Map<String, CompletableFuture<B>> waking = new ConcurrentHashMap<>();
+
+    private ScheduledFuture<?> hibernationTask;
+
+    private volatile ClusterCoordinator<C, ?, ?> coordinator;
 
     public AbstractBotPool(RequestFactory requestFactory, String displayName, S service,
                            List<Class<? extends Command<C, D, S, E>>> commandClasses) {
@@ -72,10 +134,417 @@ public abstract class AbstractBotPool<C extends BotConfig, D extends BotDao<C>,
         return commandClasses;
     }
 
+    /**
+     * The commands shared by all bots of this pool. Commands are created on the first call.
+     *
+     * @return The command registry.
+     */
+    public synchronized CommandRegistry<C, D, S, E> getCommandRegistry() {
+        if (commandRegistry == null) {
+            commandRegistry = CommandRegistry.of(getCommandClasses());
+        }
+        return commandRegistry;
+    }
+
     public Map<String, B> getBotMap() {
         return botMap;
     }
 
+    public FilterRegistry getFilterRegistry() {
+        return filterRegistry;
+    }
+
+    /**
+     * Set the filter registry shared by all bots of this pool.
+     * <br>
+     * Use a registry with a persistent {@link io.github.ma1uta.matrix.client.filter.FilterStore} to reuse filters after restart.
+     *
+     * @param filterRegistry The filter registry.
+     */
+    public void setFilterRegistry(FilterRegistry filterRegistry) {
+        this.filterRegistry = filterRegistry;
+    }
+
+    public Executor getCommandExecutor() {
+        return commandExecutor;
+    }
+
+    /**
+     * Set the threads to invoke commands of all bots of this pool.
+     * <br>
+     * If not set commands are invoked by the shared threads of the {@link CommandExecutor#CommandExecutor()}.
+     *
+     * @param commandExecutor The executor.
+     */
+    public void setCommandExecutor(Executor commandExecutor) {
+        this.commandExecutor = commandExecutor;
+    }
+
+    public int getCommandConcurrency() {
+        return commandConcurrency;
+    }
+
+    /**
+     * Set the maximum number of the running commands of the each bot.
+     *
+     * @param commandConcurrency The maximum number of the running commands.
+     */
+    public void setCommandConcurrency(int commandConcurrency) {
+        this.commandConcurrency = commandConcurrency;
+    }
+
+    public ConfigWriteBehind<C, D> getWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * Set the write-behind to save configurations of all bots of this pool by batches.
+     * <br>
+     * The write-behind is flushed and closed when the pool is stopped.
+     *
+     * @param writeBehind The write-behind or {@code null} to save the configuration in each transaction.
+     */
+    public void setWriteBehind(ConfigWriteBehind<C, D> writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    public long getEphemeralWindow() {
+        return ephemeralWindow;
+    }
+
+    /**
+     * Set the window to coalesce read receipts of the each bot.
+     *
+     * @param ephemeralWindow The window in milliseconds or {@code 0} to send each receipt immediately.
+     */
+    public void setEphemeralWindow(long ephemeralWindow) {
+        this.ephemeralWindow = ephemeralWindow;
+    }
+
+    /**
+     * Create the coalescer of the read receipts if the window is set. All coalescers share the one scheduler.
+     *
+     * @param bot The bot.
+     * @return The coalescer or {@code null}.
+     */
+    protected EphemeralCoalescer createEphemeralCoalescer(B bot) {
+        if (getEphemeralWindow() <= 0) {
+            return null;
+        }
+        return new EphemeralCoalescer(bot.getContext().getMatrixClient(), getEphemeralWindow(), getScheduler());
+    }
+
+    public double getOutboundRate() {
+        return outboundRate;
+    }
+
+    public int getOutboundBurst() {
+        return outboundBurst;
+    }
+
+    /**
+     * Set the rate limit of the requests of the each bot (replies, notices and receipts).
+     *
+     * @param outboundRate  The number of requests per second or {@code 0} to send requests without the outbound queue.
+     * @param outboundBurst The maximum number of requests sent at once.
+     */
+    public void setOutboundRate(double outboundRate, int outboundBurst) {
+        this.outboundRate = outboundRate;
+        this.outboundBurst = outboundBurst;
+    }
+
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    /**
+     * Set the maximum number of the queued requests of the each bot.
+     *
+     * @param outboundCapacity The maximum number of the queued requests.
+     */
+    public void setOutboundCapacity(int outboundCapacity) {
+        this.outboundCapacity = outboundCapacity;
+    }
+
+    public TokenBucket getGlobalOutboundBucket() {
+        return globalOutboundBucket;
+    }
+
+    /**
+     * Set the rate limit of the requests shared by all bots of this pool, for example by all bots of the one appservice.
+     *
+     * @param globalOutboundBucket The shared token bucket or {@code null}.
+     */
+    public void setGlobalOutboundBucket(TokenBucket globalOutboundBucket) {
+        this.globalOutboundBucket = globalOutboundBucket;
+    }
+
+    public TokenBucket getAuthBucket() {
+        return authBucket;
+    }
+
+    /**
+     * Set the rate limit of the logins and registrations shared by all bots of this pool.
+     * <br>
+     * Bots with the saved access token don't login at startup and don't take tokens.
+     *
+     * @param authBucket The shared token bucket or {@code null}.
+     */
+    public void setAuthBucket(TokenBucket authBucket) {
+        this.authBucket = authBucket;
+    }
+
+    public int getStartupConcurrency() {
+        return startupConcurrency;
+    }
+
+    /**
+     * Set the maximum number of the bots started at once by the {@link #start()}.
+     * <br>
+     * Should be set before the start, it is the size of the {@link #getStartupExecutor()}.
+     *
+     * @param startupConcurrency The maximum number of the bots started at once.
+     */
+    public void setStartupConcurrency(int startupConcurrency) {
+        this.startupConcurrency = startupConcurrency;
+    }
+
+    public long getHibernateAfter() {
+        return hibernateAfter;
+    }
+
+    /**
+     * Set the idle time after which the bot is hibernated.
+     * <br>
+     * The hibernated bot is released and kept only by its configuration, it is started again by the first routed event.
+     * Only bots which receive events from the pool can be hibernated, see {@link #canHibernate(Bot)}.
+     *
+     * @param hibernateAfter The idle time in milliseconds or {@code 0} to keep all bots running.
+     */
+    public void setHibernateAfter(long hibernateAfter) {
+        this.hibernateAfter = hibernateAfter;
+    }
+
+    /**
+     * Check that the bot is hibernated.
+     *
+     * @param userId The bot's user id.
+     * @return {@code true} if the bot is hibernated, else {@code false}.
+     */
+    public boolean isHibernated(String userId) {
+        return hibernated.containsKey(userId);
+    }
+
+    /**
+     * Record the bot's activity.
+     *
+     * @param userId The bot's user id.
+     */
+    public void touch(String userId) {
+        lastActivity.put(userId, System.currentTimeMillis());
+    }
+
+    /**
+     * Check that the bot can be released and started again by the pool.
+     *
+     * @param bot The bot.
+     * @return {@code true} if the bot can be hibernated, else {@code false}.
+     */
+    protected boolean canHibernate(B bot) {
+        return false;
+    }
+
+    /**
+     * Hibernate the bot.
+     * <br>
+     * The pending receipts are sent and the bot instance is released. The bot with the pending outbound requests is not hibernated.
+     *
+     * @param userId The bot's user id.
+     * @return {@code true} if the bot is hibernated, else {@code false}.
+     */
+    public boolean hibernate(String userId) {
+        synchronized (hibernationLock) {
+            B bot = getBotMap().get(userId);
+            if (bot == null || !canHibernate(bot) || waking.containsKey(userId)) {
+                return false;
+            }
+            if (bot.getOutboundQueue() != null && bot.getOutboundQueue().size() > 0) {
+                return false;
+            }
+            if (bot.getEphemeralCoalescer() != null) {
+                bot.getEphemeralCoalescer().close();
+            }
+            flushConfig(bot);
+            getBotMap().remove(userId);
+            hibernated.put(userId, bot.getContext().getConfig());
+            LOGGER.debug("Bot '{}' is hibernated", userId);
+            return true;
+        }
+    }
+
+    /**
+     * Start the hibernated bot.
+     * <br>
+     * The bot is started outside the pool lock, the concurrent calls for the same bot wait for the first one.
+     *
+     * @param userId The bot's user id.
+     * @return The running bot or {@code null} if the bot is not found.
+     */
+    protected B wake(String userId) {
+        CompletableFuture<B> wakeup = new CompletableFuture<>();
+        CompletableFuture<B> started;
+        C config = null;
+        synchronized (hibernationLock) {
+            B bot = getBotMap().get(userId);
+            if (bot != null) {
+                return bot;
+            }
+            started = waking.putIfAbsent(userId, wakeup);
+            if (started == null) {
+                config = hibernated.remove(userId);
+                if (config == null) {
+                    waking.remove(userId, wakeup);
+                    return null;
+                }
+            }
+        }
+        if (started != null) {
+            return started.handle((bot, e) -> bot).join();
+        }
+        try {
+            LOGGER.debug("Wake up the bot '{}'", userId);
+            submit(config, false);
+            B bot = getBotMap().get(userId);
+            wakeup.complete(bot);
+            return bot;
+        } catch (RuntimeException e) {
+            wakeup.completeExceptionally(e);
+            throw e;
+        } finally {
+            waking.remove(userId, wakeup);
+        }
+    }
+
+    /**
+     * Release the resources of the hibernated bot which is stopped.
+     *
+     * @param userId The bot's user id.
+     */
+    protected void stopHibernated(String userId) {
+        lastActivity.remove(userId);
+    }
+
+    /**
+     * Hibernate all bots which are idle longer than {@link #getHibernateAfter()}.
+     */
+    protected void hibernateIdle() {
+        long threshold = System.currentTimeMillis() - getHibernateAfter();
+        for (String userId : new ArrayList<>(getBotMap().keySet())) {
+            try {
+                synchronized (hibernationLock) {
+                    Long last = lastActivity.get(userId);
+                    if (last == null || last < threshold) {
+                        hibernate(userId);
+                    }
+                }
+            } catch (Exception e) {
+                LOGGER.error(String.format("Cannot hibernate the bot '%s'", userId), e);
+            }
+        }
+    }
+
+    /**
+     * Create the outbound queue if the outbound rate is set.
+     *
+     * @param bot The bot.
+     * @return The outbound queue or {@code null}.
+     */
+    protected OutboundQueue createOutboundQueue(B bot) {
+        if (getOutboundRate() <= 0) {
+            return null;
+        }
+        return new OutboundQueue(new TokenBucket(getOutboundBurst(), getOutboundRate()), getGlobalOutboundBucket(), getScheduler(),
+            getOutboundExecutor(), getOutboundCapacity());
+    }
+
+    /**
+     * Scheduler shared by the bots of this pool.
+     *
+     * @return The scheduler.
+     */
+    protected synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "bot-pool-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * Threads to start and to register the bots of this pool, for example by the {@link #start()} and the
+     * {@link BotProvisioner}. Its size is the {@link #getStartupConcurrency()}, it is stopped with the pool.
+     *
+     * @return The executor.
+     */
+    protected synchronized ExecutorService getStartupExecutor() {
+        if (startupExecutor == null) {
+            startupExecutor = Executors.newFixedThreadPool(Math.max(1, getStartupConcurrency()), runnable -> {
+                Thread thread = new Thread(runnable, "bot-pool-startup");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return startupExecutor;
+    }
+
+    public ClusterCoordinator<C, ?, ?> getCoordinator() {
+        return coordinator;
+    }
+
+    /**
+     * Set the coordinator which starts the bots of this pool on the cluster nodes.
+     * <br>
+     * Is set by the {@link ClusterCoordinator}. The new bots of the coordinated pool are started only through the coordinator.
+     *
+     * @param coordinator The coordinator.
+     */
+    public void setCoordinator(ClusterCoordinator<C, ?, ?> coordinator) {
+        this.coordinator = coordinator;
+    }
+
+    /**
+     * Set the threads to send the outbound requests of all bots of this pool.
+     * <br>
+     * If not set the pool creates the cached thread pool which is stopped with the pool.
+     *
+     * @param outboundExecutor The executor.
+     */
+    public synchronized void setOutboundExecutor(Executor outboundExecutor) {
+        this.outboundExecutor = outboundExecutor;
+    }
+
+    /**
+     * Executor to send the outbound requests.
+     *
+     * @return The executor.
+     */
+    protected synchronized Executor getOutboundExecutor() {
+        if (outboundExecutor != null) {
+            return outboundExecutor;
+        }
+        if (defaultOutboundExecutor == null) {
+            defaultOutboundExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "bot-pool-outbound");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return defaultOutboundExecutor;
+    }
+
     protected abstract C createConfig(String username);
 
     protected abstract void initializeBot(Bot<C, D, S, E> bot);
@@ -86,35 +555,173 @@ public abstract class AbstractBotPool<C extends BotConfig, D extends BotDao<C>,
 
     /**
      * Run new bot.
+     * <br>
+     * The bot of the coordinated pool is saved and is started through the {@link ClusterCoordinator#startBot(String)}, so it runs
+     * only on the node which owns it.
      *
      * @param username bot's username
      */
     public void startNewBot(String username) {
-        submit(createConfig(username));
+        C config = createConfig(username);
+        ClusterCoordinator<C, ?, ?> clusterCoordinator = getCoordinator();
+        if (clusterCoordinator == null) {
+            submit(config);
+            return;
+        }
+        getService().invoke(dao -> {
+            FencedBotDao.save(dao, config);
+        });
+        clusterCoordinator.startBot(config.getUserId());
     }
 
     protected void submit(C config) {
-        getService().invoke(dao -> {
-            dao.save(config);
-        });
+        submit(config, true);
+    }
+
+    /**
+     * Create, initialize and run the bot.
+     *
+     * @param config The bot's configuration.
+     * @param save   {@code true} to save the configuration before start, {@code false} if the configuration is loaded from the dao.
+     */
+    protected void submit(C config, boolean save) {
+        if (save) {
+            getService().invoke(dao -> {
+                FencedBotDao.save(dao, config);
+            });
+        }
         B bot = createBotInstance(config);
+        bot.setAuthLimiter(getAuthBucket());
+        bot.getContext().setWriteBehind(getWriteBehind());
+        bot.setEphemeralCoalescer(createEphemeralCoalescer(bot));
+        bot.setOutboundQueue(createOutboundQueue(bot));
+        if (getCommandExecutor() != null) {
+            bot.setCommandExecutor(new CommandExecutor(getCommandExecutor(), getCommandConcurrency()));
+        }
         initializeBot(bot);
         String userId = bot.getContext().getConfig().getUserId();
+        touch(userId);
         getBotMap().put(userId, bot);
         bot.getContext().addShutdownListener(() -> {
+            // the configuration is saved before the bot is reported as stopped, so the lease is released after the save.
+            flushConfig(bot);
             getBotMap().remove(userId);
+            lastActivity.remove(userId);
+            if (bot.getEphemeralCoalescer() != null) {
+                bot.getEphemeralCoalescer().flush();
+            }
             return null;
         });
         submitBot(bot);
     }
 
+    /**
+     * Save the not saved changes of the bot's configuration from the write-behind.
+     *
+     * @param bot The bot.
+     */
+    protected void flushConfig(B bot) {
+        if (getWriteBehind() != null) {
+            try {
+                getWriteBehind().flush(bot.getContext());
+            } catch (RuntimeException e) {
+                LOGGER.error(String.format("Cannot save the configuration of the bot '%s'", bot.getContext().getConfig().getUserId()), e);
+            }
+        }
+    }
+
+    /**
+     * Start the bot with the specified configuration.
+     *
+     * @param config The bot's configuration.
+     */
+    public void startBot(C config) {
+        submit(config);
+    }
+
+    /**
+     * Check that the bot is running.
+     *
+     * @param userId The bot's user id.
+     * @return {@code true} if the bot is running, else {@code false}.
+     */
+    public boolean isRunning(String userId) {
+        return getBotMap().containsKey(userId) || isHibernated(userId) || waking.containsKey(userId);
+    }
+
+    /**
+     * Stop the bot.
+     * <br>
+     * The bot's shutdown listeners are invoked, the configuration is kept. The hibernated bot is released without the start.
+     *
+     * @param userId The bot's user id.
+     */
+    public void stopBot(String userId) {
+        C config;
+        synchronized (hibernationLock) {
+            config = hibernated.remove(userId);
+        }
+        if (config != null) {
+            LOGGER.debug("Stop the hibernated bot '{}'", userId);
+            stopHibernated(userId);
+            return;
+        }
+        CompletableFuture<B> wakeup = waking.get(userId);
+        if (wakeup != null) {
+            wakeup.handle((started, e) -> started).join();
+        }
+        B bot = getBotMap().get(userId);
+        if (bot != null) {
+            bot.getContext().shutdown();
+        }
+    }
+
     /**
      * Start pool.
+     * <br>
+     * The configurations are loaded at once and the bots are started in parallel by {@link #getStartupConcurrency()} threads.
+     * The bots are initialized (logged in) by these threads. Logins and registrations are throttled by the {@link #getAuthBucket()}.
+     * <br>
+     * The coordinated pool doesn't load the bots itself, the {@link ClusterCoordinator#start()} is invoked instead and the
+     * coordinator starts only the bots assigned to this node.
      */
     public void start() {
-        getService().invoke((dao) -> {
-            dao.findAll().forEach(this::submit);
+        ClusterCoordinator<C, ?, ?> clusterCoordinator = getCoordinator();
+        if (clusterCoordinator != null) {
+            clusterCoordinator.start();
+            scheduleHibernation();
+            return;
+        }
+        List<C> configs = getService().invoke((dao) -> {
+            return new ArrayList<>(dao.findAll());
         });
+        if (configs.isEmpty()) {
+            scheduleHibernation();
+            return;
+        }
+        ExecutorService startup = getStartupExecutor();
+        List<CompletableFuture<Void>> futures = new ArrayList<>(configs.size());
+        for (C config : configs) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                try {
+                    submit(config, false);
+                } catch (Exception e) {
+                    LOGGER.error(String.format("Cannot start the bot '%s'", config.getUserId()), e);
+                }
+            }, startup));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        scheduleHibernation();
+    }
+
+    /**
+     * Start the periodic hibernation of the idle bots if the {@link #getHibernateAfter()} is set.
+     */
+    protected synchronized void scheduleHibernation() {
+        if (getHibernateAfter() > 0 && hibernationTask == null) {
+            hibernationTask = getScheduler().scheduleWithFixedDelay(this::hibernateIdle, getHibernateAfter(), getHibernateAfter(),
+                TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
@@ -123,5 +730,28 @@ public abstract class AbstractBotPool<C extends BotConfig, D extends BotDao<C>,
      * @throws InterruptedException when cannot stop bot's thread.
      */
     public void stop() throws InterruptedException {
+        getBotMap().values().forEach(bot -> {
+            if (bot.getEphemeralCoalescer() != null) {
+                bot.getEphemeralCoalescer().flush();
+            }
+        });
+        synchronized (this) {
+            if (hibernationTask != null) {
+                hibernationTask.cancel(false);
+                hibernationTask = null;
+            }
+            if (scheduler != null) {
+                scheduler.shutdown();
+            }
+            if (defaultOutboundExecutor != null) {
+                defaultOutboundExecutor.shutdown();
+            }
+            if (startupExecutor != null) {
+                startupExecutor.shutdown();
+            }
+        }
+        if (getWriteBehind() != null) {
+            getWriteBehind().close();
+        }
     }
 }
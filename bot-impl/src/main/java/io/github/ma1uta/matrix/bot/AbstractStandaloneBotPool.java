@@ -21,6 +21,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -42,6 +44,8 @@ public abstract class AbstractStandaloneBotPool<C extends BotConfig, D extends B
 
     private final ExecutorService pool;
 
+    private final Map<String, BotTask> tasks = new ConcurrentHashMap<>();
+
     public AbstractStandaloneBotPool(RequestFactory requestFactory, String displayName, S service,
                                      List<Class<? extends Command<C, D, S, E>>> commandClasses) {
         super(requestFactory, displayName, service, commandClasses);
@@ -54,12 +58,47 @@ public abstract class AbstractStandaloneBotPool<C extends BotConfig, D extends B
 
     @Override
     protected StandaloneBot<C, D, S, E> createBotInstance(C config) {
-        return new StandaloneBot<>(getRequestFactory(), true, config, getService(), getCommandClasses());
+        return new StandaloneBot<>(getRequestFactory(), true, config, getService(), getCommandRegistry(), getFilterRegistry());
     }
 
+    /**
+     * Initialize the bot in the current thread and start its loop.
+     * <br>
+     * The login runs in the calling thread, so the startup threads of the {@link #start()} bound the concurrent logins.
+     *
+     * @param bot The bot.
+     */
     @Override
     protected void submitBot(StandaloneBot<C, D, S, E> bot) {
-        getPool().submit(bot);
+        String userId = bot.getContext().getConfig().getUserId();
+        try {
+            bot.init();
+        } catch (RuntimeException e) {
+            bot.getContext().shutdown();
+            throw e;
+        }
+        BotTask task = new BotTask(bot);
+        bot.getContext().addShutdownListener(() -> {
+            tasks.remove(userId, task);
+            return null;
+        });
+        tasks.put(userId, task);
+        getPool().submit(task);
+    }
+
+    /**
+     * Stop the bot.
+     * <br>
+     * The bot's thread is interrupted, the bot stops after the current sync.
+     *
+     * @param userId The bot's user id.
+     */
+    @Override
+    public void stopBot(String userId) {
+        BotTask task = tasks.get(userId);
+        if (task != null) {
+            task.stop();
+        }
     }
 
     /**
@@ -70,5 +109,44 @@ public abstract class AbstractStandaloneBotPool<C extends BotConfig, D extends B
     @Override
     public void stop() throws InterruptedException {
         getPool().awaitTermination(TIMEOUT, TimeUnit.SECONDS);
+        super.stop();
+    }
+
+    /**
+     * Bot's task which can be stopped before and after start.
+     */
+    private final class BotTask implements Runnable {
+
+        private final StandaloneBot<C, D, S, E> bot;
+
+        private volatile Thread thread;
+
+        private volatile boolean stopped;
+
+        BotTask(StandaloneBot<C, D, S, E> bot) {
+            this.bot = bot;
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            try {
+                if (stopped) {
+                    bot.getContext().shutdown();
+                    return;
+                }
+                bot.run();
+            } finally {
+                thread = null;
+            }
+        }
+
+        void stop() {
+            stopped = true;
+            Thread current = thread;
+            if (current != null) {
+                current.interrupt();
+            }
+        }
     }
 }
@@ -19,16 +19,18 @@ package io.github.ma1uta.matrix.bot;
 import io.github.ma1uta.matrix.client.AppServiceClient;
 import io.github.ma1uta.matrix.client.RequestParams;
 import io.github.ma1uta.matrix.client.factory.RequestFactory;
+import io.github.ma1uta.matrix.client.filter.FilterRegistry;
 import io.github.ma1uta.matrix.event.Event;
 import io.github.ma1uta.matrix.event.RoomEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Supplier;
 
 /**
  * Matrix bot client.
@@ -47,10 +49,20 @@ public class ApplicationServiceBot<C extends BotConfig, D extends BotDao<C>, S e
         super(factory, asToken, exitOnEmptyRooms, config, service, commandsClasses);
     }
 
+    public ApplicationServiceBot(RequestFactory factory, String asToken, boolean exitOnEmptyRooms, C config, S service,
+                                 List<Class<? extends Command<C, D, S, E>>> commandsClasses, FilterRegistry filterRegistry) {
+        super(factory, asToken, exitOnEmptyRooms, config, service, commandsClasses, filterRegistry);
+    }
+
+    public ApplicationServiceBot(RequestFactory factory, String asToken, boolean exitOnEmptyRooms, C config, S service,
+                                 CommandRegistry<C, D, S, E> commandRegistry, FilterRegistry filterRegistry) {
+        super(factory, asToken, exitOnEmptyRooms, config, service, commandRegistry, filterRegistry);
+    }
+
     @Override
     protected Context<C, D, S, E> init(RequestFactory factory, String asToken, C config, S service) {
         AppServiceClient matrixClient = new AppServiceClient(factory,
-            new RequestParams().userId(String.valueOf(config.getUserId())).accessToken(asToken));
+            new RequestParams().userId(String.valueOf(config.getUserId())).accessToken(asToken), getFilterRegistry());
         Context<C, D, S, E> context = new Context<>(matrixClient, service, this);
         context.setConfig(config);
         return context;
@@ -65,12 +77,62 @@ public class ApplicationServiceBot<C extends BotConfig, D extends BotDao<C>, S e
         }
     }
 
+    @Override
+    protected boolean isApplicationService() {
+        return true;
+    }
+
     /**
      * Send event.
      *
      * @param event event.
      */
     public void send(RoomEvent event) {
+        send(Collections.singletonList(event));
+    }
+
+    /**
+     * Send the batch of the events, for example all events of the one appservice transaction.
+     * <br>
+     * Events are grouped by rooms and each room is processed once in the order of the first event of the room. The read receipt
+     * is sent once per room and the configuration is saved once per batch.
+     *
+     * @param events events.
+     */
+    public void send(List<RoomEvent> events) {
+        Map<String, List<Event>> rooms = new LinkedHashMap<>();
+        for (RoomEvent event : events) {
+            rooms.computeIfAbsent(event.getRoomId(), roomId -> new ArrayList<>()).add(event);
+        }
+
+        LoopState state = LoopState.RUN;
+        getContext().beginBatch();
+        try {
+            for (Map.Entry<String, List<Event>> entry : rooms.entrySet()) {
+                state = process(entry.getKey(), entry.getValue());
+                if (LoopState.EXIT.equals(state)) {
+                    break;
+                }
+            }
+        } finally {
+            getContext().endBatch();
+        }
+
+        if (LoopState.EXIT.equals(state)) {
+            getContext().shutdown();
+        }
+    }
+
+    /**
+     * Process the events of the one room.
+     *
+     * @param roomId room id.
+     * @param events events of the room.
+     * @return next loop state.
+     */
+    protected LoopState process(String roomId, List<Event> events) {
+        getMemberCache().update(roomId, events);
+        getJoinedRooms().update(roomId, events);
         LoopState state = LoopState.RUN;
         LOGGER.debug("State: {}", state);
         switch (getContext().getConfig().getState()) {
@@ -79,11 +141,11 @@ public class ApplicationServiceBot<C extends BotConfig, D extends BotDao<C>, S e
                 break;
             case REGISTERED:
                 Map<String, List<Event>> eventMap = new HashMap<>();
-                eventMap.put(event.getRoomId(), Collections.singletonList(event));
+                eventMap.put(roomId, events);
                 state = registeredState(eventMap);
                 break;
             case JOINED:
-                state = processJoinedRoom(event.getRoomId(), Collections.singletonList(event));
+                state = processJoinedRoom(roomId, events);
                 break;
             case DELETED:
                 state = deletedState();
@@ -91,9 +153,6 @@ public class ApplicationServiceBot<C extends BotConfig, D extends BotDao<C>, S e
             default:
                 LOGGER.error("Unknown state: " + getContext().getConfig().getState());
         }
-
-        if (LoopState.EXIT.equals(state)) {
-            getContext().getShutdownListeners().forEach(Supplier::get);
-        }
+        return state;
     }
 }
@@ -17,13 +17,18 @@
 package io.github.ma1uta.matrix.bot;
 
 import io.github.ma1uta.matrix.Id;
+import io.github.ma1uta.matrix.client.AuthenticationRequred;
 import io.github.ma1uta.matrix.client.MatrixClient;
 import io.github.ma1uta.matrix.client.RequestParams;
+import io.github.ma1uta.matrix.client.ephemeral.EphemeralCoalescer;
 import io.github.ma1uta.matrix.client.factory.RequestFactory;
+import io.github.ma1uta.matrix.client.filter.FilterOptimizer;
+import io.github.ma1uta.matrix.client.filter.FilterRegistry;
 import io.github.ma1uta.matrix.client.model.account.RegisterRequest;
 import io.github.ma1uta.matrix.client.model.filter.FilterData;
-import io.github.ma1uta.matrix.client.model.filter.RoomEventFilter;
-import io.github.ma1uta.matrix.client.model.filter.RoomFilter;
+import io.github.ma1uta.matrix.client.model.sync.SyncResponse;
+import io.github.ma1uta.matrix.client.sync.RoomMemberCache;
+import io.github.ma1uta.matrix.client.sync.TimelineGapFiller;
 import io.github.ma1uta.matrix.event.Event;
 import io.github.ma1uta.matrix.event.RoomEvent;
 import io.github.ma1uta.matrix.event.RoomMember;
@@ -31,18 +36,23 @@ import io.github.ma1uta.matrix.event.RoomMessage;
 import io.github.ma1uta.matrix.event.content.RoomMemberContent;
 import io.github.ma1uta.matrix.event.content.RoomMessageContent;
 import io.github.ma1uta.matrix.event.message.Text;
+import io.github.ma1uta.matrix.impl.exception.MatrixException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.reflect.InvocationTargetException;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -57,7 +67,23 @@ public class Bot<C extends BotConfig, D extends BotDao<C>, S extends PersistentS
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Bot.class);
 
-    private final Map<String, Command<C, D, S, E>> commands;
+    private static final String USER_IN_USE = "M_USER_IN_USE";
+
+    private final CommandDispatcher<C, D, S, E> dispatcher;
+
+    private final FilterRegistry filterRegistry;
+
+    private final FilterOptimizer filterOptimizer;
+
+    private final RoomMemberCache memberCache;
+
+    private final JoinedRoomTracker joinedRooms;
+
+    private TimelineGapFiller gapFiller;
+
+    private EphemeralCoalescer ephemeralCoalescer;
+
+    private OutboundQueue outboundQueue;
 
     private BiConsumer<Context<C, D, S, E>, D> initAction;
 
@@ -65,26 +91,60 @@ public class Bot<C extends BotConfig, D extends BotDao<C>, S extends PersistentS
 
     private final boolean exitOnEmptyRooms;
 
-    private final Set<String> skipTimelineRooms = new HashSet<>();
+    private final Set<String> skipTimelineRooms = ConcurrentHashMap.newKeySet();
+
+    private CommandExecutor commandExecutor = new CommandExecutor();
+
+    private TokenBucket authLimiter;
+
+    private volatile boolean filterChanged;
+
+    private final AtomicLong receiptSequence = new AtomicLong();
+
+    private final Map<String, Long> receiptOrders = new ConcurrentHashMap<>();
 
     public Bot(RequestFactory factory, String asToken, boolean exitOnEmptyRooms, C config, S service,
                List<Class<? extends Command<C, D, S, E>>> commandsClasses) {
+        this(factory, asToken, exitOnEmptyRooms, config, service, commandsClasses, new FilterRegistry());
+    }
+
+    public Bot(RequestFactory factory, String asToken, boolean exitOnEmptyRooms, C config, S service,
+               List<Class<? extends Command<C, D, S, E>>> commandsClasses, FilterRegistry filterRegistry) {
+        this(factory, asToken, exitOnEmptyRooms, config, service, CommandRegistry.of(commandsClasses), filterRegistry);
+    }
+
+    public Bot(RequestFactory factory, String asToken, boolean exitOnEmptyRooms, C config, S service,
+               CommandRegistry<C, D, S, E> commandRegistry, FilterRegistry filterRegistry) {
+        this.filterRegistry = filterRegistry;
         this.context = init(factory, asToken, config, service);
         this.exitOnEmptyRooms = exitOnEmptyRooms;
-        this.commands = new HashMap<>(commandsClasses.size());
-        commandsClasses.forEach(cl -> {
-            try {
-                Command<C, D, S, E> command = cl.getDeclaredConstructor().newInstance();
-                this.commands.put(command.name(), command);
-            } catch (InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
-                LOGGER.error("Cannot create new instance of the command: " + cl.getCanonicalName(), e);
-            }
-        });
+        this.dispatcher = new CommandDispatcher<>(commandRegistry);
+        this.filterOptimizer = createFilterOptimizer();
+        this.filterOptimizer.addListener(() -> filterChanged = true);
+        this.memberCache = new RoomMemberCache(() -> getContext().getMatrixClient().event());
+        this.joinedRooms = new JoinedRoomTracker(() -> getContext().getMatrixClient().room().joinedRooms(),
+            () -> getContext().getConfig().getUserId());
+    }
+
+    /**
+     * Create the sync filter optimizer with event types which are handled by this bot.
+     * <br>
+     * Commands handle only {@code m.room.message} events from the timeline, the {@code m.room.member} events of the timeline
+     * update the {@link #getJoinedRooms()}. The room members are lazy-loaded into the {@link #getMemberCache()}, all other sections
+     * are excluded.
+     *
+     * @return The filter optimizer.
+     */
+    protected FilterOptimizer createFilterOptimizer() {
+        return new FilterOptimizer()
+            .require(FilterOptimizer.Section.TIMELINE, RoomMessage.TYPE, RoomMember.TYPE)
+            .require(FilterOptimizer.Section.STATE, RoomMember.TYPE)
+            .lazyLoadMembers(true);
     }
 
     protected Context<C, D, S, E> init(RequestFactory factory, String asToken, C config, S service) {
         MatrixClient matrixClient = new MatrixClient(factory,
-            new RequestParams().userId(String.valueOf(config.getUserId())).accessToken(asToken));
+            new RequestParams().userId(String.valueOf(config.getUserId())).accessToken(asToken), getFilterRegistry());
         Context<C, D, S, E> context = new Context<>(matrixClient, service, this);
         context.setConfig(config);
         return context;
@@ -92,11 +152,24 @@ public class Bot<C extends BotConfig, D extends BotDao<C>, S extends PersistentS
 
     /**
      * Run startup action.
+     * <br>
+     * The stored access token is reused when present, the bot logs in only when the token is missing or has been rejected.
      */
     public void init() {
         Context<C, D, S, E> context = getContext();
         C config = context.getConfig();
-        context.getMatrixClient().auth().login(config.getUserId(), config.getPassword());
+        if (config.getAccessToken() != null) {
+            context.getMatrixClient().getDefaultParams().accessToken(config.getAccessToken()).deviceId(config.getDeviceId());
+        } else if (!BotState.NEW.equals(config.getState())) {
+            login();
+        }
+
+        if (!BotState.NEW.equals(config.getState())) {
+            withLogin(() -> {
+                refreshFilter();
+                return null;
+            });
+        }
 
         if (getInitAction() != null) {
             context.runInTransaction((ctx, dao) -> {
@@ -105,8 +178,244 @@ public class Bot<C extends BotConfig, D extends BotDao<C>, S extends PersistentS
         }
     }
 
+    /**
+     * Login with the bot's password and save the new session (access token and device id).
+     * <br>
+     * The existing device id is reused to avoid creating a new device on each login. Waits for the {@link #getAuthLimiter()} if set.
+     */
+    public void login() {
+        acquireAuth();
+        Context<C, D, S, E> context = getContext();
+        C config = context.getConfig();
+        MatrixClient matrixClient = context.getMatrixClient();
+        LOGGER.debug("Login: {}", config.getUserId());
+        matrixClient.auth().login(config.getUserId(), config.getPassword(), config.getDeviceId()).join();
+        saveSession();
+    }
+
+    /**
+     * Login without blocking the http threads.
+     * <br>
+     * The wait for the {@link #getAuthLimiter()} and the save of the session run in the executor, the login request is sent
+     * asynchronously.
+     *
+     * @param executor The executor for the blocking steps.
+     * @return the login result.
+     */
+    public CompletableFuture<Void> loginAsync(Executor executor) {
+        Context<C, D, S, E> context = getContext();
+        C config = context.getConfig();
+        MatrixClient matrixClient = context.getMatrixClient();
+        return CompletableFuture.runAsync(this::acquireAuth, executor).thenCompose(v -> {
+            LOGGER.debug("Login: {}", config.getUserId());
+            return matrixClient.auth().login(config.getUserId(), config.getPassword(), config.getDeviceId());
+        }).thenRunAsync(this::saveSession, executor);
+    }
+
+    /**
+     * Save the current session of the client into the bot's config.
+     */
+    protected void saveSession() {
+        RequestParams params = getContext().getMatrixClient().getDefaultParams();
+        String accessToken = params.getAccessToken();
+        String deviceId = params.getDeviceId();
+        getContext().runInTransaction((ctx, dao) -> {
+            ctx.getConfig().setAccessToken(accessToken);
+            if (deviceId != null) {
+                ctx.getConfig().setDeviceId(deviceId);
+            }
+        });
+    }
+
+    /**
+     * Invoke the action and repeat it once after the new login if the stored session has been rejected.
+     *
+     * @param action the action.
+     * @param <T>    the result type.
+     * @return the action result.
+     */
+    protected <T> T withLogin(Supplier<T> action) {
+        try {
+            return action.get();
+        } catch (RuntimeException e) {
+            if (!isAuthenticationRequired(e)) {
+                throw e;
+            }
+            LOGGER.warn("Session of the {} has been expired, login again.", getContext().getConfig().getUserId());
+            login();
+            return action.get();
+        }
+    }
+
+    /**
+     * Check that the exception is caused by the rejected access token.
+     *
+     * @param error the exception.
+     * @return {@code true} if the bot should login again.
+     */
+    protected boolean isAuthenticationRequired(Throwable error) {
+        Throwable cause = error;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause instanceof AuthenticationRequred;
+    }
+
+    /**
+     * Wait for the authentication rate limiter.
+     */
+    protected void acquireAuth() {
+        TokenBucket limiter = getAuthLimiter();
+        if (limiter == null) {
+            return;
+        }
+        try {
+            limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the authentication limiter", e);
+        }
+    }
+
+    public TokenBucket getAuthLimiter() {
+        return authLimiter;
+    }
+
+    public void setAuthLimiter(TokenBucket authLimiter) {
+        this.authLimiter = authLimiter;
+    }
+
+    public FilterRegistry getFilterRegistry() {
+        return filterRegistry;
+    }
+
+    public FilterOptimizer getFilterOptimizer() {
+        return filterOptimizer;
+    }
+
+    public RoomMemberCache getMemberCache() {
+        return memberCache;
+    }
+
+    public JoinedRoomTracker getJoinedRooms() {
+        return joinedRooms;
+    }
+
+    public EphemeralCoalescer getEphemeralCoalescer() {
+        return ephemeralCoalescer;
+    }
+
+    /**
+     * Set the coalescer of the read receipts.
+     *
+     * @param ephemeralCoalescer The coalescer or {@code null} to send each receipt immediately.
+     */
+    public void setEphemeralCoalescer(EphemeralCoalescer ephemeralCoalescer) {
+        this.ephemeralCoalescer = ephemeralCoalescer;
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    /**
+     * Set the outbound queue to send replies, notices and receipts by priority with the rate limit.
+     *
+     * @param outboundQueue The outbound queue or {@code null} to send requests immediately.
+     */
+    public void setOutboundQueue(OutboundQueue outboundQueue) {
+        this.outboundQueue = outboundQueue;
+    }
+
+    /**
+     * Send the request through the outbound queue if it is set.
+     *
+     * @param priority The priority.
+     * @param mergeKey The key to merge requests or {@code null}.
+     * @param request  The request.
+     * @param <T>      The response type.
+     * @return The response.
+     */
+    public <T> CompletableFuture<T> send(OutboundQueue.Priority priority, String mergeKey, Supplier<CompletableFuture<T>> request) {
+        OutboundQueue queue = getOutboundQueue();
+        return queue != null ? queue.submit(priority, mergeKey, request) : request.get();
+    }
+
+    /**
+     * Reply to the command.
+     *
+     * @param roomId The room id.
+     * @param text   The reply.
+     * @return The event id.
+     */
+    public CompletableFuture<String> reply(String roomId, String text) {
+        return send(OutboundQueue.Priority.REPLY, null, () -> getContext().getMatrixClient().event().sendNotice(roomId, text));
+    }
+
+    /**
+     * Send the low priority notice.
+     *
+     * @param roomId The room id.
+     * @param text   The notice.
+     * @return The event id.
+     */
+    public CompletableFuture<String> notice(String roomId, String text) {
+        return send(OutboundQueue.Priority.NOTICE, null, () -> getContext().getMatrixClient().event().sendNotice(roomId, text));
+    }
+
+    public TimelineGapFiller getGapFiller() {
+        return gapFiller;
+    }
+
+    /**
+     * Set the gap filler to receive all events skipped by the limited timelines.
+     * <br>
+     * The filler requests the events with the timeline filter of the {@link #getFilterOptimizer()}, the filter is updated when
+     * the sync filter is refreshed.
+     *
+     * @param gapFiller The gap filler or {@code null} to skip missed events.
+     */
+    public void setGapFiller(TimelineGapFiller gapFiller) {
+        this.gapFiller = gapFiller;
+        updateGapFilter();
+    }
+
+    /**
+     * Fill the gaps of the limited timelines if the gap filler is set.
+     * <br>
+     * When the gaps can't be filled the limited timelines are processed as is, so the persistent error of the
+     * {@code /messages} doesn't stop the sync loop.
+     *
+     * @param sync  The sync response.
+     * @param since The batch token which was used to request this sync response.
+     * @return The sync response with the filled timelines.
+     */
+    protected SyncResponse fillGaps(SyncResponse sync, String since) {
+        TimelineGapFiller filler = getGapFiller();
+        if (filler == null) {
+            return sync;
+        }
+        try {
+            return filler.fill(sync, since).join();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Cannot fill the gaps of the limited timelines, process them as is", e);
+            return sync;
+        }
+    }
+
+    private void updateGapFilter() {
+        TimelineGapFiller filler = getGapFiller();
+        if (filler != null) {
+            filler.setFilter(getFilterOptimizer().timelineFilter());
+        }
+    }
+
     public Map<String, Command<C, D, S, E>> getCommands() {
-        return commands;
+        return getDispatcher().getCommands();
+    }
+
+    public CommandDispatcher<C, D, S, E> getDispatcher() {
+        return dispatcher;
     }
 
     public Context<C, D, S, E> getContext() {
@@ -125,6 +434,21 @@ public class Bot<C extends BotConfig, D extends BotDao<C>, S extends PersistentS
         this.initAction = initAction;
     }
 
+    public CommandExecutor getCommandExecutor() {
+        return commandExecutor;
+    }
+
+    /**
+     * Set the executor of the commands.
+     * <br>
+     * By default commands are invoked by the shared threads of the {@link CommandExecutor#CommandExecutor()}.
+     *
+     * @param commandExecutor The command executor.
+     */
+    public void setCommandExecutor(CommandExecutor commandExecutor) {
+        this.commandExecutor = commandExecutor;
+    }
+
     public Set<String> getSkipTimelineRooms() {
         return skipTimelineRooms;
     }
@@ -137,35 +461,155 @@ public class Bot<C extends BotConfig, D extends BotDao<C>, S extends PersistentS
      * @return {@link LoopState#NEXT_STATE} always. Move to the next state.
      */
     public LoopState newState() {
-        getContext().runInTransaction((context, dao) -> {
-            LOGGER.debug("Start registration.");
-            BotConfig config = context.getConfig();
+        acquireAuth();
+        registerAsync().join();
+        return LoopState.NEXT_STATE;
+    }
+
+    /**
+     * Register the bot without blocking, the blocking steps run in the {@link ForkJoinPool#commonPool()}.
+     *
+     * @return the registration result.
+     * @see #registerAsync(Executor)
+     */
+    public CompletableFuture<Void> registerAsync() {
+        return registerAsync(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Register the bot without blocking.
+     * <br>
+     * The user is registered first, then the display name and the filter are set in parallel. The configuration is saved
+     * with the {@link BotState#REGISTERED} state when all requests are finished. If the user already exists (for example, the
+     * previous registration was interrupted) the registration is continued.
+     * <br>
+     * The login of the existing user and the save of the configuration run in the executor, so the http threads are never
+     * blocked.
+     *
+     * @param executor The executor for the blocking steps.
+     * @return the registration result.
+     */
+    public CompletableFuture<Void> registerAsync(Executor executor) {
+        C config = getContext().getConfig();
+        LOGGER.debug("Start registration.");
 
-            RegisterRequest registerRequest = new RegisterRequest();
-            registerRequest
-                .setUsername(Id.localPart(config.getUserId()).orElseThrow(() -> new IllegalArgumentException("Missing bot id.")));
-            registerRequest.setInitialDeviceDisplayName(config.getDisplayName());
-            registerRequest.setDeviceId(config.getDeviceId());
+        RegisterRequest registerRequest = new RegisterRequest();
+        registerRequest
+            .setUsername(Id.localPart(config.getUserId()).orElseThrow(() -> new IllegalArgumentException("Missing bot id.")));
+        registerRequest.setInitialDeviceDisplayName(config.getDisplayName());
+        registerRequest.setDeviceId(config.getDeviceId());
 
-            MatrixClient matrixClient = context.getMatrixClient();
-            matrixClient.account().register(registerRequest);
+        MatrixClient matrixClient = getContext().getMatrixClient();
+        return matrixClient.account().register(registerRequest).handle((response, error) -> {
+            if (error == null) {
+                return false;
+            }
+            if (!isUserInUse(error)) {
+                throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+            }
+            LOGGER.debug("User {} already exists, continue registration.", config.getUserId());
+            return true;
+        }).thenCompose(exists -> {
+            return exists && !isApplicationService() ? loginAsync(executor) : CompletableFuture.<Void>completedFuture(null);
+        }).thenCompose(v -> {
             LOGGER.debug("Set new display name: {}", config.getDisplayName());
-            matrixClient.profile().setDisplayName(config.getDisplayName());
+            CompletableFuture<?> profile = matrixClient.profile().setDisplayName(config.getDisplayName());
+            FilterData filterData = isApplicationService() ? null : getFilterOptimizer().build();
+            CompletableFuture<String> filter = filterData == null
+                ? CompletableFuture.completedFuture(null)
+                : matrixClient.filter().filterId(filterData);
+            return CompletableFuture.allOf(profile, filter).thenRunAsync(() -> {
+                RequestParams params = matrixClient.getDefaultParams();
+                getContext().runInTransaction((context, dao) -> {
+                    C registered = context.getConfig();
+                    if (!isApplicationService()) {
+                        registered.setAccessToken(params.getAccessToken());
+                        if (params.getDeviceId() != null) {
+                            registered.setDeviceId(params.getDeviceId());
+                        }
+                    }
+                    registered.setFilterId(filter.join());
+                    registered.setFilterHash(filterData == null ? null : getFilterRegistry().hash(filterData));
+                    LOGGER.debug("Set new filter: {}", registered.getFilterId());
+                    registered.setState(BotState.REGISTERED);
+                });
+                LOGGER.debug("Finish registration.");
+            }, executor);
+        });
+    }
+
+    /**
+     * Check that the bot is the virtual user of the application service.
+     * <br>
+     * Application service bots use the appservice token instead of own session and receive events without the sync, so they
+     * don't need the filter.
+     *
+     * @return {@code true} for the application service bot, else {@code false}.
+     */
+    protected boolean isApplicationService() {
+        return false;
+    }
 
-            RoomEventFilter roomEventFilter = new RoomEventFilter();
-            roomEventFilter.setTypes(Collections.singletonList(RoomMessage.TYPE));
-            RoomFilter roomFilter = new RoomFilter();
-            roomFilter.setTimeline(roomEventFilter);
-            FilterData filter = new FilterData();
-            filter.setRoom(roomFilter);
-            config.setFilterId(matrixClient.filter().uploadFilter(filter).join().getFilterId());
-            LOGGER.debug("Set new filter: {}", config.getFilterId());
+    private static boolean isUserInUse(Throwable error) {
+        Throwable cause = error;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause instanceof MatrixException && USER_IN_USE.equals(((MatrixException) cause).getErrcode());
+    }
 
-            config.setState(BotState.REGISTERED);
+    /**
+     * Check that the handled events were changed via {@link #getFilterOptimizer()} after the last filter refresh.
+     *
+     * @return {@code true} if the filter should be refreshed, else {@code false}.
+     */
+    public boolean isFilterChanged() {
+        return filterChanged;
+    }
 
-            LOGGER.debug("Finish registration.");
-        });
-        return LoopState.NEXT_STATE;
+    /**
+     * Upload the sync filter only if it differs from the stored one.
+     * <br>
+     * The stored filter id is reused when the hash of the canonical filter matches the stored hash, so restarts don't upload
+     * the filter and don't save the configuration. Application service bots don't use the filter.
+     */
+    public void refreshFilter() {
+        if (isApplicationService()) {
+            return;
+        }
+        filterChanged = false;
+        updateGapFilter();
+        C config = getContext().getConfig();
+        FilterData filter = getFilterOptimizer().build();
+        String hash = getFilterRegistry().hash(filter);
+        if (config.getFilterId() != null && hash.equals(config.getFilterHash())) {
+            getFilterRegistry().getStore().save(config.getUserId(), hash, config.getFilterId());
+            return;
+        }
+        updateFilter(filter, hash);
+    }
+
+    /**
+     * Rebuild the sync filter and save the new filter id if the filter was changed.
+     */
+    public void updateFilter() {
+        filterChanged = false;
+        updateGapFilter();
+        FilterData filter = getFilterOptimizer().build();
+        updateFilter(filter, getFilterRegistry().hash(filter));
+    }
+
+    private void updateFilter(FilterData filter, String hash) {
+        Context<C, D, S, E> context = getContext();
+        String filterId = context.getMatrixClient().filter().filterId(filter).join();
+        C config = context.getConfig();
+        if (!filterId.equals(config.getFilterId()) || !hash.equals(config.getFilterHash())) {
+            LOGGER.debug("Set new filter: {}", filterId);
+            context.runInTransaction((ctx, dao) -> {
+                ctx.getConfig().setFilterId(filterId);
+                ctx.getConfig().setFilterHash(hash);
+            });
+        }
     }
 
     protected LoopState registeredState(Map<String, List<Event>> eventMap) {
@@ -206,7 +650,13 @@ public class Bot<C extends BotConfig, D extends BotDao<C>, S extends PersistentS
                     if (state instanceof RoomEvent) {
                         String roomId = eventEntry.getKey();
                         LOGGER.debug("Join to room {}", roomId);
-                        context.getMatrixClient().room().joinByIdOrAlias(roomId);
+                        try {
+                            context.getMatrixClient().room().joinByIdOrAlias(roomId)
+                                .thenRun(() -> getJoinedRooms().joined(roomId)).join();
+                        } catch (CompletionException e) {
+                            LOGGER.error(String.format("Cannot join to the room %s", roomId), e.getCause() != null ? e.getCause() : e);
+                            continue;
+                        }
 
                         C config = context.getConfig();
                         config.setState(BotState.JOINED);
@@ -229,7 +679,7 @@ public class Bot<C extends BotConfig, D extends BotDao<C>, S extends PersistentS
         getContext().runInTransaction((context, dao) -> {
             LOGGER.debug("Delete bot");
             context.getMatrixClient().account().deactivate(null);
-            dao.delete(context.getConfig());
+            context.deleteConfig(dao);
         });
         return LoopState.EXIT;
     }
@@ -244,12 +694,12 @@ public class Bot<C extends BotConfig, D extends BotDao<C>, S extends PersistentS
     public LoopState processJoinedRoom(String roomId, List<Event> events) {
         String lastEvent = null;
         long lastOriginTs = 0;
-        MatrixClient matrixClient = getContext().getMatrixClient();
-        boolean invoked = false;
+        long receiptOrder = receiptSequence.incrementAndGet();
+        List<CompletableFuture<Boolean>> invocations = new ArrayList<>();
         for (Event event : events) {
             if (!getSkipTimelineRooms().contains(roomId)) {
                 LOGGER.debug("Process events");
-                invoked = processEvent(roomId, event);
+                invocations.add(processEventAsync(roomId, event));
             } else {
                 LOGGER.debug("Skip timelines");
             }
@@ -261,6 +711,39 @@ public class Bot<C extends BotConfig, D extends BotDao<C>, S extends PersistentS
                 }
             }
         }
+        getSkipTimelineRooms().remove(roomId);
+
+        String receiptEvent = lastEvent;
+        CompletableFuture.allOf(invocations.toArray(new CompletableFuture[0])).thenRun(() -> {
+            boolean invoked = invocations.stream().anyMatch(CompletableFuture::join);
+            sendReceipt(roomId, receiptEvent, invoked, receiptOrder);
+        });
+        return LoopState.RUN;
+    }
+
+    /**
+     * Send the read receipt according to the receipt policy.
+     *
+     * @param roomId    room id.
+     * @param lastEvent the last event of the room.
+     * @param invoked   {@code true} if any command was invoked, else {@code false}.
+     */
+    protected void sendReceipt(String roomId, String lastEvent, boolean invoked) {
+        sendReceipt(roomId, lastEvent, invoked, receiptSequence.incrementAndGet());
+    }
+
+    /**
+     * Send the read receipt according to the receipt policy.
+     * <br>
+     * The receipts are sent when the commands of the batch are finished, so the batches can finish out of order. The receipt of
+     * the earlier batch is skipped if the receipt of the later batch is already requested.
+     *
+     * @param roomId    room id.
+     * @param lastEvent the last event of the room.
+     * @param invoked   {@code true} if any command was invoked, else {@code false}.
+     * @param order     the order of the batch, greater is newer.
+     */
+    protected void sendReceipt(String roomId, String lastEvent, boolean invoked, long order) {
         C config = getContext().getConfig();
         boolean read = config.getReceiptPolicy() == null || ReceiptPolicy.READ.equals(config.getReceiptPolicy());
         boolean executed = config.getReceiptPolicy() != null && ReceiptPolicy.EXECUTED.equals(config.getReceiptPolicy()) && invoked;
@@ -270,10 +753,14 @@ public class Bot<C extends BotConfig, D extends BotDao<C>, S extends PersistentS
         LOGGER.debug("Last event: {}", lastEvent);
         if (lastEvent != null && (read || executed)) {
             LOGGER.debug("send receipt");
-            matrixClient.receipt().sendReceipt(roomId, lastEvent);
+            EphemeralCoalescer coalescer = getEphemeralCoalescer();
+            if (coalescer != null) {
+                coalescer.receipt(roomId, lastEvent, order);
+            } else if (receiptOrders.merge(roomId, order, Math::max) == order) {
+                send(OutboundQueue.Priority.RECEIPT, "receipt:" + roomId,
+                    () -> getContext().getMatrixClient().receipt().sendReceipt(roomId, lastEvent));
+            }
         }
-        getSkipTimelineRooms().remove(roomId);
-        return LoopState.RUN;
     }
 
     /**
@@ -284,9 +771,21 @@ public class Bot<C extends BotConfig, D extends BotDao<C>, S extends PersistentS
      * @return {@code true} if any command was invoked, else {@code false}.
      */
     protected boolean processEvent(String roomId, Event event) {
+        return processEventAsync(roomId, event).join();
+    }
+
+    /**
+     * Process an one event asynchronously.
+     * <br>
+     * The command is submitted to the {@link #getCommandExecutor()}, so the commands of the one room are invoked in order.
+     *
+     * @param roomId room id.
+     * @param event  event.
+     * @return {@code true} if any command was invoked, else {@code false}.
+     */
+    protected CompletableFuture<Boolean> processEventAsync(String roomId, Event event) {
         MatrixClient matrixClient = getContext().getMatrixClient();
         C config = getContext().getConfig();
-        boolean invoked = false;
         if (event instanceof RoomMessage) {
             RoomMessage roomMessage = (RoomMessage) event;
             RoomMessageContent content = (RoomMessageContent) roomMessage.getContent();
@@ -298,20 +797,19 @@ public class Bot<C extends BotConfig, D extends BotDao<C>, S extends PersistentS
                 LOGGER.debug("Permit: {}", permit);
             }
             boolean defaultCommand = config.getDefaultCommand() != null && !config.getDefaultCommand().trim().isEmpty();
+            String prefix = getPrefix();
             if (!matrixClient.getUserId().equals(roomMessage.getSender())
                 && content instanceof Text
                 && permit
-                && (body.startsWith(getPrefix()) || defaultCommand)) {
-                try {
-                    invoked = getContext().runInTransaction((context, dao) -> {
-                        return processAction(roomId, roomMessage, body);
+                && (body.startsWith(prefix) || defaultCommand)) {
+                return getCommandExecutor().submit(roomId, () -> processActionAsync(roomId, roomMessage, body, prefix))
+                    .exceptionally(e -> {
+                        LOGGER.error(String.format("Cannot perform action '%s'", body), e);
+                        return false;
                     });
-                } catch (Exception e) {
-                    LOGGER.error(String.format("Cannot perform action '%s'", body), e);
-                }
             }
         }
-        return invoked;
+        return CompletableFuture.completedFuture(false);
     }
 
     /**
@@ -334,8 +832,7 @@ public class Bot<C extends BotConfig, D extends BotDao<C>, S extends PersistentS
      */
     public String getPrefix() {
         C config = getContext().getConfig();
-        String prefix = config.getPrefix();
-        return prefix == null ? "!" : prefix.replaceAll("\\{\\{display_name}}", config.getDisplayName());
+        return getDispatcher().prefix(config.getPrefix(), config.getDisplayName());
     }
 
     /**
@@ -347,23 +844,43 @@ public class Bot<C extends BotConfig, D extends BotDao<C>, S extends PersistentS
      * @return {@code true} if invoked command, else {@code false}.
      */
     protected boolean processAction(String roomId, RoomEvent event, String content) {
-        String contentWithoutPrefix = content.substring(getPrefix().length());
-        String[] arguments = contentWithoutPrefix.trim().split("\\s");
-        String commandName = arguments[0];
-        Command<C, D, S, E> command = getCommands().get(commandName);
+        return processActionAsync(roomId, event, content).toCompletableFuture().join();
+    }
+
+    /**
+     * Process action asynchronously.
+     *
+     * @param roomId  room id.
+     * @param event   event.
+     * @param content command.
+     * @return {@code true} if invoked command, else {@code false}.
+     */
+    protected CompletionStage<Boolean> processActionAsync(String roomId, RoomEvent event, String content) {
+        return processActionAsync(roomId, event, content, getPrefix());
+    }
+
+    /**
+     * Process action asynchronously with the already resolved prefix.
+     *
+     * @param roomId  room id.
+     * @param event   event.
+     * @param content command.
+     * @param prefix  the effective prefix.
+     * @return {@code true} if invoked command, else {@code false}.
+     */
+    protected CompletionStage<Boolean> processActionAsync(String roomId, RoomEvent event, String content, String prefix) {
         C config = getContext().getConfig();
-        String argument = Arrays.stream(arguments).skip(1).collect(Collectors.joining(" "));
-        String defaultCommand = config.getDefaultCommand();
-        if (command == null && defaultCommand != null && !defaultCommand.trim().isEmpty()) {
-            command = getCommands().get(defaultCommand);
-            argument = content;
+        CommandDispatcher.Dispatch<C, D, S, E> dispatch = getDispatcher().dispatch(content, prefix, config.getDefaultCommand());
+        if (dispatch == null) {
+            return CompletableFuture.completedFuture(false);
         }
+        Command<C, D, S, E> command = dispatch.getCommand();
         if (command != null) {
             LOGGER.debug("invoke command: {}", command.getClass());
-            return command.invoke(getContext(), roomId, event, argument);
+            return command.invokeAsync(getContext(), roomId, event, dispatch.getArguments());
         } else {
-            getContext().getMatrixClient().event().sendNotice(roomId, "Unknown command: " + commandName);
-            return false;
+            notice(roomId, "Unknown command: " + dispatch.getName());
+            return CompletableFuture.completedFuture(false);
         }
     }
 }
@@ -29,7 +29,7 @@ import javax.persistence.MappedSuperclass;
  * Matrix bot persistent configuration.
  */
 @MappedSuperclass
-public class BotConfig {
+public class BotConfig implements Cloneable {
 
     /**
      * Default timeout.
@@ -62,6 +62,12 @@ public class BotConfig {
     @Column(name = "device_id")
     private String deviceId;
 
+    /**
+     * Bot's access token.
+     */
+    @Column(name = "access_token")
+    private String accessToken;
+
     /**
      * Bot's display name.
      */
@@ -74,6 +80,18 @@ public class BotConfig {
     @Column(name = "filter_id")
     private String filterId;
 
+    /**
+     * Hash of the canonical filter which was uploaded as the {@link #filterId}.
+     */
+    @Column(name = "filter_hash")
+    private String filterHash;
+
+    /**
+     * Fencing token of the bot's lease when the bot runs in the cluster.
+     */
+    @Column(name = "lease_token")
+    private Long leaseToken;
+
     /**
      * Bot's batch to prevent process old events.
      */
@@ -154,6 +172,14 @@ public class BotConfig {
         this.deviceId = deviceId;
     }
 
+    public String getAccessToken() {
+        return accessToken;
+    }
+
+    public void setAccessToken(String accessToken) {
+        this.accessToken = accessToken;
+    }
+
     public String getDisplayName() {
         return displayName;
     }
@@ -170,6 +196,22 @@ public class BotConfig {
         this.filterId = filterId;
     }
 
+    public String getFilterHash() {
+        return filterHash;
+    }
+
+    public void setFilterHash(String filterHash) {
+        this.filterHash = filterHash;
+    }
+
+    public Long getLeaseToken() {
+        return leaseToken;
+    }
+
+    public void setLeaseToken(Long leaseToken) {
+        this.leaseToken = leaseToken;
+    }
+
     public String getNextBatch() {
         return nextBatch;
     }
@@ -242,6 +284,23 @@ public class BotConfig {
         this.receiptPolicy = receiptPolicy;
     }
 
+    /**
+     * Shallow copy of the configuration including the fields of the subclasses.
+     * <br>
+     * Used to save the configuration on the other thread while the bot continues to change it.
+     *
+     * @return The copy.
+     */
+    public BotConfig copy() {
+        try {
+            BotConfig copy = (BotConfig) super.clone();
+            copy.password = password == null ? null : password.clone();
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("Cannot copy the configuration.", e);
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) {
@@ -16,7 +16,11 @@
 
 package io.github.ma1uta.matrix.bot;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * DAO of the bot configuration.
@@ -31,6 +35,43 @@ public interface BotDao<C extends BotConfig> {
      */
     List<C> findAll();
 
+    /**
+     * Find the bots with the specified user ids.
+     * <br>
+     * The default implementation filters the {@link #findAll()}, the dao should override it with the query by the user ids.
+     *
+     * @param userIds mxids.
+     * @return found bots, the missing user ids are skipped.
+     */
+    default List<C> findByUserIds(Collection<String> userIds) {
+        Set<String> ids = new HashSet<>(userIds);
+        List<C> found = new ArrayList<>();
+        for (C config : findAll()) {
+            if (ids.contains(config.getUserId())) {
+                found.add(config);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Find the bots in the specified state.
+     * <br>
+     * The default implementation filters the {@link #findAll()}, the dao should override it with the query by the state.
+     *
+     * @param state bot's state.
+     * @return found bots.
+     */
+    default List<C> findByState(BotState state) {
+        List<C> found = new ArrayList<>();
+        for (C config : findAll()) {
+            if (state.equals(config.getState())) {
+                found.add(config);
+            }
+        }
+        return found;
+    }
+
     /**
      * Check that specified user exists.
      *
@@ -47,6 +88,20 @@ public interface BotDao<C extends BotConfig> {
      */
     C save(C data);
 
+    /**
+     * Save bot's data by the one batch.
+     *
+     * @param data bot's data.
+     * @return saved entities in the same order.
+     */
+    default List<C> saveAll(List<C> data) {
+        List<C> saved = new ArrayList<>(data.size());
+        for (C config : data) {
+            saved.add(save(config));
+        }
+        return saved;
+    }
+
     /**
      * Delete bot's data.
      *
@@ -0,0 +1,410 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot;
+
+import io.github.ma1uta.matrix.bot.cluster.ClusterCoordinator;
+import io.github.ma1uta.matrix.impl.exception.RateLimitedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bulk registration of the bots.
+ * <br>
+ * Configurations are saved with the {@link BotState#NEW} state first, then the bots are registered by the pipeline: at most
+ * {@code concurrency} registrations are in progress, each registration runs the register request and then the profile and
+ * filter requests in parallel (see {@link Bot#registerAsync(Executor)}). The blocking steps run on the pool's startup threads
+ * (see {@link AbstractBotPool#getStartupConcurrency()}). Filters are resolved by the pool's
+ * {@link io.github.ma1uta.matrix.client.filter.FilterRegistry}, so the same filter is uploaded once per user.
+ * <br>
+ * When the homeserver answers with the rate limit, all new registrations are paused for the requested time and the limited
+ * registration is retried. Logins and registrations are also throttled by the pool's {@link AbstractBotPool#getAuthBucket()}.
+ * <br>
+ * The provisioning can be interrupted at any time: the next {@link #provision(Collection)} or {@link #resume()} continues
+ * with the bots which are still in the {@link BotState#NEW} state.
+ *
+ * @param <C> bot configuration.
+ * @param <D> bot dao.
+ * @param <S> bot service.
+ * @param <E> extra data.
+ * @param <B> bot's class.
+ */
+public class BotProvisioner<C extends BotConfig, D extends BotDao<C>, S extends PersistentService<D>, E, B extends Bot<C, D, S, E>> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BotProvisioner.class);
+
+    /**
+     * Default number of the registrations in progress.
+     */
+    public static final int DEFAULT_CONCURRENCY = 16;
+
+    /**
+     * Default number of the attempts of the rate-limited registration.
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+    /**
+     * Default pause if the homeserver doesn't specify it, in milliseconds.
+     */
+    public static final long DEFAULT_PAUSE = 1000L;
+
+    private final AbstractBotPool<C, D, S, E, B> pool;
+
+    private int concurrency = DEFAULT_CONCURRENCY;
+
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    private boolean startBots = true;
+
+    private Listener<C> listener;
+
+    public BotProvisioner(AbstractBotPool<C, D, S, E, B> pool) {
+        this.pool = Objects.requireNonNull(pool, "Pool should be specified.");
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Set the maximum number of the registrations in progress.
+     *
+     * @param concurrency The maximum number of the registrations in progress.
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Set the maximum number of the attempts of the rate-limited registration.
+     *
+     * @param maxAttempts The maximum number of the attempts.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public boolean isStartBots() {
+        return startBots;
+    }
+
+    /**
+     * Start the registered bots in the pool.
+     * <br>
+     * If the pool has the {@link AbstractBotPool#getCoordinator()} the bot is started through it with the lease, and only when the
+     * bot is assigned to this node.
+     *
+     * @param startBots {@code true} to start the registered bots, {@code false} to only register them.
+     */
+    public void setStartBots(boolean startBots) {
+        this.startBots = startBots;
+    }
+
+    public Listener<C> getListener() {
+        return listener;
+    }
+
+    public void setListener(Listener<C> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Register the bots.
+     * <br>
+     * Already registered bots are skipped, the bots which registration was interrupted are registered again. Only the requested
+     * bots are loaded (see {@link BotDao#findByUserIds(Collection)}).
+     *
+     * @param usernames The bots' usernames.
+     * @return The result of the provisioning.
+     */
+    public CompletableFuture<Progress> provision(Collection<String> usernames) {
+        Map<String, C> requested = new LinkedHashMap<>();
+        for (String username : usernames) {
+            C config = pool.createConfig(username);
+            requested.putIfAbsent(config.getUserId(), config);
+        }
+        List<C> configs = pool.getService().invoke(dao -> {
+            Map<String, C> existing = new HashMap<>();
+            dao.findByUserIds(requested.keySet()).forEach(config -> existing.put(config.getUserId(), config));
+
+            List<C> created = new ArrayList<>();
+            List<C> pending = new ArrayList<>();
+            for (C config : requested.values()) {
+                C saved = existing.get(config.getUserId());
+                if (saved == null) {
+                    created.add(config);
+                } else if (BotState.NEW.equals(saved.getState())) {
+                    pending.add(saved);
+                }
+            }
+            pending.addAll(dao.saveAll(created));
+            return pending;
+        });
+        return run(configs);
+    }
+
+    /**
+     * Continue the interrupted provisioning: register all bots in the {@link BotState#NEW} state
+     * (see {@link BotDao#findByState(BotState)}).
+     *
+     * @return The result of the provisioning.
+     */
+    public CompletableFuture<Progress> resume() {
+        List<C> configs = pool.getService().invoke(dao -> {
+            return new ArrayList<>(dao.findByState(BotState.NEW));
+        });
+        return run(configs);
+    }
+
+    protected CompletableFuture<Progress> run(List<C> configs) {
+        LOGGER.info("Provision {} bots", configs.size());
+        return new Run(configs).start();
+    }
+
+    /**
+     * Register the one bot.
+     *
+     * @param config   The bot's configuration.
+     * @param executor The executor for the blocking steps of the registration.
+     * @return The saved configuration of the registered bot.
+     */
+    protected CompletableFuture<C> register(C config, Executor executor) {
+        B bot = pool.createBotInstance(config);
+        bot.setAuthLimiter(pool.getAuthBucket());
+        bot.acquireAuth();
+        return bot.registerAsync(executor).thenApply(v -> bot.getContext().getConfig());
+    }
+
+    /**
+     * Find the rate limit exception.
+     *
+     * @param error The error.
+     * @return The rate limit exception or {@code null}.
+     */
+    protected static RateLimitedException rateLimited(Throwable error) {
+        Throwable cause = error;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause instanceof RateLimitedException ? (RateLimitedException) cause : null;
+    }
+
+    /**
+     * The one provisioning.
+     */
+    private final class Run {
+
+        private final Deque<Item> queue = new ArrayDeque<>();
+
+        private final CompletableFuture<Progress> result = new CompletableFuture<>();
+
+        private final int total;
+
+        private int inFlight;
+
+        private int completed;
+
+        private int failed;
+
+        private long pausedUntil;
+
+        private boolean wakeUpScheduled;
+
+        Run(List<C> configs) {
+            configs.forEach(config -> queue.add(new Item(config)));
+            this.total = configs.size();
+        }
+
+        CompletableFuture<Progress> start() {
+            pump();
+            return result;
+        }
+
+        private void pump() {
+            List<Item> started = new ArrayList<>();
+            Progress finished = null;
+            synchronized (this) {
+                wakeUpScheduled = false;
+                long pause = TimeUnit.NANOSECONDS.toMillis(pausedUntil - System.nanoTime());
+                if (pause > 0 && !queue.isEmpty()) {
+                    wakeUpScheduled = true;
+                    pool.getScheduler().schedule(this::pump, pause, TimeUnit.MILLISECONDS);
+                } else {
+                    while (inFlight < getConcurrency() && !queue.isEmpty()) {
+                        started.add(queue.poll());
+                        inFlight++;
+                    }
+                }
+                if (inFlight == 0 && queue.isEmpty() && !result.isDone()) {
+                    finished = progress();
+                }
+            }
+            started.forEach(this::execute);
+            if (finished != null) {
+                LOGGER.info("Provisioning is finished: {} registered, {} failed", finished.getCompleted(), finished.getFailed());
+                result.complete(finished);
+            }
+        }
+
+        private void execute(Item item) {
+            item.attempts++;
+            Executor executor = pool.getStartupExecutor();
+            CompletableFuture.supplyAsync(() -> register(item.config, executor), executor)
+                .thenCompose(registration -> registration)
+                .whenComplete((registered, e) -> finish(item, registered, e));
+        }
+
+        private void finish(Item item, C registered, Throwable error) {
+            RateLimitedException rateLimited = error != null ? rateLimited(error) : null;
+            boolean retry = rateLimited != null && item.attempts < getMaxAttempts();
+            Progress progress;
+            synchronized (this) {
+                inFlight--;
+                if (retry) {
+                    long pause = rateLimited.getRetryAfterMs() != null ? rateLimited.getRetryAfterMs() : DEFAULT_PAUSE;
+                    LOGGER.debug("Rate limited, pause provisioning for {} ms", pause);
+                    pausedUntil = Math.max(pausedUntil, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(pause));
+                    queue.addFirst(item);
+                } else if (error != null) {
+                    failed++;
+                } else {
+                    completed++;
+                }
+                progress = progress();
+            }
+
+            if (!retry) {
+                if (error != null) {
+                    LOGGER.error(String.format("Cannot register the bot '%s'", item.config.getUserId()), error);
+                } else if (isStartBots()) {
+                    startBot(registered);
+                }
+                Listener<C> progressListener = getListener();
+                if (progressListener != null) {
+                    progressListener.progress(item.config, error, progress);
+                }
+            }
+            boolean wait;
+            synchronized (this) {
+                wait = wakeUpScheduled;
+            }
+            if (!wait) {
+                pump();
+            }
+        }
+
+        private void startBot(C config) {
+            try {
+                ClusterCoordinator<C, ?, ?> coordinator = pool.getCoordinator();
+                if (coordinator != null) {
+                    coordinator.startBot(config.getUserId());
+                } else {
+                    pool.submit(config, false);
+                }
+            } catch (Exception e) {
+                LOGGER.error(String.format("Cannot start the bot '%s'", config.getUserId()), e);
+            }
+        }
+
+        private Progress progress() {
+            return new Progress(total, completed, failed);
+        }
+    }
+
+    /**
+     * Registration of the one bot.
+     */
+    private final class Item {
+
+        private final C config;
+
+        private int attempts;
+
+        Item(C config) {
+            this.config = config;
+        }
+    }
+
+    /**
+     * Progress of the provisioning.
+     */
+    public static final class Progress {
+
+        private final int total;
+
+        private final int completed;
+
+        private final int failed;
+
+        Progress(int total, int completed, int failed) {
+            this.total = total;
+            this.completed = completed;
+            this.failed = failed;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public int getCompleted() {
+            return completed;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public int getRemaining() {
+            return total - completed - failed;
+        }
+    }
+
+    /**
+     * Listener of the provisioning progress.
+     *
+     * @param <C> bot configuration.
+     */
+    @FunctionalInterface
+    public interface Listener<C extends BotConfig> {
+
+        /**
+         * Invoked when the bot is registered or its registration is failed.
+         *
+         * @param config   The bot's configuration.
+         * @param error    The error or {@code null} if the bot is registered.
+         * @param progress The current progress.
+         */
+        void progress(C config, Throwable error, Progress progress);
+    }
+}
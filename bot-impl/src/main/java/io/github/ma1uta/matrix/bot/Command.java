@@ -18,6 +18,9 @@ package io.github.ma1uta.matrix.bot;
 
 import io.github.ma1uta.matrix.event.RoomEvent;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 /**
  * Command interface.
  *
@@ -46,6 +49,31 @@ public interface Command<C extends BotConfig, D extends BotDao<C>, S extends Per
      */
     boolean invoke(Context<C, D, S, E> context, String roomId, RoomEvent event, String arguments);
 
+    /**
+     * Invoking command asynchronously.
+     * <br>
+     * By default invokes {@link #invoke(Context, String, RoomEvent, String)} in the transaction. Commands which wait for
+     * the server should override this method, don't block and open the transaction only to change the bot's state.
+     * Commands of the one room are invoked in the order of the messages.
+     *
+     * @param context   bot's context.
+     * @param roomId    room id.
+     * @param event     event with command.
+     * @param arguments (without command).
+     * @return {@code true} if invoked, else {@code false}.
+     */
+    default CompletionStage<Boolean> invokeAsync(Context<C, D, S, E> context, String roomId, RoomEvent event, String arguments) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        try {
+            result.complete(context.runInTransaction((ctx, dao) -> {
+                return invoke(ctx, roomId, event, arguments);
+            }));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
     /**
      * Help information.
      *
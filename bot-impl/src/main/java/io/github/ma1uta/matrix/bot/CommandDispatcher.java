@@ -0,0 +1,205 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot;
+
+import java.util.Map;
+
+/**
+ * Compiled command dispatcher.
+ * <br>
+ * Command names are compiled into the char trie of the {@link CommandRegistry}, the message body is scanned once to find the command
+ * name without allocations. The arguments are sliced from the body only when the command is found. The effective prefix is cached
+ * until the configured prefix or the display name are changed.
+ * <br>
+ * The dispatcher is created per bot because of the cached prefix, the registry is shared.
+ *
+ * @param <C> bot configuration.
+ * @param <D> bot dao.
+ * @param <S> bot service.
+ * @param <E> extra data.
+ */
+public class CommandDispatcher<C extends BotConfig, D extends BotDao<C>, S extends PersistentService<D>, E> {
+
+    /**
+     * Prefix if the bot's prefix isn't set.
+     */
+    public static final String DEFAULT_PREFIX = "!";
+
+    /**
+     * Placeholder of the bot's display name in the prefix.
+     */
+    public static final String DISPLAY_NAME = "{{display_name}}";
+
+    private final CommandRegistry<C, D, S, E> registry;
+
+    private volatile EffectivePrefix effectivePrefix = new EffectivePrefix(null, null, DEFAULT_PREFIX);
+
+    public CommandDispatcher(Map<String, Command<C, D, S, E>> commands) {
+        this(new CommandRegistry<>(commands));
+    }
+
+    public CommandDispatcher(CommandRegistry<C, D, S, E> registry) {
+        this.registry = registry;
+    }
+
+    public CommandRegistry<C, D, S, E> getRegistry() {
+        return registry;
+    }
+
+    public Map<String, Command<C, D, S, E>> getCommands() {
+        return registry.getCommands();
+    }
+
+    /**
+     * Effective prefix.
+     *
+     * @param prefix      The configured prefix.
+     * @param displayName The bot's display name.
+     * @return The prefix with the substituted display name.
+     */
+    public String prefix(String prefix, String displayName) {
+        EffectivePrefix cached = effectivePrefix;
+        if (cached.matches(prefix, displayName)) {
+            return cached.value;
+        }
+        String value = prefix == null ? DEFAULT_PREFIX : prefix.replace(DISPLAY_NAME, displayName == null ? "" : displayName);
+        effectivePrefix = new EffectivePrefix(prefix, displayName, value);
+        return value;
+    }
+
+    /**
+     * Find the command by the name.
+     *
+     * @param name The command name.
+     * @return The command or {@code null}.
+     */
+    public Command<C, D, S, E> find(String name) {
+        return name == null ? null : find(name, 0, name.length());
+    }
+
+    /**
+     * Find the command by the part of the text.
+     *
+     * @param text  The text.
+     * @param start The start of the command name (inclusive).
+     * @param end   The end of the command name (exclusive).
+     * @return The command or {@code null}.
+     */
+    public Command<C, D, S, E> find(CharSequence text, int start, int end) {
+        return registry.find(text, start, end);
+    }
+
+    /**
+     * Dispatch the message.
+     *
+     * @param body           The trimmed message body.
+     * @param prefix         The effective prefix.
+     * @param defaultCommand The name of the default command or {@code null}.
+     * @return The dispatched command or {@code null} if the message isn't a command.
+     */
+    public Dispatch<C, D, S, E> dispatch(String body, String prefix, String defaultCommand) {
+        boolean hasDefault = defaultCommand != null && !defaultCommand.trim().isEmpty();
+        if (!body.startsWith(prefix)) {
+            return hasDefault ? new Dispatch<>(getCommands().get(defaultCommand), defaultCommand, body) : null;
+        }
+
+        int length = body.length();
+        int start = prefix.length();
+        while (start < length && Character.isWhitespace(body.charAt(start))) {
+            start++;
+        }
+        int end = start;
+        while (end < length && !Character.isWhitespace(body.charAt(end))) {
+            end++;
+        }
+
+        Command<C, D, S, E> command = find(body, start, end);
+        if (command != null) {
+            return new Dispatch<>(command, command.name(), body.substring(end).trim());
+        }
+        if (hasDefault) {
+            return new Dispatch<>(getCommands().get(defaultCommand), defaultCommand, body);
+        }
+        return new Dispatch<>(null, body.substring(start, end), null);
+    }
+
+    /**
+     * Dispatched command.
+     *
+     * @param <C> bot configuration.
+     * @param <D> bot dao.
+     * @param <S> bot service.
+     * @param <E> extra data.
+     */
+    public static final class Dispatch<C extends BotConfig, D extends BotDao<C>, S extends PersistentService<D>, E> {
+
+        private final Command<C, D, S, E> command;
+
+        private final String name;
+
+        private final String arguments;
+
+        Dispatch(Command<C, D, S, E> command, String name, String arguments) {
+            this.command = command;
+            this.name = name;
+            this.arguments = arguments;
+        }
+
+        /**
+         * Found command.
+         *
+         * @return The command or {@code null} if the command is unknown.
+         */
+        public Command<C, D, S, E> getCommand() {
+            return command;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getArguments() {
+            return arguments;
+        }
+    }
+
+    /**
+     * Cached effective prefix.
+     */
+    private static final class EffectivePrefix {
+
+        private final String prefix;
+
+        private final String displayName;
+
+        private final String value;
+
+        EffectivePrefix(String prefix, String displayName, String value) {
+            this.prefix = prefix;
+            this.displayName = displayName;
+            this.value = value;
+        }
+
+        boolean matches(String prefix, String displayName) {
+            return equals(this.prefix, prefix) && equals(this.displayName, displayName);
+        }
+
+        private static boolean equals(String first, String second) {
+            return first == null ? second == null : first.equals(second);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Executor of the commands.
+ * <br>
+ * Commands of the same room are executed one by one in the order of submission, commands of the different rooms are executed
+ * in parallel. The number of the running commands is limited, the rest wait in the queue without holding a thread.
+ */
+public class CommandExecutor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommandExecutor.class);
+
+    /**
+     * Default maximum number of the running commands.
+     */
+    public static final int DEFAULT_CONCURRENCY = 4;
+
+    /**
+     * Number of the threads of the shared default executor.
+     */
+    public static final int DEFAULT_THREADS = Math.max(DEFAULT_CONCURRENCY, Runtime.getRuntime().availableProcessors());
+
+    private final Executor executor;
+
+    private final int concurrency;
+
+    private final Map<String, CompletableFuture<?>> tails = new ConcurrentHashMap<>();
+
+    private final Queue<Task<?>> waiting = new ArrayDeque<>();
+
+    private int active;
+
+    /**
+     * Create executor which runs commands in the shared pool of the {@link #DEFAULT_THREADS} daemon threads.
+     * <br>
+     * The pool is shared by all executors created by this constructor, use {@link #CommandExecutor(Executor, int)} to run
+     * commands in the own threads.
+     */
+    public CommandExecutor() {
+        this(DefaultExecutor.INSTANCE, DEFAULT_CONCURRENCY);
+    }
+
+    public CommandExecutor(Executor executor, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency should be positive.");
+        }
+        this.executor = Objects.requireNonNull(executor, "Executor should be specified.");
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Submit a new task.
+     *
+     * @param roomId The room id. Tasks with the same room id are executed sequentially.
+     * @param task   The task.
+     * @param <T>    The result type.
+     * @return The task result.
+     */
+    public <T> CompletableFuture<T> submit(String roomId, Supplier<? extends CompletionStage<T>> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture<?>[] previous = new CompletableFuture<?>[1];
+        tails.compute(roomId, (key, tail) -> {
+            previous[0] = tail;
+            return result;
+        });
+        result.whenComplete((value, throwable) -> tails.remove(roomId, result));
+
+        Task<T> next = new Task<>(task, result);
+        if (previous[0] == null) {
+            acquire(next);
+        } else {
+            previous[0].whenComplete((value, throwable) -> acquire(next));
+        }
+        return result;
+    }
+
+    /**
+     * Number of the rooms with running or waiting tasks.
+     *
+     * @return The number of the rooms.
+     */
+    public int getActiveRooms() {
+        return tails.size();
+    }
+
+    protected <T> void run(Task<T> task) {
+        CompletionStage<T> stage;
+        try {
+            stage = task.action.get();
+        } catch (RuntimeException e) {
+            release();
+            task.result.completeExceptionally(e);
+            return;
+        }
+        stage.whenComplete((value, throwable) -> {
+            release();
+            if (throwable != null) {
+                task.result.completeExceptionally(throwable);
+            } else {
+                task.result.complete(value);
+            }
+        });
+    }
+
+    private void acquire(Task<?> task) {
+        synchronized (waiting) {
+            if (active >= concurrency) {
+                waiting.add(task);
+                return;
+            }
+            active++;
+        }
+        execute(task);
+    }
+
+    private void release() {
+        Task<?> next;
+        synchronized (waiting) {
+            next = waiting.poll();
+            if (next == null) {
+                active--;
+            }
+        }
+        if (next != null) {
+            execute(next);
+        }
+    }
+
+    private void execute(Task<?> task) {
+        try {
+            executor.execute(() -> run(task));
+        } catch (RejectedExecutionException e) {
+            LOGGER.error("Command is rejected", e);
+            release();
+            task.result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Lazily created shared executor.
+     */
+    private static final class DefaultExecutor {
+
+        private static final ExecutorService INSTANCE = Executors.newFixedThreadPool(DEFAULT_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "bot-command");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        private DefaultExecutor() {
+        }
+    }
+
+    /**
+     * Submitted task.
+     *
+     * @param <T> result type.
+     */
+    protected static final class Task<T> {
+
+        private final Supplier<? extends CompletionStage<T>> action;
+
+        private final CompletableFuture<T> result;
+
+        Task(Supplier<? extends CompletionStage<T>> action, CompletableFuture<T> result) {
+            this.action = action;
+            this.result = result;
+        }
+    }
+}
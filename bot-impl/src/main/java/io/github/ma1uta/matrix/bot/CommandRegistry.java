@@ -0,0 +1,141 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable registry of the commands.
+ * <br>
+ * Commands are created once and compiled into the char trie. The registry is stateless and is shared by all bots of the pool,
+ * so commands should not keep the bot's state in the fields (use the {@link Context} instead).
+ *
+ * @param <C> bot configuration.
+ * @param <D> bot dao.
+ * @param <S> bot service.
+ * @param <E> extra data.
+ */
+public final class CommandRegistry<C extends BotConfig, D extends BotDao<C>, S extends PersistentService<D>, E> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommandRegistry.class);
+
+    private final Map<String, Command<C, D, S, E>> commands;
+
+    private final Node<C, D, S, E> root = new Node<>();
+
+    /**
+     * Create the registry.
+     *
+     * @param commands The commands by names.
+     */
+    public CommandRegistry(Map<String, Command<C, D, S, E>> commands) {
+        this.commands = Collections.unmodifiableMap(new HashMap<>(commands));
+        this.commands.forEach((name, command) -> {
+            Node<C, D, S, E> node = root;
+            for (int i = 0; i < name.length(); i++) {
+                node = node.add(name.charAt(i));
+            }
+            node.command = command;
+        });
+    }
+
+    /**
+     * Create the registry with the new instances of the commands.
+     *
+     * @param commandsClasses The command classes.
+     * @param <C>             bot configuration.
+     * @param <D>             bot dao.
+     * @param <S>             bot service.
+     * @param <E>             extra data.
+     * @return The registry.
+     */
+    public static <C extends BotConfig, D extends BotDao<C>, S extends PersistentService<D>, E> CommandRegistry<C, D, S, E> of(
+        List<Class<? extends Command<C, D, S, E>>> commandsClasses) {
+        Map<String, Command<C, D, S, E>> commands = new HashMap<>(commandsClasses.size());
+        commandsClasses.forEach(cl -> {
+            try {
+                Command<C, D, S, E> command = cl.getDeclaredConstructor().newInstance();
+                commands.put(command.name(), command);
+            } catch (InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
+                LOGGER.error("Cannot create new instance of the command: " + cl.getCanonicalName(), e);
+            }
+        });
+        return new CommandRegistry<>(commands);
+    }
+
+    public Map<String, Command<C, D, S, E>> getCommands() {
+        return commands;
+    }
+
+    /**
+     * Find the command by the part of the text.
+     *
+     * @param text  The text.
+     * @param start The start of the command name (inclusive).
+     * @param end   The end of the command name (exclusive).
+     * @return The command or {@code null}.
+     */
+    public Command<C, D, S, E> find(CharSequence text, int start, int end) {
+        Node<C, D, S, E> node = root;
+        for (int i = start; i < end && node != null; i++) {
+            node = node.get(text.charAt(i));
+        }
+        return node == null ? null : node.command;
+    }
+
+    /**
+     * Trie node.
+     */
+    private static final class Node<C extends BotConfig, D extends BotDao<C>, S extends PersistentService<D>, E> {
+
+        private char[] keys = new char[0];
+
+        private final List<Node<C, D, S, E>> children = new ArrayList<>();
+
+        private Command<C, D, S, E> command;
+
+        Node<C, D, S, E> get(char key) {
+            int index = Arrays.binarySearch(keys, key);
+            return index < 0 ? null : children.get(index);
+        }
+
+        Node<C, D, S, E> add(char key) {
+            int index = Arrays.binarySearch(keys, key);
+            if (index >= 0) {
+                return children.get(index);
+            }
+            int position = -index - 1;
+            char[] newKeys = new char[keys.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, position);
+            newKeys[position] = key;
+            System.arraycopy(keys, position, newKeys, position + 1, keys.length - position);
+            keys = newKeys;
+            Node<C, D, S, E> child = new Node<>();
+            children.add(position, child);
+            return child;
+        }
+    }
+}
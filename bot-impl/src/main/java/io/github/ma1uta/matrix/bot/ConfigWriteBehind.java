@@ -0,0 +1,238 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Write-behind of the bot configurations.
+ * <br>
+ * Instead of saving the configuration after each transaction the context is marked as dirty with the copy of the configuration
+ * taken under the context's monitor. Dirty configurations are saved by batches via {@link BotDao#saveAll(List)} on the timer or
+ * when the number of the dirty configurations reaches the threshold. Repeated changes of the same configuration between flushes
+ * (for example, the {@code next_batch}) are saved once, only the latest copy is kept. {@link #close()} saves all remaining changes.
+ * Configurations of the bots running in the cluster are saved with their lease tokens, see {@link FencedBotDao}.
+ *
+ * @param <C> bot configuration.
+ * @param <D> bot dao.
+ */
+public class ConfigWriteBehind<C extends BotConfig, D extends BotDao<C>> implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConfigWriteBehind.class);
+
+    /**
+     * Default flush interval in milliseconds.
+     */
+    public static final long DEFAULT_INTERVAL = 5000L;
+
+    /**
+     * Default number of the dirty configurations to flush immediately.
+     */
+    public static final int DEFAULT_THRESHOLD = 500;
+
+    private final PersistentService<D> service;
+
+    private final int threshold;
+
+    private final Map<Context<C, D, ?, ?>, C> dirty = new ConcurrentHashMap<>();
+
+    /**
+     * Ids of the new configurations generated by the previous flushes. The copies taken before the id was assigned to the context
+     * get the id from here instead of inserting the row again.
+     */
+    private final Map<Context<C, D, ?, ?>, Long> generatedIds = new ConcurrentHashMap<>();
+
+    private final Object flushMonitor = new Object();
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    private final ScheduledExecutorService scheduler;
+
+    public ConfigWriteBehind(PersistentService<D> service) {
+        this(service, DEFAULT_INTERVAL, DEFAULT_THRESHOLD);
+    }
+
+    public ConfigWriteBehind(PersistentService<D> service, long interval, int threshold) {
+        if (interval < 1 || threshold < 1) {
+            throw new IllegalArgumentException("Interval and threshold should be positive.");
+        }
+        this.service = service;
+        this.threshold = threshold;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "config-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::flushQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Mark the configuration of the context as changed.
+     * <br>
+     * The configuration is copied via {@link Context#snapshot()}, the flush never reads the configuration which the bot changes.
+     *
+     * @param context The bot's context.
+     */
+    public void markDirty(Context<C, D, ?, ?> context) {
+        dirty.put(context, context.snapshot());
+        if (dirty.size() >= threshold && flushScheduled.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(() -> {
+                    flushScheduled.set(false);
+                    flushQuietly();
+                });
+            } catch (RuntimeException e) {
+                flushScheduled.set(false);
+                LOGGER.warn("Cannot schedule flush", e);
+            }
+        }
+    }
+
+    /**
+     * Forget changes of the configuration, for example, before deletion.
+     * <br>
+     * Waits for the flush which is in progress, so after return the configuration isn't written anymore.
+     *
+     * @param context The bot's context.
+     */
+    public void discard(Context<C, D, ?, ?> context) {
+        dirty.remove(context);
+        synchronized (flushMonitor) {
+            dirty.remove(context);
+            generatedIds.remove(context);
+        }
+    }
+
+    /**
+     * Number of the not saved configurations.
+     *
+     * @return The number of the dirty configurations.
+     */
+    public int getDirtyCount() {
+        return dirty.size();
+    }
+
+    /**
+     * Save all dirty configurations.
+     */
+    public void flush() {
+        while (true) {
+            Map<Context<C, D, ?, ?>, Long> ids;
+            synchronized (flushMonitor) {
+                if (dirty.isEmpty()) {
+                    return;
+                }
+                Map<Context<C, D, ?, ?>, C> batch = new LinkedHashMap<>();
+                Iterator<Map.Entry<Context<C, D, ?, ?>, C>> iterator = dirty.entrySet().iterator();
+                while (iterator.hasNext() && batch.size() < threshold) {
+                    Map.Entry<Context<C, D, ?, ?>, C> entry = iterator.next();
+                    batch.put(entry.getKey(), entry.getValue());
+                    iterator.remove();
+                }
+                ids = save(batch);
+            }
+            ids.forEach(Context::assignId);
+        }
+    }
+
+    /**
+     * Save the dirty configuration of the one bot immediately, for example before the bot is stopped.
+     *
+     * @param context The bot's context.
+     */
+    public void flush(Context<C, D, ?, ?> context) {
+        Map<Context<C, D, ?, ?>, Long> ids;
+        synchronized (flushMonitor) {
+            C config = dirty.remove(context);
+            if (config == null) {
+                return;
+            }
+            ids = save(Collections.singletonMap(context, config));
+        }
+        ids.forEach(Context::assignId);
+    }
+
+    /**
+     * Save the batch.
+     *
+     * @param batch The copies of the configurations by the contexts.
+     * @return The generated ids of the new configurations.
+     */
+    protected Map<Context<C, D, ?, ?>, Long> save(Map<Context<C, D, ?, ?>, C> batch) {
+        List<Context<C, D, ?, ?>> contexts = new ArrayList<>(batch.keySet());
+        List<C> configs = new ArrayList<>(batch.size());
+        List<Boolean> created = new ArrayList<>(batch.size());
+        for (Context<C, D, ?, ?> context : contexts) {
+            C config = batch.get(context);
+            if (config.getId() == null) {
+                config.setId(generatedIds.get(context));
+            }
+            configs.add(config);
+            created.add(config.getId() == null);
+        }
+        try {
+            List<C> saved = service.invoke(dao -> {
+                return FencedBotDao.saveAll(dao, configs);
+            });
+            Map<Context<C, D, ?, ?>, Long> ids = new LinkedHashMap<>();
+            for (int i = 0; i < configs.size() && i < saved.size(); i++) {
+                if (saved.get(i) == null) {
+                    LOGGER.warn("Configuration of the bot {} is fenced by the newer lease, changes are not saved.",
+                        configs.get(i).getUserId());
+                } else if (created.get(i) && saved.get(i).getId() != null) {
+                    generatedIds.put(contexts.get(i), saved.get(i).getId());
+                    ids.put(contexts.get(i), saved.get(i).getId());
+                }
+            }
+            LOGGER.debug("Saved {} configurations", configs.size());
+            return ids;
+        } catch (RuntimeException e) {
+            batch.forEach(dirty::putIfAbsent);
+            throw e;
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            LOGGER.error("Cannot save configurations", e);
+        }
+    }
+
+    /**
+     * Stop the timer and save all dirty configurations.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        flush();
+    }
+}
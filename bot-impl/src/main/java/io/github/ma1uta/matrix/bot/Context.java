@@ -17,11 +17,16 @@
 package io.github.ma1uta.matrix.bot;
 
 import io.github.ma1uta.matrix.client.MatrixClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 /**
@@ -34,6 +39,8 @@ import java.util.function.Supplier;
  */
 public class Context<C extends BotConfig, D extends BotDao<C>, S extends PersistentService<D>, E> {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(Context.class);
+
     private final Object monitor = new Object();
 
     private final MatrixClient matrixClient;
@@ -46,8 +53,20 @@ public class Context<C extends BotConfig, D extends BotDao<C>, S extends Persist
 
     private List<Supplier<Void>> shutdownListeners = new ArrayList<>();
 
+    private final AtomicBoolean shutdown = new AtomicBoolean();
+
     private final Bot<C, D, S, E> bot;
 
+    private ConfigWriteBehind<C, D> writeBehind;
+
+    private volatile boolean deleted;
+
+    private final List<Consumer<C>> configListeners = new CopyOnWriteArrayList<>();
+
+    private int batchDepth;
+
+    private boolean batchDirty;
+
     public Context(MatrixClient matrixClient, S service, Bot<C, D, S, E> bot) {
         this.matrixClient = matrixClient;
         this.service = service;
@@ -86,6 +105,118 @@ public class Context<C extends BotConfig, D extends BotDao<C>, S extends Persist
         return bot;
     }
 
+    public ConfigWriteBehind<C, D> getWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * Set the write-behind to save the configuration by batches instead of the saving after each transaction.
+     *
+     * @param writeBehind The write-behind or {@code null} to save the configuration in each transaction.
+     */
+    public void setWriteBehind(ConfigWriteBehind<C, D> writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    /**
+     * Add the listener which is invoked after each transaction, for example to track the prefix changes.
+     *
+     * @param listener The listener of the configuration.
+     */
+    public void addConfigListener(Consumer<C> listener) {
+        configListeners.add(listener);
+    }
+
+    /**
+     * Delete the bot's configuration.
+     * <br>
+     * The not saved changes are discarded and the configuration is not saved anymore. Waits for the write-behind flush
+     * which is in progress, so the deleted row isn't written back.
+     *
+     * @param dao The bot dao.
+     */
+    public void deleteConfig(D dao) {
+        deleted = true;
+        if (getWriteBehind() != null) {
+            getWriteBehind().discard(this);
+        }
+        dao.delete(getConfig());
+    }
+
+    /**
+     * Copy the configuration under the context's monitor, so the copy never contains the half-applied transaction.
+     *
+     * @return The copy of the configuration.
+     */
+    @SuppressWarnings("unchecked")
+    public C snapshot() {
+        synchronized (monitor) {
+            return (C) getConfig().copy();
+        }
+    }
+
+    /**
+     * Set the id generated by the write-behind for the new configuration.
+     *
+     * @param id The generated id.
+     */
+    void assignId(Long id) {
+        synchronized (monitor) {
+            if (getConfig().getId() == null) {
+                getConfig().setId(id);
+            }
+        }
+    }
+
+    /**
+     * Save the configuration in the current transaction or mark it as dirty if the write-behind is used.
+     *
+     * @param dao The bot dao.
+     */
+    protected void saveConfig(D dao) {
+        if (deleted) {
+            return;
+        }
+        if (batchDepth > 0) {
+            batchDirty = true;
+        } else if (getWriteBehind() != null) {
+            getWriteBehind().markDirty(this);
+        } else {
+            C saved = FencedBotDao.save(dao, getConfig());
+            if (saved != null) {
+                setConfig(saved);
+            } else {
+                LOGGER.warn("Configuration of the bot {} is fenced by the newer lease, changes are not saved.", getConfig().getUserId());
+            }
+        }
+    }
+
+    /**
+     * Start the batch. The configuration changed inside the batch is saved once by the {@link #endBatch()}.
+     * <br>
+     * Batches can be nested, the configuration is saved at the end of the outer batch.
+     */
+    public void beginBatch() {
+        synchronized (monitor) {
+            batchDepth++;
+        }
+    }
+
+    /**
+     * Finish the batch and save the configuration if it was changed.
+     */
+    public void endBatch() {
+        synchronized (monitor) {
+            if (batchDepth == 0 || --batchDepth > 0 || !batchDirty) {
+                return;
+            }
+            batchDirty = false;
+            getService().invoke(dao -> {
+                saveConfig(dao);
+            });
+        }
+    }
+
     /**
      * Invoke separate transaction.
      *
@@ -95,9 +226,10 @@ public class Context<C extends BotConfig, D extends BotDao<C>, S extends Persist
         synchronized (monitor) {
             getService().invoke(dao -> {
                 action.accept(this, dao);
-                setConfig(dao.save(getConfig()));
+                saveConfig(dao);
             });
         }
+        configChanged();
     }
 
     /**
@@ -108,13 +240,20 @@ public class Context<C extends BotConfig, D extends BotDao<C>, S extends Persist
      * @return result.
      */
     public <R> R runInTransaction(BiFunction<Context<C, D, S, E>, D, R> action) {
+        R result;
         synchronized (monitor) {
-            return getService().invoke(dao -> {
-                R result = action.apply(this, dao);
-                setConfig(dao.save(getConfig()));
-                return result;
+            result = getService().invoke(dao -> {
+                R value = action.apply(this, dao);
+                saveConfig(dao);
+                return value;
             });
         }
+        configChanged();
+        return result;
+    }
+
+    private void configChanged() {
+        configListeners.forEach(listener -> listener.accept(getConfig()));
     }
 
     /**
@@ -125,4 +264,20 @@ public class Context<C extends BotConfig, D extends BotDao<C>, S extends Persist
     public void addShutdownListener(Supplier<Void> listener) {
         getShutdownListeners().add(listener);
     }
+
+    /**
+     * Invoke the shutdown listeners.
+     * <br>
+     * The listeners are invoked only once, the repeated calls (for example, from the pool's stop and from the bot's loop which
+     * exits after it) are ignored.
+     */
+    public void shutdown() {
+        if (shutdown.compareAndSet(false, true)) {
+            getShutdownListeners().forEach(Supplier::get);
+        }
+    }
+
+    public boolean isShutdown() {
+        return shutdown.get();
+    }
 }
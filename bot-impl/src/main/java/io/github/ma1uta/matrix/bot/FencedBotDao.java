@@ -0,0 +1,101 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DAO of the bot configuration which fences the writes of the previous lease owners.
+ * <br>
+ * Before the bot is started on the cluster node its row is fenced with the token of the new lease via {@link #fence(String, long)}.
+ * All following writes of the configuration are the conditional updates with this token, so the late writes of the node which
+ * lost the lease are rejected and can't overwrite the rows of the new owner.
+ *
+ * @param <C> class of the configuration.
+ */
+public interface FencedBotDao<C extends BotConfig> extends BotDao<C> {
+
+    /**
+     * Fence the bot's row with the token of the new lease and load the configuration.
+     * <br>
+     * Should be the conditional update: the token is stored only if the stored token is {@code null} or less than the token.
+     *
+     * @param userId The bot's user id.
+     * @param token  The fencing token of the new lease.
+     * @return The configuration with the {@link BotConfig#getLeaseToken()} set to the token or {@code null} if the row doesn't
+     *     exist or is fenced by the greater token.
+     */
+    C fence(String userId, long token);
+
+    /**
+     * Save the bot's data only if the row is still fenced with the token.
+     * <br>
+     * Should be the conditional update, for example {@code UPDATE ... WHERE id = :id AND lease_token = :token}.
+     *
+     * @param data  The bot's data.
+     * @param token The fencing token of the bot's lease.
+     * @return The saved entity or {@code null} if the row is fenced by the other token.
+     */
+    C save(C data, long token);
+
+    /**
+     * Save the bot's data with its lease token if the dao supports fencing, else save the data unconditionally.
+     *
+     * @param dao  The bot dao.
+     * @param data The bot's data.
+     * @param <C>  class of the configuration.
+     * @return The saved entity or {@code null} if the write was rejected.
+     */
+    @SuppressWarnings("unchecked")
+    static <C extends BotConfig> C save(BotDao<C> dao, C data) {
+        if (data.getLeaseToken() != null && dao instanceof FencedBotDao) {
+            return ((FencedBotDao<C>) dao).save(data, data.getLeaseToken());
+        }
+        return dao.save(data);
+    }
+
+    /**
+     * Save the bot's data by the one batch, each entity with its own {@link BotConfig#getLeaseToken()}.
+     *
+     * @param data The bot's data.
+     * @return The saved entities in the same order, {@code null} for the rejected entities.
+     */
+    default List<C> saveAllFenced(List<C> data) {
+        List<C> saved = new ArrayList<>(data.size());
+        for (C config : data) {
+            saved.add(config.getLeaseToken() != null ? save(config, config.getLeaseToken()) : save(config));
+        }
+        return saved;
+    }
+
+    /**
+     * Save the bot's data by the one batch with their lease tokens if the dao supports fencing.
+     *
+     * @param dao  The bot dao.
+     * @param data The bot's data.
+     * @param <C>  class of the configuration.
+     * @return The saved entities in the same order, {@code null} for the rejected entities.
+     */
+    @SuppressWarnings("unchecked")
+    static <C extends BotConfig> List<C> saveAll(BotDao<C> dao, List<C> data) {
+        if (dao instanceof FencedBotDao) {
+            return ((FencedBotDao<C>) dao).saveAllFenced(data);
+        }
+        return dao.saveAll(data);
+    }
+}
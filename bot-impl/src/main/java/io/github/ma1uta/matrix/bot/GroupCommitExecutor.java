@@ -0,0 +1,203 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Group commit of the entities.
+ * <br>
+ * Concurrent saves are gathered during the short window (or until the maximum batch size) and written by the one transaction,
+ * for example via {@link BotDao#saveAll(List)} or {@link io.github.ma1uta.matrix.appservice.TransactionDao#saveAll(List)}.
+ * Entities submitted while the previous group is being committed form the next group. Each caller receives the future which
+ * is completed when its group is committed.
+ *
+ * @param <D> dao.
+ * @param <T> entity.
+ */
+public class GroupCommitExecutor<D, T> implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GroupCommitExecutor.class);
+
+    /**
+     * Default window in milliseconds.
+     */
+    public static final long DEFAULT_WINDOW = 5L;
+
+    /**
+     * Default maximum number of the entities in the one transaction.
+     */
+    public static final int DEFAULT_MAX_BATCH = 500;
+
+    private final PersistentService<D> service;
+
+    private final BiConsumer<D, List<T>> commit;
+
+    private final long window;
+
+    private final int maxBatch;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Object commitMonitor = new Object();
+
+    private List<Pending<T>> pending = new ArrayList<>();
+
+    private boolean scheduled;
+
+    private boolean closed;
+
+    public GroupCommitExecutor(PersistentService<D> service, BiConsumer<D, List<T>> commit) {
+        this(service, commit, DEFAULT_WINDOW, DEFAULT_MAX_BATCH);
+    }
+
+    public GroupCommitExecutor(PersistentService<D> service, BiConsumer<D, List<T>> commit, long window, int maxBatch) {
+        if (window < 0 || maxBatch < 1) {
+            throw new IllegalArgumentException("Window should be non-negative and max batch should be positive.");
+        }
+        this.service = service;
+        this.commit = commit;
+        this.window = window;
+        this.maxBatch = maxBatch;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "group-commit");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Submit the entity.
+     *
+     * @param entity The entity.
+     * @return The future which is completed when the entity is committed.
+     */
+    public CompletableFuture<Void> submit(T entity) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        boolean full;
+        boolean schedule;
+        synchronized (this) {
+            if (closed) {
+                result.completeExceptionally(new IllegalStateException("Group commit is closed."));
+                return result;
+            }
+            pending.add(new Pending<>(entity, result));
+            full = pending.size() >= maxBatch;
+            schedule = !scheduled || full;
+            scheduled = true;
+        }
+        if (schedule) {
+            try {
+                scheduler.schedule(this::flushQuietly, full ? 0 : window, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Cannot schedule commit, commit in the current thread", e);
+                flushQuietly();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Commit all submitted entities.
+     */
+    public void flush() {
+        synchronized (commitMonitor) {
+            while (true) {
+                List<Pending<T>> batch;
+                synchronized (this) {
+                    if (pending.isEmpty()) {
+                        scheduled = false;
+                        return;
+                    }
+                    if (pending.size() <= maxBatch) {
+                        batch = pending;
+                        pending = new ArrayList<>();
+                    } else {
+                        batch = new ArrayList<>(pending.subList(0, maxBatch));
+                        pending.subList(0, maxBatch).clear();
+                    }
+                }
+                commit(batch);
+            }
+        }
+    }
+
+    protected void commit(List<Pending<T>> batch) {
+        List<T> entities = new ArrayList<>(batch.size());
+        batch.forEach(item -> entities.add(item.entity));
+        try {
+            service.invoke(dao -> {
+                commit.accept(dao, entities);
+            });
+            LOGGER.debug("Committed {} entities", entities.size());
+            batch.forEach(item -> item.result.complete(null));
+        } catch (RuntimeException e) {
+            LOGGER.error("Cannot commit the group", e);
+            batch.forEach(item -> item.result.completeExceptionally(e));
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            LOGGER.error("Cannot commit the group", e);
+        }
+    }
+
+    /**
+     * Commit all submitted entities and stop the timer.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        scheduler.shutdown();
+        flush();
+    }
+
+    /**
+     * Submitted entity.
+     *
+     * @param <T> entity.
+     */
+    protected static final class Pending<T> {
+
+        private final T entity;
+
+        private final CompletableFuture<Void> result;
+
+        Pending(T entity, CompletableFuture<Void> result) {
+            this.entity = entity;
+            this.result = result;
+        }
+
+        public T getEntity() {
+            return entity;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot;
+
+import io.github.ma1uta.matrix.client.model.sync.JoinedRoom;
+import io.github.ma1uta.matrix.client.model.sync.Rooms;
+import io.github.ma1uta.matrix.client.model.sync.SyncResponse;
+import io.github.ma1uta.matrix.event.Event;
+import io.github.ma1uta.matrix.event.RoomMember;
+import io.github.ma1uta.matrix.event.content.RoomMemberContent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Rooms joined by the bot.
+ * <br>
+ * The set is loaded once via {@code joinedRooms()} and then updated from the membership changes: the {@code rooms.join} and
+ * {@code rooms.leave} sections of the sync and the bot's own {@code m.room.member} events. The set is reloaded from the
+ * server after the reconcile interval to fix possible drift.
+ */
+public class JoinedRoomTracker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JoinedRoomTracker.class);
+
+    /**
+     * Default reconcile interval in milliseconds.
+     */
+    public static final long DEFAULT_RECONCILE_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+
+    private final Supplier<CompletableFuture<List<String>>> loader;
+
+    private final Supplier<String> userId;
+
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private long reconcileInterval = DEFAULT_RECONCILE_INTERVAL;
+
+    private volatile long lastReconcile;
+
+    private volatile boolean loaded;
+
+    /**
+     * Create the tracker.
+     *
+     * @param loader The joined rooms request.
+     * @param userId The bot's user id.
+     */
+    public JoinedRoomTracker(Supplier<CompletableFuture<List<String>>> loader, Supplier<String> userId) {
+        this.loader = Objects.requireNonNull(loader, "Loader should be specified.");
+        this.userId = Objects.requireNonNull(userId, "User id should be specified.");
+    }
+
+    public long getReconcileInterval() {
+        return reconcileInterval;
+    }
+
+    /**
+     * Set the reconcile interval.
+     *
+     * @param reconcileInterval The interval in milliseconds between reloads of the joined rooms.
+     */
+    public void setReconcileInterval(long reconcileInterval) {
+        this.reconcileInterval = reconcileInterval;
+    }
+
+    /**
+     * Add the listener of the membership changes.
+     *
+     * @param listener The listener.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Joined rooms.
+     *
+     * @return The unmodifiable view of the joined rooms.
+     */
+    public Set<String> getRooms() {
+        ensureLoaded();
+        return Collections.unmodifiableSet(rooms);
+    }
+
+    /**
+     * Check that the bot is joined to the room.
+     *
+     * @param roomId The room id.
+     * @return {@code true} if the bot is joined to the room, else {@code false}.
+     */
+    public boolean contains(String roomId) {
+        ensureLoaded();
+        return rooms.contains(roomId);
+    }
+
+    /**
+     * Check that the bot has no joined rooms. The empty set is confirmed by the server.
+     *
+     * @return {@code true} if the bot has no joined rooms, else {@code false}.
+     */
+    public boolean isEmpty() {
+        ensureLoaded();
+        if (rooms.isEmpty()) {
+            reconcile();
+        }
+        return rooms.isEmpty();
+    }
+
+    /**
+     * Add the joined room.
+     *
+     * @param roomId The room id.
+     */
+    public void joined(String roomId) {
+        if (rooms.add(roomId)) {
+            listeners.forEach(listener -> listener.joined(roomId));
+        }
+    }
+
+    /**
+     * Remove the left room.
+     *
+     * @param roomId The room id.
+     */
+    public void left(String roomId) {
+        if (rooms.remove(roomId)) {
+            listeners.forEach(listener -> listener.left(roomId));
+        }
+    }
+
+    /**
+     * Update the joined rooms from the sync response.
+     *
+     * @param syncResponse The sync response.
+     */
+    public void update(SyncResponse syncResponse) {
+        Rooms syncRooms = syncResponse.getRooms();
+        if (syncRooms == null) {
+            return;
+        }
+        if (syncRooms.getLeave() != null) {
+            syncRooms.getLeave().keySet().forEach(this::left);
+        }
+        if (syncRooms.getJoin() != null) {
+            for (Map.Entry<String, JoinedRoom> entry : syncRooms.getJoin().entrySet()) {
+                joined(entry.getKey());
+                if (entry.getValue().getTimeline() != null) {
+                    update(entry.getKey(), entry.getValue().getTimeline().getEvents());
+                }
+            }
+        }
+    }
+
+    /**
+     * Update the joined rooms from the bot's own membership events.
+     *
+     * @param roomId The room id.
+     * @param events The room events.
+     */
+    public void update(String roomId, List<Event> events) {
+        if (events == null) {
+            return;
+        }
+        String id = userId.get();
+        for (Event event : events) {
+            if (event instanceof RoomMember) {
+                RoomMember member = (RoomMember) event;
+                if (id != null && id.equals(member.getStateKey()) && member.getContent() != null) {
+                    String membership = member.getContent().getMembership();
+                    if (RoomMemberContent.JOIN.equals(membership)) {
+                        joined(roomId);
+                    } else if (RoomMemberContent.LEAVE.equals(membership) || RoomMemberContent.BAN.equals(membership)) {
+                        left(roomId);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Restore the joined rooms without the request to the server, for example after the hibernation.
+     * <br>
+     * Listeners are not notified.
+     *
+     * @param joinedRooms The joined rooms.
+     */
+    public synchronized void restore(Collection<String> joinedRooms) {
+        rooms.clear();
+        rooms.addAll(joinedRooms);
+        lastReconcile = System.currentTimeMillis();
+        loaded = true;
+    }
+
+    /**
+     * Reload the joined rooms if the reconcile interval has expired.
+     */
+    public void reconcileIfExpired() {
+        if (!loaded || System.currentTimeMillis() - lastReconcile >= getReconcileInterval()) {
+            reconcile();
+        }
+    }
+
+    /**
+     * Reload the joined rooms from the server.
+     */
+    public synchronized void reconcile() {
+        Set<String> joinedRooms = new HashSet<>(loader.get().join());
+        for (String roomId : rooms) {
+            if (!joinedRooms.contains(roomId)) {
+                left(roomId);
+            }
+        }
+        joinedRooms.forEach(this::joined);
+        lastReconcile = System.currentTimeMillis();
+        loaded = true;
+        LOGGER.debug("Joined rooms: {}", rooms.size());
+    }
+
+    private void ensureLoaded() {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) {
+                    reconcile();
+                }
+            }
+        }
+    }
+
+    /**
+     * Listener of the membership changes.
+     */
+    public interface Listener {
+
+        /**
+         * The bot joined the room.
+         *
+         * @param roomId The room id.
+         */
+        void joined(String roomId);
+
+        /**
+         * The bot left the room.
+         *
+         * @param roomId The room id.
+         */
+        void left(String roomId);
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Outbound queue of the bot.
+ * <br>
+ * Requests are sent in the order of the priority and are limited by the bot's token bucket and the optional global token
+ * bucket shared by the bots. Requests with the same merge key are merged, only the latest one is sent. When the queue is full
+ * the oldest request with the lowest priority is dropped, or the new request is rejected if it has the lowest priority.
+ * <br>
+ * The scheduler only waits for the tokens, the requests are sent one by one in the sender executor, so the slow requests
+ * don't block the scheduler shared by the bots.
+ */
+public class OutboundQueue {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OutboundQueue.class);
+
+    /**
+     * Default maximum number of the queued requests.
+     */
+    public static final int DEFAULT_CAPACITY = 100;
+
+    /**
+     * Priority of the request.
+     */
+    public enum Priority {
+        /**
+         * Reply to the command.
+         */
+        REPLY,
+
+        /**
+         * Notice, for example, about unknown command.
+         */
+        NOTICE,
+
+        /**
+         * Read receipt.
+         */
+        RECEIPT
+    }
+
+    private final TokenBucket bucket;
+
+    private final TokenBucket globalBucket;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Executor sender;
+
+    private final int capacity;
+
+    private final List<ArrayDeque<Item<?>>> queues = new ArrayList<>();
+
+    private final Map<String, Item<?>> merged = new HashMap<>();
+
+    private int size;
+
+    private boolean draining;
+
+    private final ArrayDeque<Item<?>> outgoing = new ArrayDeque<>();
+
+    private boolean sending;
+
+    /**
+     * Create the queue.
+     *
+     * @param bucket       The bot's token bucket.
+     * @param globalBucket The shared token bucket or {@code null}.
+     * @param scheduler    The scheduler to wait for the tokens.
+     * @param sender       The executor to send requests.
+     * @param capacity     The maximum number of the queued requests.
+     */
+    public OutboundQueue(TokenBucket bucket, TokenBucket globalBucket, ScheduledExecutorService scheduler, Executor sender,
+                         int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity should be positive.");
+        }
+        this.bucket = Objects.requireNonNull(bucket, "Bucket should be specified.");
+        this.globalBucket = globalBucket;
+        this.scheduler = Objects.requireNonNull(scheduler, "Scheduler should be specified.");
+        this.sender = Objects.requireNonNull(sender, "Sender should be specified.");
+        this.capacity = capacity;
+        for (int i = 0; i < Priority.values().length; i++) {
+            queues.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Number of the queued requests.
+     *
+     * @return The number of the queued requests.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Submit the request.
+     *
+     * @param priority The priority.
+     * @param mergeKey The key to merge requests or {@code null}.
+     * @param request  The request.
+     * @param <T>      The response type.
+     * @return The response. Completes exceptionally with the {@link RejectedExecutionException} if the request is dropped.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> submit(Priority priority, String mergeKey, Supplier<CompletableFuture<T>> request) {
+        Objects.requireNonNull(priority, "Priority should be specified.");
+        Objects.requireNonNull(request, "Request should be specified.");
+        CompletableFuture<T> future = new CompletableFuture<>();
+        boolean schedule;
+        synchronized (this) {
+            Item<?> existing = mergeKey != null ? merged.get(mergeKey) : null;
+            if (existing != null) {
+                Item<T> item = (Item<T>) existing;
+                item.request = request;
+                item.futures.add(future);
+                return future;
+            }
+            if (size >= capacity && !evict(priority)) {
+                LOGGER.warn("Outbound queue is full, reject the request");
+                future.completeExceptionally(new RejectedExecutionException("Outbound queue is full."));
+                return future;
+            }
+            Item<T> item = new Item<>(mergeKey, request, future);
+            queues.get(priority.ordinal()).add(item);
+            size++;
+            if (mergeKey != null) {
+                merged.put(mergeKey, item);
+            }
+            schedule = !draining;
+            draining = true;
+        }
+        if (schedule) {
+            execute(this::drain, 0);
+        }
+        return future;
+    }
+
+    /**
+     * Drop the oldest request with the priority lower than specified.
+     *
+     * @param priority The priority of the new request.
+     * @return {@code true} if the request was dropped, else {@code false}.
+     */
+    private boolean evict(Priority priority) {
+        for (int i = queues.size() - 1; i > priority.ordinal(); i--) {
+            Item<?> item = queues.get(i).pollFirst();
+            if (item != null) {
+                size--;
+                if (item.mergeKey != null) {
+                    merged.remove(item.mergeKey, item);
+                }
+                LOGGER.debug("Drop the request with priority {}", Priority.values()[i]);
+                item.reject();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected void drain() {
+        while (true) {
+            Item<?> item = null;
+            boolean send;
+            synchronized (this) {
+                for (ArrayDeque<Item<?>> queue : queues) {
+                    item = queue.peekFirst();
+                    if (item != null) {
+                        break;
+                    }
+                }
+                if (item == null) {
+                    draining = false;
+                    return;
+                }
+                long delay = acquire();
+                if (delay > 0) {
+                    execute(this::drain, delay);
+                    return;
+                }
+                for (ArrayDeque<Item<?>> queue : queues) {
+                    if (queue.peekFirst() == item) {
+                        queue.pollFirst();
+                        break;
+                    }
+                }
+                size--;
+                if (item.mergeKey != null) {
+                    merged.remove(item.mergeKey, item);
+                }
+                outgoing.add(item);
+                send = !sending;
+                sending = true;
+            }
+            if (send) {
+                send();
+            }
+        }
+    }
+
+    private void send() {
+        try {
+            sender.execute(this::sendOutgoing);
+        } catch (RejectedExecutionException e) {
+            LOGGER.error("Sender is stopped, drop the outgoing requests", e);
+            synchronized (this) {
+                outgoing.forEach(Item::reject);
+                outgoing.clear();
+                sending = false;
+            }
+        }
+    }
+
+    /**
+     * Send the requests in the order they were taken from the queue.
+     */
+    protected void sendOutgoing() {
+        while (true) {
+            Item<?> item;
+            synchronized (this) {
+                item = outgoing.pollFirst();
+                if (item == null) {
+                    sending = false;
+                    return;
+                }
+            }
+            item.send();
+        }
+    }
+
+    private long acquire() {
+        if (!bucket.tryAcquire()) {
+            return Math.max(1, bucket.delayNanos());
+        }
+        if (globalBucket != null && !globalBucket.tryAcquire()) {
+            bucket.refund();
+            return Math.max(1, globalBucket.delayNanos());
+        }
+        return 0;
+    }
+
+    private void execute(Runnable action, long delayNanos) {
+        try {
+            scheduler.schedule(action, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            LOGGER.error("Scheduler is stopped, drop the queued requests", e);
+            synchronized (this) {
+                queues.forEach(queue -> {
+                    queue.forEach(Item::reject);
+                    queue.clear();
+                });
+                merged.clear();
+                size = 0;
+                draining = false;
+            }
+        }
+    }
+
+    /**
+     * Queued request.
+     *
+     * @param <T> response type.
+     */
+    private static final class Item<T> {
+
+        private final String mergeKey;
+
+        private final List<CompletableFuture<T>> futures = new ArrayList<>(1);
+
+        private Supplier<CompletableFuture<T>> request;
+
+        Item(String mergeKey, Supplier<CompletableFuture<T>> request, CompletableFuture<T> future) {
+            this.mergeKey = mergeKey;
+            this.request = request;
+            this.futures.add(future);
+        }
+
+        void send() {
+            CompletableFuture<T> response;
+            try {
+                response = request.get();
+            } catch (RuntimeException e) {
+                futures.forEach(future -> future.completeExceptionally(e));
+                return;
+            }
+            response.whenComplete((value, throwable) -> futures.forEach(future -> {
+                if (throwable != null) {
+                    future.completeExceptionally(throwable);
+                } else {
+                    future.complete(value);
+                }
+            }));
+        }
+
+        void reject() {
+            futures.forEach(future -> future.completeExceptionally(new RejectedExecutionException("Request is dropped.")));
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Router of the messages by the bots' command prefixes.
+ * <br>
+ * Effective prefixes of all bots are compiled into the one char trie. Prefixes are anchored at the start of the message, so
+ * the message body is scanned once from the start and all bots which prefixes are passed are collected. Bots with the default
+ * command receive all messages. The trie is updated in place when the bot's prefix is changed.
+ */
+public class PrefixRouter {
+
+    private final Node root = new Node();
+
+    private final Set<String> catchAll = ConcurrentHashMap.newKeySet();
+
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+
+    /**
+     * Add or update the bot's route.
+     *
+     * @param userId   The bot's user id.
+     * @param prefix   The effective prefix.
+     * @param catchAll {@code true} if the bot receives all messages (for example, the bot has the default command).
+     */
+    public synchronized void update(String userId, String prefix, boolean catchAll) {
+        Objects.requireNonNull(userId, "User id should be specified.");
+        Objects.requireNonNull(prefix, "Prefix should be specified.");
+        Route current = routes.get(userId);
+        if (current != null && current.prefix.equals(prefix) && current.catchAll == catchAll) {
+            return;
+        }
+        if (current != null) {
+            remove(userId);
+        }
+        Node node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.children.computeIfAbsent(prefix.charAt(i), key -> new Node());
+        }
+        node.bots.add(userId);
+        if (catchAll) {
+            this.catchAll.add(userId);
+        }
+        routes.put(userId, new Route(prefix, catchAll));
+    }
+
+    /**
+     * Remove the bot's route.
+     *
+     * @param userId The bot's user id.
+     */
+    public synchronized void remove(String userId) {
+        Route route = routes.remove(userId);
+        if (route == null) {
+            return;
+        }
+        catchAll.remove(userId);
+        Node node = root;
+        for (int i = 0; i < route.prefix.length() && node != null; i++) {
+            node = node.children.get(route.prefix.charAt(i));
+        }
+        if (node != null) {
+            node.bots.remove(userId);
+        }
+    }
+
+    /**
+     * Check that the bot is routed.
+     *
+     * @param userId The bot's user id.
+     * @return {@code true} if the bot has the route, else {@code false}.
+     */
+    public boolean contains(String userId) {
+        return routes.containsKey(userId);
+    }
+
+    /**
+     * Find the bots which should receive the message.
+     *
+     * @param body The trimmed message body.
+     * @return The user ids of the bots which prefix matches the body and the bots which receive all messages.
+     */
+    public Set<String> route(String body) {
+        Set<String> bots = null;
+        Node node = root;
+        int position = 0;
+        while (node != null) {
+            if (!node.bots.isEmpty()) {
+                if (bots == null) {
+                    bots = new HashSet<>(catchAll);
+                }
+                bots.addAll(node.bots);
+            }
+            node = position < body.length() ? node.children.get(body.charAt(position++)) : null;
+        }
+        if (bots == null) {
+            return catchAll.isEmpty() ? Collections.emptySet() : new HashSet<>(catchAll);
+        }
+        return bots;
+    }
+
+    /**
+     * Trie node.
+     */
+    private static final class Node {
+
+        private final Map<Character, Node> children = new ConcurrentHashMap<>();
+
+        private final Set<String> bots = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Registered route.
+     */
+    private static final class Route {
+
+        private final String prefix;
+
+        private final boolean catchAll;
+
+        Route(String prefix, boolean catchAll) {
+            this.prefix = prefix;
+            this.catchAll = catchAll;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the bots by the joined rooms.
+ * <br>
+ * Bots are stored by the user ids, so the index doesn't hold the bot instances.
+ */
+public class RoomRoutingIndex {
+
+    private final Map<String, Set<String>> roomBots = new ConcurrentHashMap<>();
+
+    private final Map<String, Set<String>> botRooms = new ConcurrentHashMap<>();
+
+    /**
+     * Add the bot to the room.
+     *
+     * @param roomId The room id.
+     * @param userId The bot's user id.
+     */
+    public void joined(String roomId, String userId) {
+        link(roomBots, roomId, userId);
+        link(botRooms, userId, roomId);
+    }
+
+    /**
+     * Remove the bot from the room.
+     *
+     * @param roomId The room id.
+     * @param userId The bot's user id.
+     */
+    public void left(String roomId, String userId) {
+        unlink(roomBots, roomId, userId);
+        unlink(botRooms, userId, roomId);
+    }
+
+    /**
+     * Remove the bot from all rooms.
+     *
+     * @param userId The bot's user id.
+     */
+    public void remove(String userId) {
+        Set<String> rooms = botRooms.remove(userId);
+        if (rooms != null) {
+            rooms.forEach(roomId -> unlink(roomBots, roomId, userId));
+        }
+    }
+
+    /**
+     * Bots joined to the room.
+     *
+     * @param roomId The room id.
+     * @return The user ids of the bots.
+     */
+    public Set<String> bots(String roomId) {
+        Set<String> bots = roomBots.get(roomId);
+        return bots != null ? Collections.unmodifiableSet(bots) : Collections.emptySet();
+    }
+
+    /**
+     * Rooms of the bot.
+     *
+     * @param userId The bot's user id.
+     * @return The room ids.
+     */
+    public Set<String> rooms(String userId) {
+        Set<String> rooms = botRooms.get(userId);
+        return rooms != null ? Collections.unmodifiableSet(rooms) : Collections.emptySet();
+    }
+
+    /**
+     * Check that the bot is joined to the room.
+     *
+     * @param roomId The room id.
+     * @param userId The bot's user id.
+     * @return {@code true} if the bot is joined to the room, else {@code false}.
+     */
+    public boolean contains(String roomId, String userId) {
+        Set<String> bots = roomBots.get(roomId);
+        return bots != null && bots.contains(userId);
+    }
+
+    /**
+     * Listener to update the index from the bot's joined rooms.
+     *
+     * @param userId The bot's user id.
+     * @return The listener.
+     */
+    public JoinedRoomTracker.Listener listener(String userId) {
+        return new JoinedRoomTracker.Listener() {
+            @Override
+            public void joined(String roomId) {
+                RoomRoutingIndex.this.joined(roomId, userId);
+            }
+
+            @Override
+            public void left(String roomId) {
+                RoomRoutingIndex.this.left(roomId, userId);
+            }
+        };
+    }
+
+    private static void link(Map<String, Set<String>> index, String key, String value) {
+        index.compute(key, (k, values) -> {
+            Set<String> result = values != null ? values : ConcurrentHashMap.newKeySet();
+            result.add(value);
+            return result;
+        });
+    }
+
+    private static void unlink(Map<String, Set<String>> index, String key, String value) {
+        index.computeIfPresent(key, (k, values) -> {
+            values.remove(value);
+            return values.isEmpty() ? null : values;
+        });
+    }
+}
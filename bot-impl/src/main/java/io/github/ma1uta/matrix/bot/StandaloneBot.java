@@ -18,9 +18,9 @@ package io.github.ma1uta.matrix.bot;
 
 import io.github.ma1uta.matrix.client.MatrixClient;
 import io.github.ma1uta.matrix.client.factory.RequestFactory;
+import io.github.ma1uta.matrix.client.filter.FilterRegistry;
 import io.github.ma1uta.matrix.client.model.sync.InvitedRoom;
 import io.github.ma1uta.matrix.client.model.sync.JoinedRoom;
-import io.github.ma1uta.matrix.client.model.sync.LeftRoom;
 import io.github.ma1uta.matrix.client.model.sync.Rooms;
 import io.github.ma1uta.matrix.client.model.sync.SyncResponse;
 import io.github.ma1uta.matrix.event.Event;
@@ -31,7 +31,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
-import java.util.function.Supplier;
 
 /**
  * Matrix bot client.
@@ -46,15 +45,44 @@ public class StandaloneBot<C extends BotConfig, D extends BotDao<C>, S extends P
 
     private static final Logger LOGGER = LoggerFactory.getLogger(StandaloneBot.class);
 
+    private volatile boolean initialized;
+
     public StandaloneBot(RequestFactory factory, boolean exitOnEmptyRooms, C config, S service,
                          List<Class<? extends Command<C, D, S, E>>> commandsClasses) {
         super(factory, null, exitOnEmptyRooms, config, service, commandsClasses);
     }
 
+    public StandaloneBot(RequestFactory factory, boolean exitOnEmptyRooms, C config, S service,
+                         List<Class<? extends Command<C, D, S, E>>> commandsClasses, FilterRegistry filterRegistry) {
+        super(factory, null, exitOnEmptyRooms, config, service, commandsClasses, filterRegistry);
+    }
+
+    public StandaloneBot(RequestFactory factory, boolean exitOnEmptyRooms, C config, S service,
+                         CommandRegistry<C, D, S, E> commandRegistry, FilterRegistry filterRegistry) {
+        super(factory, null, exitOnEmptyRooms, config, service, commandRegistry, filterRegistry);
+    }
+
+    /**
+     * Run startup action.
+     * <br>
+     * The pool calls it in the thread which submits the bot, so the bot's loop doesn't repeat it.
+     */
+    @Override
+    public void init() {
+        super.init();
+        initialized = true;
+    }
+
+    public boolean isInitialized() {
+        return initialized;
+    }
+
     @Override
     public void run() {
         try {
-            init();
+            if (!isInitialized()) {
+                init();
+            }
 
             LoopState state = LoopState.RUN;
             while (!LoopState.EXIT.equals(state)) {
@@ -80,7 +108,7 @@ public class StandaloneBot<C extends BotConfig, D extends BotDao<C>, S extends P
             LOGGER.error("Exception:", e);
             throw e;
         } finally {
-            getContext().getShutdownListeners().forEach(Supplier::get);
+            getContext().shutdown();
         }
     }
 
@@ -93,18 +121,25 @@ public class StandaloneBot<C extends BotConfig, D extends BotDao<C>, S extends P
     protected LoopState loop(Function<SyncResponse, LoopState> loopAction) {
         C config = getContext().getConfig();
         MatrixClient matrixClient = getContext().getMatrixClient();
-        SyncResponse sync = matrixClient.sync().sync(config.getFilterId(), config.getNextBatch(), false, null, null).join();
+        String since = config.getNextBatch();
+        String startBatch = since;
+        SyncResponse sync = withLogin(() -> matrixClient.sync().sync(config.getFilterId(), startBatch, false, null, null).join());
 
         String initialBatch = sync.getNextBatch();
         if (config.getNextBatch() == null && config.getSkipInitialSync() != null && config.getSkipInitialSync()) {
             getContext().runInTransaction((context, dao) -> {
                 context.getConfig().setNextBatch(initialBatch);
             });
-            sync = matrixClient.sync().sync(config.getFilterId(), initialBatch, false, null, config.getTimeout()).join();
+            since = initialBatch;
+            sync = withLogin(() -> matrixClient.sync().sync(config.getFilterId(), initialBatch, false, null, config.getTimeout()).join());
         }
 
         while (true) {
             try {
+                sync = fillGaps(sync, since);
+                getMemberCache().update(sync);
+                leaveRooms(sync);
+                getJoinedRooms().update(sync);
                 LoopState nextState = loopAction.apply(sync);
 
                 String nextBatch = sync.getNextBatch();
@@ -120,9 +155,38 @@ public class StandaloneBot<C extends BotConfig, D extends BotDao<C>, S extends P
                     return LoopState.EXIT;
                 }
 
+                since = nextBatch;
+                if (isFilterChanged()) {
+                    refreshFilter();
+                }
                 sync = matrixClient.sync().sync(config.getFilterId(), nextBatch, false, null, config.getTimeout()).join();
             } catch (Exception e) {
-                LOGGER.error("Exception: ", e);
+                if (isAuthenticationRequired(e)) {
+                    LOGGER.warn("Session has been expired, login again.");
+                    login();
+                } else {
+                    LOGGER.error("Exception: ", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Leave the rooms of the {@code rooms.leave} section which are still tracked as joined.
+     * <br>
+     * Invoked before the joined rooms are updated from the sync response, because the update removes these rooms.
+     *
+     * @param sync the sync response.
+     */
+    protected void leaveRooms(SyncResponse sync) {
+        Rooms rooms = sync.getRooms();
+        if (rooms == null || rooms.getLeave() == null) {
+            return;
+        }
+        JoinedRoomTracker joinedRooms = getJoinedRooms();
+        for (String leftRoom : rooms.getLeave().keySet()) {
+            if (joinedRooms.contains(leftRoom)) {
+                getContext().getMatrixClient().room().leave(leftRoom);
             }
         }
     }
@@ -152,14 +216,8 @@ public class StandaloneBot<C extends BotConfig, D extends BotDao<C>, S extends P
         return loop(sync -> {
             Rooms rooms = sync.getRooms();
 
-            MatrixClient matrixClient = getContext().getMatrixClient();
-            List<String> joinedRooms = matrixClient.room().joinedRooms().join();
-            for (Map.Entry<String, LeftRoom> roomEntry : rooms.getLeave().entrySet()) {
-                String leftRoom = roomEntry.getKey();
-                if (joinedRooms.contains(leftRoom)) {
-                    matrixClient.room().leave(leftRoom);
-                }
-            }
+            JoinedRoomTracker joinedRooms = getJoinedRooms();
+            joinedRooms.reconcileIfExpired();
 
             LoopState nextState = LoopState.RUN;
             for (Map.Entry<String, JoinedRoom> joinedRoomEntry : rooms.getJoin().entrySet()) {
@@ -180,7 +238,7 @@ public class StandaloneBot<C extends BotConfig, D extends BotDao<C>, S extends P
                 }
             }
 
-            if (getContext().getMatrixClient().room().joinedRooms().join().isEmpty()) {
+            if (joinedRooms.isEmpty()) {
                 getContext().runInTransaction((context, dao) -> {
                     context.getConfig().setState(isExitOnEmptyRooms() ? BotState.DELETED : BotState.REGISTERED);
                 });
@@ -0,0 +1,97 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter.
+ */
+public class TokenBucket {
+
+    private final double capacity;
+
+    private final double tokensPerNano;
+
+    private double tokens;
+
+    private long last;
+
+    /**
+     * Create the full bucket.
+     *
+     * @param capacity  The maximum number of tokens (burst).
+     * @param perSecond The number of tokens added per second.
+     */
+    public TokenBucket(int capacity, double perSecond) {
+        if (capacity < 1 || perSecond <= 0) {
+            throw new IllegalArgumentException("Capacity and rate should be positive.");
+        }
+        this.capacity = capacity;
+        this.tokensPerNano = perSecond / TimeUnit.SECONDS.toNanos(1);
+        this.tokens = capacity;
+        this.last = System.nanoTime();
+    }
+
+    /**
+     * Take one token.
+     *
+     * @return {@code true} if the token is taken, else {@code false}.
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Take one token, wait if necessary.
+     *
+     * @throws InterruptedException when the thread is interrupted while waiting.
+     */
+    public void acquire() throws InterruptedException {
+        while (!tryAcquire()) {
+            TimeUnit.NANOSECONDS.sleep(Math.max(1, delayNanos()));
+        }
+    }
+
+    /**
+     * Return the taken token.
+     */
+    public synchronized void refund() {
+        tokens = Math.min(capacity, tokens + 1);
+    }
+
+    /**
+     * Time until the next token.
+     *
+     * @return The delay in nanoseconds, {@code 0} if the token is available.
+     */
+    public synchronized long delayNanos() {
+        refill();
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerNano);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - last) * tokensPerNano);
+        last = now;
+    }
+}
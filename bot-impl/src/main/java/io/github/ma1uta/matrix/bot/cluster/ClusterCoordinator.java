@@ -0,0 +1,618 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot.cluster;
+
+import io.github.ma1uta.matrix.bot.AbstractBotPool;
+import io.github.ma1uta.matrix.bot.BotConfig;
+import io.github.ma1uta.matrix.bot.FencedBotDao;
+import io.github.ma1uta.matrix.bot.PersistentService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coordinator of the bot pools on the several nodes.
+ * <br>
+ * Each node holds the node lease while it is alive. Bots are assigned to the alive nodes via the rendezvous hashing, so
+ * only the bots of the joined or left node are moved. The node runs the bot only while it holds the bot's lease: a new bot
+ * is started after the lease is acquired and is stopped when the lease can't be renewed or before it expires. When the bot
+ * is assigned to the other node it is stopped and the lease is released.
+ * <br>
+ * The lease timing alone doesn't protect from the paused node, so the bot's row is fenced with the lease token before the bot is
+ * started and all writes of the configuration are the conditional updates with this token (see {@link FencedBotDao}). The changes
+ * of the stopped bot are saved from the write-behind before its lease is released.
+ * <br>
+ * The bots are started by {@link AbstractBotPool#getStartupConcurrency()} threads outside of the coordinator's lock, so the slow
+ * login doesn't delay the renewal of the leases. The user ids of the bots are loaded once and reloaded every
+ * {@link #getRefreshInterval()} to find the bots added on the other nodes, the bots added on this node are registered by
+ * {@link #startBot(String)}. The assignment is recalculated only when the set of the alive nodes or the bots is changed.
+ * <br>
+ * The {@link AbstractBotPool#start()} of the coordinated pool delegates to the {@link #start()}.
+ *
+ * @param <C> bot configuration.
+ * @param <D> bot dao.
+ * @param <L> lease dao.
+ */
+public class ClusterCoordinator<C extends BotConfig, D extends FencedBotDao<C>, L extends LeaseDao> implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClusterCoordinator.class);
+
+    /**
+     * Default lease time to live in milliseconds.
+     */
+    public static final long DEFAULT_TTL = 30_000L;
+
+    /**
+     * Default interval of the reload of the bots in milliseconds.
+     */
+    public static final long DEFAULT_REFRESH_INTERVAL = 300_000L;
+
+    /**
+     * Prefix of the node leases.
+     */
+    public static final String NODE_PREFIX = "node:";
+
+    /**
+     * Prefix of the bot leases.
+     */
+    public static final String BOT_PREFIX = "bot:";
+
+    private static final int RENEWALS_PER_TTL = 3;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final int BYTE_MASK = 0xff;
+
+    private static final long STOP_POLL_INTERVAL = 100L;
+
+    private final AbstractBotPool<C, D, ?, ?, ?> pool;
+
+    private final PersistentService<L> leaseService;
+
+    private final String nodeId;
+
+    private final long ttl;
+
+    private final Map<String, Lease> leases = new HashMap<>();
+
+    private final Map<String, Lease> stopping = new HashMap<>();
+
+    private final Set<String> starting = new HashSet<>();
+
+    private final Set<String> bots = new HashSet<>();
+
+    private final Set<String> assigned = new HashSet<>();
+
+    private final ScheduledExecutorService scheduler;
+
+    private final ExecutorService startExecutor;
+
+    private List<String> nodes = Collections.emptyList();
+
+    private boolean changed = true;
+
+    private long loadedAt;
+
+    private volatile long refreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+    private ScheduledFuture<?> rebalanceTask;
+
+    private Lease nodeLease;
+
+    public ClusterCoordinator(AbstractBotPool<C, D, ?, ?, ?> pool, PersistentService<L> leaseService, String nodeId) {
+        this(pool, leaseService, nodeId, DEFAULT_TTL);
+    }
+
+    public ClusterCoordinator(AbstractBotPool<C, D, ?, ?, ?> pool, PersistentService<L> leaseService, String nodeId, long ttl) {
+        if (ttl < RENEWALS_PER_TTL) {
+            throw new IllegalArgumentException("TTL is too small.");
+        }
+        this.pool = Objects.requireNonNull(pool, "Pool should be specified.");
+        this.leaseService = Objects.requireNonNull(leaseService, "Lease service should be specified.");
+        this.nodeId = Objects.requireNonNull(nodeId, "Node id should be specified.");
+        this.ttl = ttl;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-coordinator-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.startExecutor = Executors.newFixedThreadPool(Math.max(1, pool.getStartupConcurrency()), runnable -> {
+            Thread thread = new Thread(runnable, "cluster-startup-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.setCoordinator(this);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public long getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    /**
+     * Set the interval of the reload of the bots' user ids.
+     *
+     * @param refreshInterval The interval in milliseconds.
+     */
+    public void setRefreshInterval(long refreshInterval) {
+        if (refreshInterval <= 0) {
+            throw new IllegalArgumentException("Refresh interval should be positive.");
+        }
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Start the periodical rebalance. The repeated calls are ignored.
+     */
+    public synchronized void start() {
+        if (rebalanceTask != null) {
+            return;
+        }
+        long interval = ttl / RENEWALS_PER_TTL;
+        rebalanceTask = scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                rebalance();
+            } catch (Exception e) {
+                LOGGER.error("Cannot rebalance bots", e);
+                fence(System.currentTimeMillis());
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop all bots of this node and release leases.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        awaitTermination(scheduler);
+        Map<String, Lease> stopped;
+        synchronized (leases) {
+            stopped = new HashMap<>(leases);
+            stopping.putAll(leases);
+            leases.clear();
+        }
+        stopped.keySet().forEach(this::stopBot);
+        startExecutor.shutdown();
+        awaitTermination(startExecutor);
+
+        Set<String> waiting;
+        synchronized (leases) {
+            waiting = new HashSet<>(stopping.keySet());
+        }
+        awaitStopped(waiting, System.currentTimeMillis() + ttl);
+        synchronized (leases) {
+            stopping.forEach(this::release);
+            stopping.clear();
+            if (nodeLease != null) {
+                Lease lease = nodeLease;
+                leaseService.invoke(dao -> {
+                    dao.release(NODE_PREFIX + nodeId, nodeId, lease.token);
+                });
+                nodeLease = null;
+            }
+        }
+    }
+
+    /**
+     * Check the alive nodes and start or stop bots assigned to this node.
+     * <br>
+     * The leases are renewed under the lock, the bots are started and stopped after it is released.
+     */
+    public void rebalance() {
+        Map<String, Lease> stopped = new HashMap<>();
+        try {
+            synchronized (leases) {
+                assign(System.currentTimeMillis(), stopped);
+            }
+        } finally {
+            stop(stopped);
+        }
+    }
+
+    /**
+     * Start the new bot if it is assigned to this node.
+     * <br>
+     * The bot is registered in the assignment. The bot assigned to the other node is started by that node on its next rebalance
+     * or after its next reload of the bots.
+     *
+     * @param userId The bot's user id.
+     * @return {@code true} if the start of the bot on this node is scheduled, else {@code false}.
+     */
+    public boolean startBot(String userId) {
+        synchronized (leases) {
+            bots.add(userId);
+            if (nodeLease == null) {
+                changed = true;
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            List<String> alive = leaseService.invoke(dao -> {
+                return dao.owners(NODE_PREFIX, now);
+            });
+            if (!nodeId.equals(owner(alive, userId))) {
+                return false;
+            }
+            assigned.add(userId);
+            return acquire(userId, now);
+        }
+    }
+
+    /**
+     * Renew the leases, update the assignment and acquire the leases of the assigned bots.
+     *
+     * @param now     The current time in milliseconds.
+     * @param stopped The bots which should be stopped.
+     */
+    private void assign(long now, Map<String, Lease> stopped) {
+        if (!heartbeat(now)) {
+            LOGGER.warn("Node {} lost its lease, stop all bots", nodeId);
+            expiring(Long.MAX_VALUE, stopped);
+            return;
+        }
+
+        List<String> alive = new ArrayList<>(leaseService.invoke(dao -> {
+            return dao.owners(NODE_PREFIX, now);
+        }));
+        Collections.sort(alive);
+        if (loadedAt == 0L || now - loadedAt >= getRefreshInterval()) {
+            reload();
+            loadedAt = now;
+        }
+        if (changed || !alive.equals(nodes)) {
+            nodes = alive;
+            assigned.clear();
+            for (String userId : bots) {
+                if (nodeId.equals(owner(nodes, userId))) {
+                    assigned.add(userId);
+                }
+            }
+            changed = false;
+        }
+
+        releaseStopped(now);
+
+        Iterator<Map.Entry<String, Lease>> iterator = leases.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Lease> entry = iterator.next();
+            String userId = entry.getKey();
+            Lease lease = entry.getValue();
+            boolean renewed = assigned.contains(userId) && active(userId) && leaseService.invoke(dao -> {
+                return dao.renew(BOT_PREFIX + userId, nodeId, lease.token, now + ttl, now);
+            });
+            if (renewed) {
+                lease.expiresAt = now + ttl;
+            } else {
+                LOGGER.debug("Bot {} is moved from the node {}", userId, nodeId);
+                stopping.put(userId, lease);
+                stopped.put(userId, lease);
+                iterator.remove();
+            }
+        }
+
+        for (String userId : assigned) {
+            acquire(userId, now);
+        }
+    }
+
+    /**
+     * Reload the user ids of the bots.
+     */
+    private void reload() {
+        List<C> configs = pool.getService().invoke(dao -> {
+            return dao.findAll();
+        });
+        Set<String> loaded = new HashSet<>();
+        for (C config : configs) {
+            if (config.getUserId() != null) {
+                loaded.add(config.getUserId());
+            }
+        }
+        if (!loaded.equals(bots)) {
+            bots.clear();
+            bots.addAll(loaded);
+            changed = true;
+        }
+    }
+
+    /**
+     * Acquire the lease of the bot, fence the bot's row and schedule the start of the bot.
+     *
+     * @param userId The bot's user id.
+     * @param now    The current time in milliseconds.
+     * @return {@code true} if the start is scheduled, else {@code false}.
+     */
+    private boolean acquire(String userId, long now) {
+        if (leases.containsKey(userId) || stopping.containsKey(userId) || active(userId)) {
+            return false;
+        }
+        Long token = leaseService.invoke(dao -> {
+            return dao.acquire(BOT_PREFIX + userId, nodeId, now + ttl, now);
+        });
+        if (token == null) {
+            return false;
+        }
+        Lease lease = new Lease(token, now + ttl);
+        C config = pool.getService().invoke(dao -> {
+            return dao.fence(userId, token);
+        });
+        if (config == null) {
+            LOGGER.warn("Bot {} is fenced by the newer lease, skip it", userId);
+            release(userId, lease);
+            return false;
+        }
+        LOGGER.debug("Start bot {} on the node {}", userId, nodeId);
+        leases.put(userId, lease);
+        starting.add(userId);
+        try {
+            startExecutor.execute(() -> launch(userId, lease, config));
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Coordinator is closed, skip the bot {}", userId);
+            starting.remove(userId);
+            leases.remove(userId);
+            release(userId, lease);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Start the bot. The bot which lease was taken away while it was starting is stopped.
+     *
+     * @param userId The bot's user id.
+     * @param lease  The bot's lease.
+     * @param config The fenced bot's configuration.
+     */
+    private void launch(String userId, Lease lease, C config) {
+        synchronized (leases) {
+            if (leases.get(userId) != lease) {
+                starting.remove(userId);
+                return;
+            }
+        }
+        try {
+            pool.startBot(config);
+        } catch (Exception e) {
+            LOGGER.error(String.format("Cannot start the bot %s", userId), e);
+        }
+        boolean revoked;
+        synchronized (leases) {
+            starting.remove(userId);
+            revoked = leases.get(userId) != lease;
+        }
+        if (revoked) {
+            stop(Collections.singletonMap(userId, lease));
+        }
+    }
+
+    /**
+     * Find the node of the bot.
+     *
+     * @param nodes  The alive nodes.
+     * @param userId The bot's user id.
+     * @return The node with the highest weight or {@code null} if there are no nodes.
+     */
+    protected String owner(List<String> nodes, String userId) {
+        String owner = null;
+        long maxWeight = Long.MIN_VALUE;
+        for (String node : nodes) {
+            long weight = weight(node, userId);
+            if (owner == null || weight > maxWeight || (weight == maxWeight && node.compareTo(owner) < 0)) {
+                owner = node;
+                maxWeight = weight;
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * Rendezvous weight (FNV-1a hash) of the node and the bot.
+     *
+     * @param node   The node id.
+     * @param userId The bot's user id.
+     * @return The weight.
+     */
+    protected long weight(String node, String userId) {
+        long hash = FNV_OFFSET;
+        for (byte b : (node + '\n' + userId).getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & BYTE_MASK;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private boolean heartbeat(long now) {
+        String resource = NODE_PREFIX + nodeId;
+        Long token = leaseService.invoke(dao -> {
+            return dao.acquire(resource, nodeId, now + ttl, now);
+        });
+        if (token == null || (nodeLease != null && nodeLease.token != token)) {
+            nodeLease = null;
+            return false;
+        }
+        nodeLease = new Lease(token, now + ttl);
+        return true;
+    }
+
+    /**
+     * Stop bots which leases are expired (or may be expired) at the specified time.
+     *
+     * @param deadline The time in milliseconds.
+     */
+    private void fence(long deadline) {
+        Map<String, Lease> stopped = new HashMap<>();
+        try {
+            synchronized (leases) {
+                expiring(deadline, stopped);
+            }
+        } finally {
+            stop(stopped);
+        }
+    }
+
+    /**
+     * Find the bots which leases are expired (or may be expired) at the specified time and move them to the stopping ones.
+     *
+     * @param deadline The time in milliseconds.
+     * @param stopped  The bots which should be stopped.
+     */
+    private void expiring(long deadline, Map<String, Lease> stopped) {
+        Iterator<Map.Entry<String, Lease>> iterator = leases.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Lease> entry = iterator.next();
+            if (entry.getValue().expiresAt - ttl / RENEWALS_PER_TTL <= deadline) {
+                LOGGER.warn("Lease of the bot {} is expiring, stop the bot", entry.getKey());
+                stopping.put(entry.getKey(), entry.getValue());
+                stopped.put(entry.getKey(), entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Stop the bots. The lease is kept until the bot is really stopped, so the bot can't be started on the other node earlier.
+     * <br>
+     * Should be invoked outside of the lock, the bots should be already moved to the stopping ones.
+     *
+     * @param stopped The bots and their leases.
+     */
+    private void stop(Map<String, Lease> stopped) {
+        if (stopped.isEmpty()) {
+            return;
+        }
+        stopped.keySet().forEach(this::stopBot);
+        synchronized (leases) {
+            for (Map.Entry<String, Lease> entry : stopped.entrySet()) {
+                String userId = entry.getKey();
+                if (!active(userId) && stopping.remove(userId, entry.getValue())) {
+                    release(userId, entry.getValue());
+                }
+            }
+        }
+    }
+
+    private void stopBot(String userId) {
+        try {
+            pool.stopBot(userId);
+        } catch (Exception e) {
+            LOGGER.error(String.format("Cannot stop the bot %s", userId), e);
+        }
+    }
+
+    /**
+     * Check that the bot is running or starting.
+     *
+     * @param userId The bot's user id.
+     * @return {@code true} if the bot is running or starting, else {@code false}.
+     */
+    private boolean active(String userId) {
+        return starting.contains(userId) || pool.isRunning(userId);
+    }
+
+    /**
+     * Release leases of the stopped bots and renew leases of the stopping bots.
+     *
+     * @param now The current time in milliseconds.
+     */
+    private void releaseStopped(long now) {
+        Iterator<Map.Entry<String, Lease>> iterator = stopping.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Lease> entry = iterator.next();
+            String userId = entry.getKey();
+            Lease lease = entry.getValue();
+            if (!active(userId)) {
+                release(userId, lease);
+                iterator.remove();
+            } else if (leaseService.invoke(dao -> {
+                return dao.renew(BOT_PREFIX + userId, nodeId, lease.token, now + ttl, now);
+            })) {
+                lease.expiresAt = now + ttl;
+            } else {
+                LOGGER.warn("Lease of the stopping bot {} is lost", userId);
+                iterator.remove();
+            }
+        }
+    }
+
+    private void awaitStopped(Set<String> userIds, long deadline) {
+        try {
+            while (System.currentTimeMillis() < deadline && userIds.stream().anyMatch(pool::isRunning)) {
+                Thread.sleep(STOP_POLL_INTERVAL);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void awaitTermination(ExecutorService executor) {
+        try {
+            executor.awaitTermination(ttl, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void release(String userId, Lease lease) {
+        try {
+            leaseService.invoke(dao -> {
+                dao.release(BOT_PREFIX + userId, nodeId, lease.token);
+            });
+        } catch (Exception e) {
+            LOGGER.error(String.format("Cannot release the lease of the bot %s", userId), e);
+        }
+    }
+
+    /**
+     * Held lease.
+     */
+    private static final class Lease {
+
+        private final long token;
+
+        private long expiresAt;
+
+        Lease(long token, long expiresAt) {
+            this.token = token;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
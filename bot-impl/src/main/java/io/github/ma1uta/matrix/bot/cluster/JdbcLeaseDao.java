@@ -0,0 +1,214 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot.cluster;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import javax.sql.DataSource;
+
+/**
+ * JDBC implementation of the {@link LeaseDao}.
+ * <br>
+ * Each method is the one transaction with the conditional updates, so nodes coordinate only through the database without the
+ * pessimistic locks. Released leases keep their rows to keep the fencing tokens growing. The table has the columns of the
+ * {@link BotLease}:
+ * <pre>
+ * CREATE TABLE bot_lease (
+ *     resource VARCHAR(255) PRIMARY KEY,
+ *     owner VARCHAR(255),
+ *     expires_at BIGINT NOT NULL,
+ *     token BIGINT NOT NULL
+ * )
+ * </pre>
+ */
+public class JdbcLeaseDao implements LeaseDao {
+
+    /**
+     * Default table name.
+     */
+    public static final String DEFAULT_TABLE = "bot_lease";
+
+    private static final String INTEGRITY_VIOLATION = "23";
+
+    private static final char ESCAPE = '!';
+
+    private final DataSource dataSource;
+
+    private final String acquireSql;
+
+    private final String tokenSql;
+
+    private final String insertSql;
+
+    private final String renewSql;
+
+    private final String releaseSql;
+
+    private final String ownersSql;
+
+    public JdbcLeaseDao(DataSource dataSource) {
+        this(dataSource, DEFAULT_TABLE);
+    }
+
+    public JdbcLeaseDao(DataSource dataSource, String table) {
+        this.dataSource = Objects.requireNonNull(dataSource, "Data source should be specified.");
+        Objects.requireNonNull(table, "Table should be specified.");
+        // the token is increased when the lease is taken from the other owner, after the release or after the expiration.
+        this.acquireSql = "UPDATE " + table + " SET token = CASE WHEN owner = ? AND expires_at > ? THEN token ELSE token + 1 END, "
+            + "owner = ?, expires_at = ? WHERE resource = ? AND (owner IS NULL OR owner = ? OR expires_at <= ?)";
+        this.tokenSql = "SELECT token FROM " + table + " WHERE resource = ?";
+        this.insertSql = "INSERT INTO " + table + " (resource, owner, expires_at, token) VALUES (?, ?, ?, 1)";
+        this.renewSql = "UPDATE " + table + " SET expires_at = ? WHERE resource = ? AND owner = ? AND token = ? AND expires_at > ?";
+        this.releaseSql = "UPDATE " + table + " SET owner = NULL, expires_at = 0 WHERE resource = ? AND owner = ? AND token = ?";
+        this.ownersSql = "SELECT DISTINCT owner FROM " + table + " WHERE resource LIKE ? ESCAPE '" + ESCAPE
+            + "' AND owner IS NOT NULL AND expires_at > ?";
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    @Override
+    public Long acquire(String resource, String owner, long expiresAt, long now) {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                Long token = acquire(connection, resource, owner, expiresAt, now);
+                connection.commit();
+                return token;
+            } catch (SQLException e) {
+                connection.rollback();
+                if (isIntegrityViolation(e)) {
+                    // the other node has inserted the lease concurrently.
+                    return null;
+                }
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot acquire the lease " + resource, e);
+        }
+    }
+
+    protected Long acquire(Connection connection, String resource, String owner, long expiresAt, long now) throws SQLException {
+        int updated;
+        try (PreparedStatement statement = connection.prepareStatement(acquireSql)) {
+            int index = 1;
+            statement.setString(index++, owner);
+            statement.setLong(index++, now);
+            statement.setString(index++, owner);
+            statement.setLong(index++, expiresAt);
+            statement.setString(index++, resource);
+            statement.setString(index++, owner);
+            statement.setLong(index++, now);
+            updated = statement.executeUpdate();
+        }
+        if (updated > 0) {
+            try (PreparedStatement statement = connection.prepareStatement(tokenSql)) {
+                statement.setString(1, resource);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    return resultSet.next() ? resultSet.getLong(1) : null;
+                }
+            }
+        }
+        try (PreparedStatement statement = connection.prepareStatement(tokenSql)) {
+            statement.setString(1, resource);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    // the lease is held by the other owner.
+                    return null;
+                }
+            }
+        }
+        try (PreparedStatement statement = connection.prepareStatement(insertSql)) {
+            int index = 1;
+            statement.setString(index++, resource);
+            statement.setString(index++, owner);
+            statement.setLong(index++, expiresAt);
+            statement.executeUpdate();
+        }
+        return 1L;
+    }
+
+    @Override
+    public boolean renew(String resource, String owner, long token, long expiresAt, long now) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(renewSql)) {
+            int index = 1;
+            statement.setLong(index++, expiresAt);
+            statement.setString(index++, resource);
+            statement.setString(index++, owner);
+            statement.setLong(index++, token);
+            statement.setLong(index++, now);
+            return statement.executeUpdate() > 0;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot renew the lease " + resource, e);
+        }
+    }
+
+    @Override
+    public void release(String resource, String owner, long token) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(releaseSql)) {
+            int index = 1;
+            statement.setString(index++, resource);
+            statement.setString(index++, owner);
+            statement.setLong(index++, token);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot release the lease " + resource, e);
+        }
+    }
+
+    @Override
+    public List<String> owners(String prefix, long now) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(ownersSql)) {
+            statement.setString(1, escape(prefix) + "%");
+            statement.setLong(2, now);
+            List<String> owners = new ArrayList<>();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    owners.add(resultSet.getString(1));
+                }
+            }
+            return owners;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot load the owners of the leases " + prefix, e);
+        }
+    }
+
+    protected String escape(String prefix) {
+        StringBuilder escaped = new StringBuilder(prefix.length());
+        for (int i = 0; i < prefix.length(); i++) {
+            char ch = prefix.charAt(i);
+            if (ch == ESCAPE || ch == '%' || ch == '_') {
+                escaped.append(ESCAPE);
+            }
+            escaped.append(ch);
+        }
+        return escaped.toString();
+    }
+
+    private static boolean isIntegrityViolation(SQLException exception) {
+        return exception.getSQLState() != null && exception.getSQLState().startsWith(INTEGRITY_VIOLATION);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot.cluster;
+
+import java.util.List;
+
+/**
+ * DAO of the leases.
+ * <br>
+ * All methods should be atomic (for example, use the pessimistic lock or the conditional update), because nodes coordinate
+ * only through the shared database.
+ */
+public interface LeaseDao {
+
+    /**
+     * Acquire the lease or prolong the lease held by the same owner.
+     * <br>
+     * The lease is acquired if it doesn't exist, is expired or is held by the same owner. A new lease (or the lease taken
+     * from the other owner) gets the fencing token greater than all previous tokens of this resource.
+     *
+     * @param resource  The leased resource.
+     * @param owner     The owner.
+     * @param expiresAt The new expiration time in milliseconds.
+     * @param now       The current time in milliseconds.
+     * @return The fencing token or {@code null} if the lease is held by the other owner.
+     */
+    Long acquire(String resource, String owner, long expiresAt, long now);
+
+    /**
+     * Prolong the lease.
+     *
+     * @param resource  The leased resource.
+     * @param owner     The owner.
+     * @param token     The fencing token.
+     * @param expiresAt The new expiration time in milliseconds.
+     * @param now       The current time in milliseconds.
+     * @return {@code true} if the lease is still held by the owner with the same token, else {@code false}.
+     */
+    boolean renew(String resource, String owner, long token, long expiresAt, long now);
+
+    /**
+     * Release the lease if it is held by the owner with the same token.
+     *
+     * @param resource The leased resource.
+     * @param owner    The owner.
+     * @param token    The fencing token.
+     */
+    void release(String resource, String owner, long token);
+
+    /**
+     * Owners of the not expired leases.
+     *
+     * @param prefix The prefix of the resources.
+     * @param now    The current time in milliseconds.
+     * @return The owners.
+     */
+    List<String> owners(String prefix, long now);
+}
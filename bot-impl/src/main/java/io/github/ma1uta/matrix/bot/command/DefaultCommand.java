@@ -46,7 +46,7 @@ public class DefaultCommand<C extends BotConfig, D extends BotDao<C>, S extends
             context.getConfig().setDefaultCommand(arguments);
             return true;
         } else {
-            context.getMatrixClient().event().sendNotice(roomId, "Unknown command: " + arguments);
+            context.getBot().notice(roomId, "Unknown command: " + arguments);
             return false;
         }
     }
@@ -21,7 +21,6 @@ import io.github.ma1uta.matrix.bot.BotDao;
 import io.github.ma1uta.matrix.bot.Command;
 import io.github.ma1uta.matrix.bot.Context;
 import io.github.ma1uta.matrix.bot.PersistentService;
-import io.github.ma1uta.matrix.client.MatrixClient;
 import io.github.ma1uta.matrix.event.RoomEvent;
 
 /**
@@ -41,8 +40,6 @@ public class Help<C extends BotConfig, D extends BotDao<C>, S extends Persistent
 
     @Override
     public boolean invoke(Context<C, D, S, E> context, String roomId, RoomEvent event, String arguments) {
-        MatrixClient matrixClient = context.getMatrixClient();
-
         String prefix = context.getBot().getPrefix();
         String defaultCommand = context.getConfig().getDefaultCommand();
         String help = context.getBot().getCommands().entrySet().stream().map(entry -> {
@@ -54,7 +51,7 @@ public class Help<C extends BotConfig, D extends BotDao<C>, S extends Persistent
             return commandHelp;
         }).reduce(StringBuilder::append).map(StringBuilder::toString).orElse("");
 
-        matrixClient.event().sendNotice(roomId, help);
+        context.getBot().reply(roomId, help);
         return true;
     }
 
@@ -22,11 +22,14 @@ import io.github.ma1uta.matrix.bot.Command;
 import io.github.ma1uta.matrix.bot.Context;
 import io.github.ma1uta.matrix.bot.PersistentService;
 import io.github.ma1uta.matrix.client.MatrixClient;
-import io.github.ma1uta.matrix.client.model.room.RoomId;
 import io.github.ma1uta.matrix.event.RoomEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
 /**
  * Join new room.
  *
@@ -46,24 +49,34 @@ public class Join<C extends BotConfig, D extends BotDao<C>, S extends Persistent
 
     @Override
     public boolean invoke(Context<C, D, S, E> context, String roomId, RoomEvent event, String arguments) {
+        return invokeAsync(context, roomId, event, arguments).toCompletableFuture().join();
+    }
+
+    @Override
+    public CompletionStage<Boolean> invokeAsync(Context<C, D, S, E> context, String roomId, RoomEvent event, String arguments) {
         C config = context.getConfig();
         MatrixClient matrixClient = context.getMatrixClient();
         if (config.getOwner() != null && !config.getOwner().equals(event.getSender())) {
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
         if (arguments == null || arguments.trim().isEmpty()) {
-            matrixClient.event().sendNotice(roomId, "Usage: " + usage());
-        } else {
-            try {
-                RoomId result = matrixClient.room().joinByIdOrAlias(String.valueOf(arguments)).join();
+            context.getBot().reply(roomId, "Usage: " + usage());
+            return CompletableFuture.completedFuture(true);
+        }
+        return matrixClient.room().joinByIdOrAlias(String.valueOf(arguments)).handle((result, throwable) -> {
+            if (throwable != null) {
+                Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+                    ? throwable.getCause()
+                    : throwable;
+                String msg = String.format("Cannot join: %s", cause.getMessage());
+                LOGGER.error(msg, cause);
+                context.getBot().reply(roomId, msg);
+            } else {
                 context.getBot().getSkipTimelineRooms().add(result.getRoomId());
-            } catch (Exception e) {
-                String msg = String.format("Cannot join: %s", e.getMessage());
-                LOGGER.error(msg, e);
-                matrixClient.event().sendNotice(roomId, msg);
+                context.getBot().getJoinedRooms().joined(result.getRoomId());
             }
-        }
-        return true;
+            return true;
+        });
     }
 
     @Override
@@ -22,6 +22,8 @@ import io.github.ma1uta.matrix.bot.Context;
 import io.github.ma1uta.matrix.bot.PersistentService;
 import io.github.ma1uta.matrix.event.RoomEvent;
 
+import java.util.concurrent.CompletionStage;
+
 /**
  * Leave current room.
  *
@@ -39,9 +41,18 @@ public class Leave<C extends BotConfig, D extends BotDao<C>, S extends Persisten
     @Override
     public boolean ownerInvoke(Context<C, D, S, E> context, String roomId, RoomEvent event, String arguments) {
         context.getMatrixClient().room().leave(roomId);
+        context.getBot().getJoinedRooms().left(roomId);
         return true;
     }
 
+    @Override
+    protected CompletionStage<Boolean> ownerInvokeAsync(Context<C, D, S, E> context, String roomId, RoomEvent event, String arguments) {
+        return context.getMatrixClient().room().leave(roomId).thenApply(response -> {
+            context.getBot().getJoinedRooms().left(roomId);
+            return true;
+        });
+    }
+
     @Override
     public String help() {
         return "leave room (invoked only by owner).";
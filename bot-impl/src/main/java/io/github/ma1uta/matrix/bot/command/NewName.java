@@ -41,7 +41,7 @@ public class NewName<C extends BotConfig, D extends BotDao<C>, S extends Persist
     public boolean ownerInvoke(Context<C, D, S, E> context, String roomId, RoomEvent event, String arguments) {
         MatrixClient matrixClient = context.getMatrixClient();
         if (arguments == null || arguments.trim().isEmpty()) {
-            matrixClient.event().sendNotice(roomId, "Usage: " + usage());
+            context.getBot().reply(roomId, "Usage: " + usage());
         } else {
             matrixClient.profile().setDisplayName(arguments);
             context.getConfig().setDisplayName(arguments);
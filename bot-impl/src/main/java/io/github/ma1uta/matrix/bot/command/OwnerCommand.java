@@ -23,6 +23,9 @@ import io.github.ma1uta.matrix.bot.Context;
 import io.github.ma1uta.matrix.bot.PersistentService;
 import io.github.ma1uta.matrix.event.RoomEvent;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 /**
  * Provide checking that current command was invoked by owner.
  *
@@ -44,5 +47,38 @@ public abstract class OwnerCommand<C extends BotConfig, D extends BotDao<C>, S e
         return ownerInvoke(context, roomId, event, arguments);
     }
 
+    @Override
+    public CompletionStage<Boolean> invokeAsync(Context<C, D, S, E> context, String roomId, RoomEvent event, String arguments) {
+        C config = context.getConfig();
+        if (config.getOwner() != null && !config.getOwner().equals(event.getSender())) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        return ownerInvokeAsync(context, roomId, event, arguments);
+    }
+
     protected abstract boolean ownerInvoke(Context<C, D, S, E> context, String roomId, RoomEvent event, String arguments);
+
+    /**
+     * Invoke the owner's command asynchronously.
+     * <br>
+     * By default invokes {@link #ownerInvoke(Context, String, RoomEvent, String)} in the transaction.
+     *
+     * @param context   bot's context.
+     * @param roomId    room id.
+     * @param event     event with command.
+     * @param arguments (without command).
+     * @return {@code true} if invoked, else {@code false}.
+     */
+    protected CompletionStage<Boolean> ownerInvokeAsync(Context<C, D, S, E> context, String roomId, RoomEvent event, String arguments) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        try {
+            result.complete(context.runInTransaction((ctx, dao) -> {
+                return ownerInvoke(ctx, roomId, event, arguments);
+            }));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
 }
@@ -40,7 +40,7 @@ public class Pong<C extends BotConfig, D extends BotDao<C>, S extends Persistent
 
     @Override
     public boolean invoke(Context<C, D, S, E> context, String roomId, RoomEvent event, String arguments) {
-        context.getMatrixClient().event().sendNotice(roomId, "pong");
+        context.getBot().reply(roomId, "pong");
         return true;
     }
 
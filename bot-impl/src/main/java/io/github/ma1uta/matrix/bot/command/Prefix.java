@@ -42,7 +42,7 @@ public class Prefix<C extends BotConfig, D extends BotDao<C>, S extends Persiste
         C config = context.getConfig();
         if (arguments == null || arguments.trim().isEmpty()) {
             String prefix = config.getPrefix();
-            context.getMatrixClient().event().sendNotice(roomId, prefix == null ? "!" : prefix);
+            context.getBot().reply(roomId, prefix == null ? "!" : prefix);
         } else {
             config.setPrefix(arguments);
         }
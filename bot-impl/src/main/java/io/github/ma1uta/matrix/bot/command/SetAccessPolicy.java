@@ -47,7 +47,7 @@ public class SetAccessPolicy<C extends BotConfig, D extends BotDao<C>, S extends
                 // wrong option.
             }
         }
-        context.getMatrixClient().event().sendNotice(roomId, "usage: " + usage());
+        context.getBot().reply(roomId, "usage: " + usage());
         return true;
     }
 
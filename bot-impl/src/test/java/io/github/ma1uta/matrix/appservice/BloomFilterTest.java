@@ -0,0 +1,69 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.appservice;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class BloomFilterTest {
+
+    private static final int ADDED = 10_000;
+
+    @Test
+    public void noFalseNegatives() {
+        BloomFilter filter = new BloomFilter(ADDED, 0.01);
+        for (int i = 0; i < ADDED; i++) {
+            filter.add("txn" + i);
+        }
+        for (int i = 0; i < ADDED; i++) {
+            assertTrue(filter.mightContain("txn" + i));
+        }
+    }
+
+    @Test
+    public void falsePositiveRate() {
+        BloomFilter filter = new BloomFilter(ADDED, 0.01);
+        for (int i = 0; i < ADDED; i++) {
+            filter.add("txn" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < ADDED; i++) {
+            if (filter.mightContain("other" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < ADDED * 0.03, "False positives: " + falsePositives);
+    }
+
+    @Test
+    public void clear() {
+        BloomFilter filter = new BloomFilter(ADDED, 0.01);
+        filter.add("txn");
+        filter.clear();
+        assertFalse(filter.mightContain("txn"));
+    }
+
+    @Test
+    public void invalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new BloomFilter(0, 0.01));
+        assertThrows(IllegalArgumentException.class, () -> new BloomFilter(ADDED, 0));
+        assertThrows(IllegalArgumentException.class, () -> new BloomFilter(ADDED, 1));
+    }
+}
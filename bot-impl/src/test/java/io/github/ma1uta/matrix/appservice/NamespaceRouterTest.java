@@ -0,0 +1,92 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.appservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class NamespaceRouterTest {
+
+    @ParameterizedTest
+    @CsvSource(value = {
+        "@irc_.*:example\\.org;@irc_;false",
+        "^@irc_.*;@irc_;false",
+        "@bot:example\\.org;@bot:example.org;true",
+        "@bot;@bot;true",
+        "@ab?c;@a;false",
+        "@ab*c;@a;false",
+        "@ab{2}c;@a;false",
+        "@a\\d+;@a;false",
+        "@a|@b;;false",
+        "@a\\|b;@a|b;true",
+        "[a-z]+;;false",
+        ".*;;false"
+    }, delimiter = ';')
+    public void literalPrefix(String regex, String expectedPrefix, boolean expectedLiteral) {
+        StringBuilder prefix = new StringBuilder();
+        boolean literal = NamespaceRouter.literalPrefix(regex, prefix);
+
+        assertEquals(expectedLiteral, literal);
+        assertEquals(expectedPrefix == null ? "" : expectedPrefix, prefix.toString());
+    }
+
+    @Test
+    public void match() {
+        NamespaceRouter<String> router = new NamespaceRouter<>();
+        router.add(NamespaceRouter.Type.USERS, "@irc_.*:example\\.org", "irc");
+        router.add(NamespaceRouter.Type.USERS, "@bot:example\\.org", "bot");
+        router.add(NamespaceRouter.Type.USERS, ".*:other\\.org", "other");
+        router.add(NamespaceRouter.Type.ALIASES, "#irc_.*", "irc");
+
+        assertEquals(Collections.singletonList("irc"), router.match(NamespaceRouter.Type.USERS, "@irc_user:example.org"));
+        assertEquals(Collections.singletonList("bot"), router.match(NamespaceRouter.Type.USERS, "@bot:example.org"));
+        assertEquals(Collections.singletonList("other"), router.match(NamespaceRouter.Type.USERS, "@irc_user:other.org"));
+        assertTrue(router.match(NamespaceRouter.Type.USERS, "@irc_user:example.com").isEmpty());
+        assertTrue(router.match(NamespaceRouter.Type.ROOMS, "@irc_user:example.org").isEmpty());
+        assertEquals("irc", router.first(NamespaceRouter.Type.ALIASES, "#irc_room:example.org"));
+    }
+
+    @Test
+    public void orderOfAdding() {
+        NamespaceRouter<String> router = new NamespaceRouter<>();
+        router.add(NamespaceRouter.Type.USERS, ".*", "all");
+        router.add(NamespaceRouter.Type.USERS, "@irc_.*", "irc");
+        router.add(NamespaceRouter.Type.USERS, "@irc", "literal");
+
+        assertEquals(Arrays.asList("all", "irc", "literal"), router.match(NamespaceRouter.Type.USERS, "@irc_user:example.org"));
+    }
+
+    @Test
+    public void remove() {
+        NamespaceRouter<String> router = new NamespaceRouter<>();
+        router.add(NamespaceRouter.Type.USERS, "@irc_.*", "irc");
+        router.add(NamespaceRouter.Type.ROOMS, "!irc.*", "irc");
+        router.remove("irc");
+
+        assertFalse(router.matches(NamespaceRouter.Type.USERS, "@irc_user:example.org"));
+        assertNull(router.first(NamespaceRouter.Type.ROOMS, "!irc:example.org"));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.appservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import io.github.ma1uta.matrix.bot.PersistentService;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+public class TransactionDeduplicatorTest {
+
+    private static final Predicate<String> UNEXPECTED = txnId -> {
+        fail("Unexpected dao lookup: " + txnId);
+        return false;
+    };
+
+    @Test
+    public void incompleteUsesDao() {
+        TransactionDeduplicator deduplicator = new TransactionDeduplicator();
+        AtomicInteger lookups = new AtomicInteger();
+
+        assertFalse(deduplicator.isComplete());
+        assertFalse(deduplicator.exist("new", txnId -> {
+            lookups.incrementAndGet();
+            return false;
+        }));
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public void unsupportedDao() {
+        TransactionDeduplicator deduplicator = new TransactionDeduplicator();
+        deduplicator.load(new PersistentService<>(new IdsDao(null, null)));
+
+        assertFalse(deduplicator.isComplete());
+    }
+
+    @Test
+    public void loaded() {
+        TransactionDeduplicator deduplicator = new TransactionDeduplicator();
+        deduplicator.load(new PersistentService<>(new IdsDao(Arrays.asList("a", "b"), null)));
+
+        assertTrue(deduplicator.isComplete());
+        assertFalse(deduplicator.exist("new", UNEXPECTED));
+        assertTrue(deduplicator.exist("a", txnId -> true));
+    }
+
+    @Test
+    public void recent() {
+        TransactionDeduplicator deduplicator = new TransactionDeduplicator();
+        deduplicator.processed("a");
+
+        assertTrue(deduplicator.exist("a", UNEXPECTED));
+    }
+
+    @Test
+    public void processedDuringReload() {
+        TransactionDeduplicator deduplicator = new TransactionDeduplicator(1, TransactionDeduplicator.DEFAULT_EXPECTED,
+            TransactionDeduplicator.DEFAULT_FALSE_POSITIVE);
+        deduplicator.load(new PersistentService<>(new IdsDao(Arrays.asList("a"), () -> deduplicator.processed("during"))));
+        // evict the id from the recent ids, so only the filter knows it.
+        deduplicator.processed("after");
+
+        AtomicInteger lookups = new AtomicInteger();
+        assertTrue(deduplicator.exist("during", txnId -> {
+            lookups.incrementAndGet();
+            return true;
+        }));
+        assertEquals(1, lookups.get());
+        assertFalse(deduplicator.exist("new", UNEXPECTED));
+    }
+
+    @Test
+    public void reloadKeepsLiveFilter() {
+        TransactionDeduplicator deduplicator = new TransactionDeduplicator(1, TransactionDeduplicator.DEFAULT_EXPECTED,
+            TransactionDeduplicator.DEFAULT_FALSE_POSITIVE);
+        deduplicator.load(new PersistentService<>(new IdsDao(Arrays.asList("a"), null)));
+
+        AtomicInteger lookups = new AtomicInteger();
+        deduplicator.load(new PersistentService<>(new IdsDao(Arrays.asList("a"), () -> {
+            // the previous filter still answers while the new one is being built.
+            assertTrue(deduplicator.isComplete());
+            assertTrue(deduplicator.exist("a", txnId -> {
+                lookups.incrementAndGet();
+                return true;
+            }));
+        })));
+        assertEquals(1, lookups.get());
+    }
+
+    /**
+     * Dao which lists the specified ids.
+     */
+    private static final class IdsDao implements TransactionDao<Transaction> {
+
+        private final List<String> ids;
+
+        private final Runnable onLoad;
+
+        IdsDao(List<String> ids, Runnable onLoad) {
+            this.ids = ids;
+            this.onLoad = onLoad;
+        }
+
+        @Override
+        public void save(Transaction transaction) {
+        }
+
+        @Override
+        public boolean exist(String txnId) {
+            return ids != null && ids.contains(txnId);
+        }
+
+        @Override
+        public Optional<List<String>> findAllIds() {
+            if (onLoad != null) {
+                onLoad.run();
+            }
+            return Optional.ofNullable(ids);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.appservice;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class TransactionJournalTest {
+
+    private static final long TIMEOUT = 10L;
+
+    // payload length, checksum, type and id length.
+    private static final int OVERHEAD = 3 * Integer.BYTES + 1;
+
+    private static final int SMALL_SEGMENT = 64;
+
+    private Path directory;
+
+    private final List<TransactionJournal> journals = new ArrayList<>();
+
+    @BeforeEach
+    public void before() throws IOException {
+        directory = Files.createTempDirectory("journal");
+    }
+
+    @AfterEach
+    public void after() throws IOException {
+        journals.forEach(TransactionJournal::close);
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private TransactionJournal journal(int segmentSize) {
+        TransactionJournal journal = new TransactionJournal(directory, segmentSize, 0);
+        journals.add(journal);
+        return journal;
+    }
+
+    private static void append(TransactionJournal journal, String txnId, String body) throws Exception {
+        journal.append(txnId, body.getBytes(StandardCharsets.UTF_8)).get(TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static List<String> ids(List<TransactionJournal.Entry> entries) {
+        return entries.stream().map(TransactionJournal.Entry::getTxnId).collect(Collectors.toList());
+    }
+
+    @Test
+    public void recover() throws Exception {
+        TransactionJournal journal = journal(TransactionJournal.DEFAULT_SEGMENT_SIZE);
+        assertTrue(journal.open().isEmpty());
+        append(journal, "a", "first");
+        append(journal, "b", "second");
+        append(journal, "c", "third");
+        journal.done("b");
+        assertTrue(journal.isPending("a"));
+        assertFalse(journal.isPending("b"));
+        journal.close();
+
+        List<TransactionJournal.Entry> entries = journal(TransactionJournal.DEFAULT_SEGMENT_SIZE).open();
+        assertEquals(Arrays.asList("a", "c"), ids(entries));
+        assertArrayEquals("first".getBytes(StandardCharsets.UTF_8), entries.get(0).getBody());
+        assertArrayEquals("third".getBytes(StandardCharsets.UTF_8), entries.get(1).getBody());
+    }
+
+    @Test
+    public void failKeepsRecord() throws Exception {
+        TransactionJournal journal = journal(TransactionJournal.DEFAULT_SEGMENT_SIZE);
+        journal.open();
+        append(journal, "a", "first");
+        journal.fail("a");
+        assertFalse(journal.isPending("a"));
+        journal.close();
+
+        TransactionJournal reopened = journal(TransactionJournal.DEFAULT_SEGMENT_SIZE);
+        assertEquals(Collections.singletonList("a"), ids(reopened.open()));
+
+        // the retry of the homeserver appends the transaction again.
+        reopened.fail("a");
+        append(reopened, "a", "first");
+        assertTrue(reopened.isPending("a"));
+        reopened.done("a");
+        reopened.close();
+
+        assertTrue(journal(TransactionJournal.DEFAULT_SEGMENT_SIZE).open().isEmpty());
+    }
+
+    @Test
+    public void tornRecord() throws Exception {
+        TransactionJournal journal = journal(TransactionJournal.DEFAULT_SEGMENT_SIZE);
+        journal.open();
+        append(journal, "a", "first");
+        append(journal, "b", "second");
+        append(journal, "c", "third");
+        journal.close();
+
+        // break the last byte of the second record as if the write was torn.
+        long offset = OVERHEAD + "a".length() + "first".length() + OVERHEAD + "b".length() + "second".length() - 1;
+        List<Path> segments = segments();
+        assertEquals(1, segments.size());
+        try (RandomAccessFile file = new RandomAccessFile(segments.get(0).toFile(), "rw")) {
+            file.seek(offset);
+            int value = file.read();
+            file.seek(offset);
+            file.write(value ^ 0xff);
+        }
+
+        List<TransactionJournal.Entry> entries = journal(TransactionJournal.DEFAULT_SEGMENT_SIZE).open();
+        assertEquals(1, entries.size());
+        assertEquals("a", entries.get(0).getTxnId());
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        TransactionJournal journal = journal(SMALL_SEGMENT);
+        journal.open();
+        // each record takes more than the half of the segment, so each transaction gets its own segment.
+        append(journal, "a", "01234567890123456789");
+        append(journal, "b", "01234567890123456789");
+        assertEquals(2, segments().size());
+
+        journal.done("a");
+        List<Path> segments = segments();
+        assertEquals(1, segments.size());
+
+        journal.done("b");
+        append(journal, "c", "01234567890123456789");
+        List<Path> compacted = segments();
+        assertEquals(1, compacted.size());
+        assertFalse(segments.contains(compacted.get(0)));
+        journal.close();
+
+        assertEquals(Collections.singletonList("c"), ids(journal(SMALL_SEGMENT).open()));
+    }
+
+    @Test
+    public void compactionFromTheOldest() throws Exception {
+        TransactionJournal journal = journal(SMALL_SEGMENT);
+        journal.open();
+        append(journal, "a", "01234567890123456789");
+        append(journal, "b", "01234567890123456789");
+        append(journal, "c", "01234567890123456789");
+        assertEquals(3, segments().size());
+
+        // the segment of b is kept while the older segment of a is alive.
+        journal.done("b");
+        assertEquals(3, segments().size());
+        journal.close();
+
+        TransactionJournal reopened = journal(SMALL_SEGMENT);
+        assertEquals(Arrays.asList("a", "c"), ids(reopened.open()));
+        reopened.done("a");
+        reopened.done("c");
+        reopened.close();
+
+        assertTrue(journal(SMALL_SEGMENT).open().isEmpty());
+    }
+
+    @Test
+    public void bigTransaction() throws Exception {
+        TransactionJournal journal = journal(SMALL_SEGMENT);
+        journal.open();
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < SMALL_SEGMENT * 2; i++) {
+            body.append('x');
+        }
+        append(journal, "big", body.toString());
+        journal.close();
+
+        List<TransactionJournal.Entry> entries = journal(SMALL_SEGMENT).open();
+        assertEquals(1, entries.size());
+        assertEquals(body.toString(), new String(entries.get(0).getBody(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.appservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import io.github.ma1uta.matrix.bot.PersistentService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class TransactionReceiverTest {
+
+    private static final long TIMEOUT = 10L;
+
+    private ExecutorService executor;
+
+    private MemoryTransactionDao dao;
+
+    private List<String> parsed;
+
+    private CountDownLatch gate;
+
+    private Map<String, Integer> failures;
+
+    private Path directory;
+
+    private final List<TransactionJournal> journals = new ArrayList<>();
+
+    @BeforeEach
+    public void before() throws IOException {
+        executor = Executors.newFixedThreadPool(4);
+        dao = new MemoryTransactionDao();
+        parsed = Collections.synchronizedList(new ArrayList<>());
+        gate = new CountDownLatch(0);
+        failures = new ConcurrentHashMap<>();
+        directory = Files.createTempDirectory("receiver");
+    }
+
+    @AfterEach
+    public void after() throws IOException {
+        executor.shutdownNow();
+        journals.forEach(TransactionJournal::close);
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private TransactionReceiver<Transaction, MemoryTransactionDao> receiver(int capacity) {
+        return new TransactionReceiver<>(new PersistentService<>(dao), Transaction::new, body -> {
+            String txnId = new String(body, StandardCharsets.UTF_8);
+            parsed.add(txnId);
+            if ("blocked".equals(txnId)) {
+                pass();
+            }
+            Integer left = failures.computeIfPresent(txnId, (id, count) -> count - 1);
+            if (left != null && left >= 0) {
+                throw new IOException("Cannot parse " + txnId);
+            }
+            return Collections.emptyList();
+        }, events -> {
+        }, executor, capacity);
+    }
+
+    private TransactionJournal journal() {
+        TransactionJournal journal = new TransactionJournal(directory, TransactionJournal.DEFAULT_SEGMENT_SIZE, 0);
+        journals.add(journal);
+        return journal;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                fail("Condition isn't met.");
+            }
+            Thread.sleep(10L);
+        }
+    }
+
+    private void pass() {
+        try {
+            gate.await(TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static byte[] body(String txnId) {
+        return txnId.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void ordering() throws Exception {
+        TransactionReceiver<Transaction, MemoryTransactionDao> receiver = receiver(TransactionReceiver.DEFAULT_CAPACITY);
+        List<String> expected = new ArrayList<>();
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            String txnId = Integer.toString(i);
+            expected.add(txnId);
+            results.add(receiver.receive(txnId, body(txnId)));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(TIMEOUT, TimeUnit.SECONDS);
+
+        assertEquals(expected, parsed);
+        assertEquals(100, dao.ids.size());
+    }
+
+    @Test
+    public void inFlightDeduplication() throws Exception {
+        gate = new CountDownLatch(1);
+        TransactionReceiver<Transaction, MemoryTransactionDao> receiver = receiver(TransactionReceiver.DEFAULT_CAPACITY);
+
+        CompletableFuture<Void> first = receiver.receive("blocked", body("blocked"));
+        CompletableFuture<Void> retry = receiver.receive("blocked", body("blocked"));
+        assertSame(first, retry);
+
+        gate.countDown();
+        first.get(TIMEOUT, TimeUnit.SECONDS);
+
+        receiver.receive("blocked", body("blocked")).get(TIMEOUT, TimeUnit.SECONDS);
+        assertEquals(Collections.singletonList("blocked"), parsed);
+    }
+
+    @Test
+    public void backpressure() throws Exception {
+        gate = new CountDownLatch(1);
+        TransactionReceiver<Transaction, MemoryTransactionDao> receiver = receiver(1);
+
+        CompletableFuture<Void> first = receiver.receive("blocked", body("blocked"));
+        CompletableFuture<Void> second = receiver.receive("next", body("next"));
+        assertEquals(1, receiver.accepted());
+        assertFalse(second.isDone());
+
+        gate.countDown();
+        first.get(TIMEOUT, TimeUnit.SECONDS);
+        second.get(TIMEOUT, TimeUnit.SECONDS);
+        receiver.receive("third", body("third")).get(TIMEOUT, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("blocked", "next", "third"), parsed);
+    }
+
+    @Test
+    public void close() throws Exception {
+        gate = new CountDownLatch(1);
+        TransactionReceiver<Transaction, MemoryTransactionDao> receiver = receiver(1);
+
+        CompletableFuture<Void> first = receiver.receive("blocked", body("blocked"));
+        CompletableFuture<Void> waiting = receiver.receive("waiting", body("waiting"));
+        CompletableFuture<Void> closed = CompletableFuture.runAsync(receiver::close);
+
+        ExecutionException rejected = assertThrows(ExecutionException.class, () -> waiting.get(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(rejected.getCause() instanceof IllegalStateException);
+        assertFalse(closed.isDone());
+
+        gate.countDown();
+        closed.get(TIMEOUT, TimeUnit.SECONDS);
+        first.get(TIMEOUT, TimeUnit.SECONDS);
+
+        ExecutionException afterClose = assertThrows(ExecutionException.class,
+            () -> receiver.receive("late", body("late")).get(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(afterClose.getCause() instanceof IllegalStateException);
+        assertEquals(Collections.singletonList("blocked"), parsed);
+    }
+
+    @Test
+    public void processedIsSkipped() throws Exception {
+        dao.ids.add("old");
+        TransactionReceiver<Transaction, MemoryTransactionDao> receiver = receiver(TransactionReceiver.DEFAULT_CAPACITY);
+
+        receiver.receive("old", body("old")).get(TIMEOUT, TimeUnit.SECONDS);
+        assertTrue(parsed.isEmpty());
+        assertEquals(1, dao.exists.get());
+    }
+
+    @Test
+    public void journalRetry() throws Exception {
+        failures.put("flaky", 1);
+        TransactionJournal journal = journal();
+        TransactionReceiver<Transaction, MemoryTransactionDao> receiver = receiver(TransactionReceiver.DEFAULT_CAPACITY);
+        receiver.setJournal(journal);
+        receiver.recover();
+
+        receiver.receive("flaky", body("flaky")).get(TIMEOUT, TimeUnit.SECONDS);
+        await(() -> dao.ids.contains("flaky"));
+
+        assertEquals(Arrays.asList("flaky", "flaky"), parsed);
+        assertFalse(journal.isPending("flaky"));
+    }
+
+    @Test
+    public void journalFailure() throws Exception {
+        failures.put("poison", Integer.MAX_VALUE);
+        TransactionJournal journal = journal();
+        TransactionReceiver<Transaction, MemoryTransactionDao> receiver = receiver(1);
+        receiver.setJournal(journal);
+        receiver.setMaxAttempts(2);
+        receiver.recover();
+
+        // the transaction is acknowledged, fails both attempts and frees the slot.
+        receiver.receive("poison", body("poison")).get(TIMEOUT, TimeUnit.SECONDS);
+        await(() -> !journal.isPending("poison"));
+        receiver.receive("next", body("next")).get(TIMEOUT, TimeUnit.SECONDS);
+        await(() -> dao.ids.contains("next"));
+        assertEquals(Arrays.asList("poison", "poison", "next"), parsed);
+
+        // the retry of the homeserver is processed again instead of being acknowledged by the journal.
+        receiver.receive("poison", body("poison")).get(TIMEOUT, TimeUnit.SECONDS);
+        await(() -> !journal.isPending("poison") && parsed.size() == 5);
+        receiver.close();
+        journal.close();
+
+        // the failed transaction is kept for the recovery.
+        List<TransactionJournal.Entry> entries = journal().open();
+        assertEquals(Collections.singletonList("poison"), entries.stream().map(TransactionJournal.Entry::getTxnId)
+            .collect(Collectors.toList()));
+    }
+
+    /**
+     * In-memory transaction dao.
+     */
+    static final class MemoryTransactionDao implements TransactionDao<Transaction> {
+
+        private final Set<String> ids = ConcurrentHashMap.newKeySet();
+
+        private final AtomicInteger exists = new AtomicInteger();
+
+        @Override
+        public void save(Transaction transaction) {
+            ids.add(transaction.getId());
+        }
+
+        @Override
+        public boolean exist(String txnId) {
+            exists.incrementAndGet();
+            return ids.contains(txnId);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class CommandExecutorTest {
+
+    private static final int TASKS = 50;
+
+    private static final long TIMEOUT = 5L;
+
+    private ExecutorService threads;
+
+    @BeforeEach
+    public void setUp() {
+        threads = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        threads.shutdownNow();
+    }
+
+    @Test
+    public void roomOrder() throws Exception {
+        CommandExecutor executor = new CommandExecutor(threads, 4);
+        List<Integer> first = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> second = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < TASKS; i++) {
+            int number = i;
+            results.add(executor.submit("!first:example.org", () -> delayed(() -> first.add(number), number)));
+            results.add(executor.submit("!second:example.org", () -> delayed(() -> second.add(number), number)));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(TIMEOUT, TimeUnit.SECONDS);
+
+        List<Integer> expected = IntStream.range(0, TASKS).boxed().collect(Collectors.toList());
+        assertEquals(expected, first);
+        assertEquals(expected, second);
+        assertEquals(0, executor.getActiveRooms());
+    }
+
+    @Test
+    public void failureDoesNotBreakRoomOrder() throws Exception {
+        CommandExecutor executor = new CommandExecutor(threads, 1);
+        List<String> invoked = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<String> failed = executor.submit("!room:example.org", () -> {
+            invoked.add("failed");
+            throw new IllegalStateException("boom");
+        });
+        CompletableFuture<String> next = executor.submit("!room:example.org", () -> {
+            invoked.add("next");
+            return CompletableFuture.completedFuture("next");
+        });
+
+        assertEquals("next", next.get(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(failed.isCompletedExceptionally());
+        assertEquals(Arrays.asList("failed", "next"), invoked);
+    }
+
+    @Test
+    public void activeLimit() throws Exception {
+        CommandExecutor executor = new CommandExecutor(threads, 2);
+        AtomicInteger started = new AtomicInteger();
+        List<CompletableFuture<Integer>> running = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            results.add(executor.submit("!room" + i + ":example.org", () -> {
+                started.incrementAndGet();
+                CompletableFuture<Integer> command = new CompletableFuture<>();
+                running.add(command);
+                return command;
+            }));
+        }
+
+        await(() -> started.get() == 2);
+        Thread.sleep(100L);
+        assertEquals(2, started.get());
+        assertEquals(5, executor.getActiveRooms());
+
+        running.get(0).complete(0);
+        await(() -> started.get() == 3);
+        assertEquals(3, started.get());
+
+        for (int i = 1; i < 5; i++) {
+            int index = i;
+            await(() -> running.size() > index);
+            running.get(index).complete(index);
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(TIMEOUT, TimeUnit.SECONDS);
+        assertEquals(5, started.get());
+    }
+
+    @Test
+    public void defaultExecutorUsesOwnThreads() throws Exception {
+        CommandExecutor executor = new CommandExecutor();
+        Thread caller = Thread.currentThread();
+        Thread invoker = executor.submit("!room:example.org", () -> CompletableFuture.completedFuture(Thread.currentThread()))
+            .get(TIMEOUT, TimeUnit.SECONDS);
+
+        assertNotEquals(caller, invoker);
+        assertTrue(invoker.isDaemon());
+    }
+
+    private CompletableFuture<Integer> delayed(Runnable action, int value) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            action.run();
+            return value;
+        }, threads);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT);
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+    }
+}
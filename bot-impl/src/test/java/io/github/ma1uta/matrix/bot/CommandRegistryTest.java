@@ -0,0 +1,129 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import io.github.ma1uta.matrix.event.RoomEvent;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class CommandRegistryTest {
+
+    private static CommandRegistry<BotConfig, BotDao<BotConfig>, PersistentService<BotDao<BotConfig>>, Object> registry() {
+        List<Class<? extends Command<BotConfig, BotDao<BotConfig>, PersistentService<BotDao<BotConfig>>, Object>>> classes =
+            Arrays.asList(Help.class, Helper.class, Join.class);
+        return CommandRegistry.of(classes);
+    }
+
+    @Test
+    public void find() {
+        CommandRegistry<BotConfig, BotDao<BotConfig>, PersistentService<BotDao<BotConfig>>, Object> registry = registry();
+
+        assertEquals(3, registry.getCommands().size());
+        assertSame(registry.getCommands().get("help"), registry.find("!help me", 1, 5));
+        assertSame(registry.getCommands().get("helper"), registry.find("!helper", 1, 7));
+        assertSame(registry.getCommands().get("join"), registry.find("join", 0, 4));
+    }
+
+    @Test
+    public void notFound() {
+        CommandRegistry<BotConfig, BotDao<BotConfig>, PersistentService<BotDao<BotConfig>>, Object> registry = registry();
+
+        assertNull(registry.find("!hel", 1, 4));
+        assertNull(registry.find("!helpers", 1, 8));
+        assertNull(registry.find("!leave", 1, 6));
+        assertNull(registry.find("", 0, 0));
+    }
+
+    @Test
+    public void immutable() {
+        CommandRegistry<BotConfig, BotDao<BotConfig>, PersistentService<BotDao<BotConfig>>, Object> registry = registry();
+
+        assertThrows(UnsupportedOperationException.class, () -> registry.getCommands().clear());
+    }
+
+    @Test
+    public void emptyRegistry() {
+        CommandRegistry<BotConfig, BotDao<BotConfig>, PersistentService<BotDao<BotConfig>>, Object> registry =
+            new CommandRegistry<>(Collections.emptyMap());
+
+        assertNull(registry.find("help", 0, 4));
+    }
+
+    /**
+     * Test command.
+     */
+    public abstract static class TestCommand
+        implements Command<BotConfig, BotDao<BotConfig>, PersistentService<BotDao<BotConfig>>, Object> {
+
+        @Override
+        public boolean invoke(Context<BotConfig, BotDao<BotConfig>, PersistentService<BotDao<BotConfig>>, Object> context, String roomId,
+                              RoomEvent event, String arguments) {
+            return true;
+        }
+
+        @Override
+        public String help() {
+            return name();
+        }
+
+        @Override
+        public String usage() {
+            return name();
+        }
+    }
+
+    /**
+     * Help command.
+     */
+    public static class Help extends TestCommand {
+
+        @Override
+        public String name() {
+            return "help";
+        }
+    }
+
+    /**
+     * Command which name starts with the other command.
+     */
+    public static class Helper extends TestCommand {
+
+        @Override
+        public String name() {
+            return "helper";
+        }
+    }
+
+    /**
+     * Join command.
+     */
+    public static class Join extends TestCommand {
+
+        @Override
+        public String name() {
+            return "join";
+        }
+    }
+}
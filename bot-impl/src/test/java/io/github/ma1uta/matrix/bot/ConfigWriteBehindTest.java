@@ -0,0 +1,223 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+public class ConfigWriteBehindTest {
+
+    private static final long INTERVAL = 3_600_000L;
+
+    private MemoryDao dao;
+
+    private ConfigWriteBehind<BotConfig, BotDao<BotConfig>> writeBehind;
+
+    @BeforeEach
+    public void setUp() {
+        dao = new MemoryDao();
+        writeBehind = new ConfigWriteBehind<>(new PersistentService<>(dao), INTERVAL, 100);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        dao.failure = null;
+        writeBehind.close();
+    }
+
+    @Test
+    public void latestCopyWins() {
+        Context<BotConfig, BotDao<BotConfig>, PersistentService<BotDao<BotConfig>>, Object> context = context("@a:example.org", 1L);
+        context.getConfig().setNextBatch("1");
+        writeBehind.markDirty(context);
+        context.getConfig().setNextBatch("2");
+        writeBehind.markDirty(context);
+        context.getConfig().setNextBatch("3");
+        writeBehind.markDirty(context);
+
+        assertEquals(1, writeBehind.getDirtyCount());
+        writeBehind.flush();
+
+        assertEquals(1, dao.batches.size());
+        assertEquals(1, dao.batches.get(0).size());
+        assertEquals("3", dao.batches.get(0).get(0).getNextBatch());
+        assertEquals(0, writeBehind.getDirtyCount());
+    }
+
+    @Test
+    public void savesSnapshot() {
+        Context<BotConfig, BotDao<BotConfig>, PersistentService<BotDao<BotConfig>>, Object> context = context("@a:example.org", 1L);
+        context.getConfig().setNextBatch("1");
+        writeBehind.markDirty(context);
+        context.getConfig().setNextBatch("2");
+
+        writeBehind.flush();
+
+        assertEquals("1", dao.batches.get(0).get(0).getNextBatch());
+    }
+
+    @Test
+    public void batchOfManyBots() {
+        for (int i = 0; i < 10; i++) {
+            writeBehind.markDirty(context("@bot" + i + ":example.org", (long) i + 1));
+        }
+
+        writeBehind.flush();
+
+        assertEquals(1, dao.batches.size());
+        assertEquals(10, dao.batches.get(0).size());
+    }
+
+    @Test
+    public void failureRequeues() {
+        Context<BotConfig, BotDao<BotConfig>, PersistentService<BotDao<BotConfig>>, Object> context = context("@a:example.org", 1L);
+        context.getConfig().setNextBatch("1");
+        writeBehind.markDirty(context);
+        dao.failure = configs -> {
+            throw new IllegalStateException("database is down");
+        };
+
+        assertThrows(IllegalStateException.class, writeBehind::flush);
+        assertEquals(1, writeBehind.getDirtyCount());
+
+        dao.failure = null;
+        writeBehind.flush();
+
+        assertEquals(1, dao.batches.size());
+        assertEquals("1", dao.batches.get(0).get(0).getNextBatch());
+        assertEquals(0, writeBehind.getDirtyCount());
+    }
+
+    @Test
+    public void failureKeepsNewerCopy() {
+        Context<BotConfig, BotDao<BotConfig>, PersistentService<BotDao<BotConfig>>, Object> context = context("@a:example.org", 1L);
+        context.getConfig().setNextBatch("1");
+        writeBehind.markDirty(context);
+        dao.failure = configs -> {
+            context.getConfig().setNextBatch("2");
+            writeBehind.markDirty(context);
+            throw new IllegalStateException("database is down");
+        };
+
+        assertThrows(IllegalStateException.class, writeBehind::flush);
+
+        dao.failure = null;
+        writeBehind.flush();
+
+        assertEquals(1, dao.batches.size());
+        assertEquals("2", dao.batches.get(0).get(0).getNextBatch());
+    }
+
+    @Test
+    public void generatedIdIsAssigned() {
+        Context<BotConfig, BotDao<BotConfig>, PersistentService<BotDao<BotConfig>>, Object> context = context("@a:example.org", null);
+        writeBehind.markDirty(context);
+        BotConfig beforeId = context.snapshot();
+
+        writeBehind.flush();
+        assertEquals(Long.valueOf(1L), context.getConfig().getId());
+
+        context.getConfig().setNextBatch("2");
+        writeBehind.markDirty(context);
+        writeBehind.flush();
+
+        assertEquals(Long.valueOf(1L), dao.batches.get(1).get(0).getId());
+        assertEquals(1, dao.inserted.get());
+        assertNull(beforeId.getId());
+    }
+
+    @Test
+    public void discard() {
+        Context<BotConfig, BotDao<BotConfig>, PersistentService<BotDao<BotConfig>>, Object> context = context("@a:example.org", 1L);
+        writeBehind.markDirty(context);
+
+        writeBehind.discard(context);
+        writeBehind.flush();
+
+        assertTrue(dao.batches.isEmpty());
+    }
+
+    private Context<BotConfig, BotDao<BotConfig>, PersistentService<BotDao<BotConfig>>, Object> context(String userId, Long id) {
+        Context<BotConfig, BotDao<BotConfig>, PersistentService<BotDao<BotConfig>>, Object> context = new Context<>(null, null, null);
+        BotConfig config = new BotConfig();
+        config.setUserId(userId);
+        config.setId(id);
+        context.setConfig(config);
+        return context;
+    }
+
+    /**
+     * Dao which keeps the saved batches.
+     */
+    private static final class MemoryDao implements BotDao<BotConfig> {
+
+        private final List<List<BotConfig>> batches = Collections.synchronizedList(new ArrayList<>());
+
+        private final AtomicLong inserted = new AtomicLong();
+
+        private volatile Consumer<List<BotConfig>> failure;
+
+        @Override
+        public List<BotConfig> findAll() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean user(String userId) {
+            return false;
+        }
+
+        @Override
+        public BotConfig save(BotConfig data) {
+            return saveAll(Collections.singletonList(data)).get(0);
+        }
+
+        @Override
+        public List<BotConfig> saveAll(List<BotConfig> data) {
+            Consumer<List<BotConfig>> hook = failure;
+            if (hook != null) {
+                hook.accept(data);
+            }
+            List<BotConfig> saved = new ArrayList<>(data.size());
+            for (BotConfig config : data) {
+                BotConfig copy = config.copy();
+                if (copy.getId() == null) {
+                    copy.setId(inserted.incrementAndGet());
+                }
+                saved.add(copy);
+            }
+            batches.add(saved);
+            return saved;
+        }
+
+        @Override
+        public void delete(BotConfig data) {
+        }
+    }
+}
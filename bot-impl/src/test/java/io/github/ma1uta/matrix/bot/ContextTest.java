@@ -0,0 +1,51 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ContextTest {
+
+    @Test
+    public void shutdownListenersRunOnce() {
+        Context<BotConfig, BotDao<BotConfig>, PersistentService<BotDao<BotConfig>>, Object> context = new Context<>(null, null, null);
+        AtomicInteger first = new AtomicInteger();
+        AtomicInteger second = new AtomicInteger();
+        context.addShutdownListener(() -> {
+            first.incrementAndGet();
+            return null;
+        });
+        context.addShutdownListener(() -> {
+            second.incrementAndGet();
+            return null;
+        });
+
+        assertFalse(context.isShutdown());
+        context.shutdown();
+        context.shutdown();
+
+        assertTrue(context.isShutdown());
+        assertEquals(1, first.get());
+        assertEquals(1, second.get());
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+public class OutboundQueueTest {
+
+    private static final long TIMEOUT = 5L;
+
+    private ScheduledExecutorService scheduler;
+
+    private CountDownLatch paused;
+
+    private List<String> sent;
+
+    @BeforeEach
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        sent = Collections.synchronizedList(new ArrayList<>());
+        paused = new CountDownLatch(1);
+        // hold the scheduler, so the requests are queued before the first drain.
+        scheduler.execute(() -> {
+            try {
+                paused.await(TIMEOUT, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    @AfterEach
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void priorityOrder() throws Exception {
+        OutboundQueue queue = queue(new TokenBucket(10, 10), OutboundQueue.DEFAULT_CAPACITY);
+
+        CompletableFuture<String> receipt = queue.submit(OutboundQueue.Priority.RECEIPT, null, request("receipt"));
+        CompletableFuture<String> notice = queue.submit(OutboundQueue.Priority.NOTICE, null, request("notice"));
+        CompletableFuture<String> first = queue.submit(OutboundQueue.Priority.REPLY, null, request("first"));
+        CompletableFuture<String> second = queue.submit(OutboundQueue.Priority.REPLY, null, request("second"));
+        assertEquals(4, queue.size());
+        paused.countDown();
+
+        CompletableFuture.allOf(receipt, notice, first, second).get(TIMEOUT, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList("first", "second", "notice", "receipt"), sent);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void latestMergedRequestIsSent() throws Exception {
+        OutboundQueue queue = queue(new TokenBucket(10, 10), OutboundQueue.DEFAULT_CAPACITY);
+
+        CompletableFuture<String> first = queue.submit(OutboundQueue.Priority.RECEIPT, "!room:example.org", request("$1"));
+        CompletableFuture<String> second = queue.submit(OutboundQueue.Priority.RECEIPT, "!room:example.org", request("$2"));
+        CompletableFuture<String> other = queue.submit(OutboundQueue.Priority.RECEIPT, "!other:example.org", request("$3"));
+        assertEquals(2, queue.size());
+        paused.countDown();
+
+        CompletableFuture.allOf(first, second, other).get(TIMEOUT, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList("$2", "$3"), sent);
+        assertEquals("$2", first.get());
+        assertEquals("$2", second.get());
+    }
+
+    @Test
+    public void sentRequestIsNotMerged() throws Exception {
+        OutboundQueue queue = queue(new TokenBucket(10, 10), OutboundQueue.DEFAULT_CAPACITY);
+        paused.countDown();
+
+        queue.submit(OutboundQueue.Priority.RECEIPT, "!room:example.org", request("$1")).get(TIMEOUT, TimeUnit.SECONDS);
+        queue.submit(OutboundQueue.Priority.RECEIPT, "!room:example.org", request("$2")).get(TIMEOUT, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList("$1", "$2"), sent);
+    }
+
+    @Test
+    public void oldestLowestPriorityIsEvicted() throws Exception {
+        OutboundQueue queue = queue(new TokenBucket(10, 10), 2);
+
+        CompletableFuture<String> oldest = queue.submit(OutboundQueue.Priority.RECEIPT, null, request("oldest"));
+        CompletableFuture<String> newest = queue.submit(OutboundQueue.Priority.RECEIPT, null, request("newest"));
+        CompletableFuture<String> reply = queue.submit(OutboundQueue.Priority.REPLY, null, request("reply"));
+        assertEquals(2, queue.size());
+        assertRejected(oldest);
+        paused.countDown();
+
+        CompletableFuture.allOf(newest, reply).get(TIMEOUT, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList("reply", "newest"), sent);
+    }
+
+    @Test
+    public void lowestPriorityIsRejectedWhenFull() throws Exception {
+        OutboundQueue queue = queue(new TokenBucket(10, 10), 2);
+
+        CompletableFuture<String> first = queue.submit(OutboundQueue.Priority.REPLY, null, request("first"));
+        CompletableFuture<String> second = queue.submit(OutboundQueue.Priority.RECEIPT, null, request("second"));
+        CompletableFuture<String> rejected = queue.submit(OutboundQueue.Priority.RECEIPT, null, request("rejected"));
+        assertRejected(rejected);
+        paused.countDown();
+
+        CompletableFuture.allOf(first, second).get(TIMEOUT, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList("first", "second"), sent);
+    }
+
+    @Test
+    public void evictedMergeKeyStartsNewRequest() throws Exception {
+        OutboundQueue queue = queue(new TokenBucket(10, 10), 1);
+
+        CompletableFuture<String> evicted = queue.submit(OutboundQueue.Priority.RECEIPT, "!room:example.org", request("$1"));
+        CompletableFuture<String> reply = queue.submit(OutboundQueue.Priority.REPLY, null, request("reply"));
+        assertRejected(evicted);
+        paused.countDown();
+        reply.get(TIMEOUT, TimeUnit.SECONDS);
+
+        queue.submit(OutboundQueue.Priority.RECEIPT, "!room:example.org", request("$2")).get(TIMEOUT, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList("reply", "$2"), sent);
+    }
+
+    @Test
+    public void requestsAreRateLimited() throws Exception {
+        OutboundQueue queue = queue(new TokenBucket(1, 20), OutboundQueue.DEFAULT_CAPACITY);
+        paused.countDown();
+
+        long start = System.nanoTime();
+        CompletableFuture<String> first = queue.submit(OutboundQueue.Priority.REPLY, null, request("first"));
+        CompletableFuture<String> second = queue.submit(OutboundQueue.Priority.REPLY, null, request("second"));
+        CompletableFuture.allOf(first, second).get(TIMEOUT, TimeUnit.SECONDS);
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+        assertEquals(Arrays.asList("first", "second"), sent);
+    }
+
+    @Test
+    public void tokenBucket() {
+        TokenBucket bucket = new TokenBucket(2, 1);
+
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        assertTrue(bucket.delayNanos() > 0);
+
+        bucket.refund();
+
+        assertEquals(0, bucket.delayNanos());
+        assertTrue(bucket.tryAcquire());
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(1, 0));
+    }
+
+    private OutboundQueue queue(TokenBucket bucket, int capacity) {
+        return new OutboundQueue(bucket, null, scheduler, Runnable::run, capacity);
+    }
+
+    private Supplier<CompletableFuture<String>> request(String name) {
+        return () -> {
+            sent.add(name);
+            return CompletableFuture.completedFuture(name);
+        };
+    }
+
+    private void assertRejected(CompletableFuture<String> future) {
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> future.get(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(exception.getCause() instanceof RejectedExecutionException);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+public class PrefixRouterTest {
+
+    @Test
+    public void route() {
+        PrefixRouter router = new PrefixRouter();
+        router.update("@a:server", "!", false);
+        router.update("@b:server", "!b", false);
+        router.update("@c:server", "?", false);
+
+        assertEquals(Collections.singleton("@a:server"), router.route("!help"));
+        assertEquals(new HashSet<>(Arrays.asList("@a:server", "@b:server")), router.route("!bhelp"));
+        assertEquals(Collections.singleton("@c:server"), router.route("?"));
+        assertTrue(router.route("hello").isEmpty());
+        assertTrue(router.route("").isEmpty());
+    }
+
+    @Test
+    public void catchAll() {
+        PrefixRouter router = new PrefixRouter();
+        router.update("@a:server", "!", false);
+        router.update("@all:server", "?", true);
+
+        assertEquals(Collections.singleton("@all:server"), router.route("hello"));
+        assertEquals(new HashSet<>(Arrays.asList("@a:server", "@all:server")), router.route("!help"));
+    }
+
+    @Test
+    public void updatePrefix() {
+        PrefixRouter router = new PrefixRouter();
+        router.update("@a:server", "!", true);
+        router.update("@a:server", "?", false);
+
+        assertTrue(router.route("!help").isEmpty());
+        assertEquals(Collections.singleton("@a:server"), router.route("?help"));
+    }
+
+    @Test
+    public void remove() {
+        PrefixRouter router = new PrefixRouter();
+        router.update("@a:server", "!", true);
+        assertTrue(router.contains("@a:server"));
+
+        router.remove("@a:server");
+        assertFalse(router.contains("@a:server"));
+        assertTrue(router.route("!help").isEmpty());
+        assertTrue(router.route("hello").isEmpty());
+    }
+}
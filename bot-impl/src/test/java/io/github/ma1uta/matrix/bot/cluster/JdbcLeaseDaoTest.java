@@ -0,0 +1,170 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.bot.cluster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class JdbcLeaseDaoTest {
+
+    private static final long TTL = 1000L;
+
+    private static final int NODES = 8;
+
+    private Connection keepAlive;
+
+    private JdbcLeaseDao dao;
+
+    @BeforeEach
+    public void before() throws SQLException {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID());
+        // in-memory database lives while at least one connection is open.
+        keepAlive = dataSource.getConnection();
+        try (Statement statement = keepAlive.createStatement()) {
+            statement.execute("CREATE TABLE bot_lease (resource VARCHAR(255) PRIMARY KEY, owner VARCHAR(255), "
+                + "expires_at BIGINT NOT NULL, token BIGINT NOT NULL)");
+        }
+        dao = new JdbcLeaseDao(dataSource);
+    }
+
+    @AfterEach
+    public void after() throws SQLException {
+        keepAlive.close();
+    }
+
+    @Test
+    public void acquireNew() {
+        assertEquals(Long.valueOf(1L), dao.acquire("bot:@a:server", "node1", TTL, 0L));
+    }
+
+    @Test
+    public void heldByOther() {
+        assertNotNull(dao.acquire("bot:@a:server", "node1", TTL, 0L));
+        assertNull(dao.acquire("bot:@a:server", "node2", TTL * 2, TTL / 2));
+    }
+
+    @Test
+    public void reacquireKeepsToken() {
+        Long token = dao.acquire("bot:@a:server", "node1", TTL, 0L);
+        assertEquals(token, dao.acquire("bot:@a:server", "node1", TTL * 2, TTL / 2));
+    }
+
+    @Test
+    public void expiredLeaseIncreasesToken() {
+        Long first = dao.acquire("bot:@a:server", "node1", TTL, 0L);
+        Long second = dao.acquire("bot:@a:server", "node2", TTL * 2, TTL);
+        assertNotNull(second);
+        assertTrue(second > first);
+
+        // the previous owner is fenced.
+        assertFalse(dao.renew("bot:@a:server", "node1", first, TTL * 2, TTL));
+        assertTrue(dao.renew("bot:@a:server", "node2", second, TTL * 3, TTL));
+    }
+
+    @Test
+    public void releaseKeepsTokensMonotonic() {
+        Long first = dao.acquire("bot:@a:server", "node1", TTL, 0L);
+        dao.release("bot:@a:server", "node1", first);
+
+        Long second = dao.acquire("bot:@a:server", "node1", TTL, 0L);
+        assertNotNull(second);
+        assertTrue(second > first);
+    }
+
+    @Test
+    public void releaseWithStaleToken() {
+        Long first = dao.acquire("bot:@a:server", "node1", TTL, 0L);
+        Long second = dao.acquire("bot:@a:server", "node2", TTL * 2, TTL);
+        dao.release("bot:@a:server", "node1", first);
+
+        assertTrue(dao.renew("bot:@a:server", "node2", second, TTL * 3, TTL));
+    }
+
+    @Test
+    public void renewExpired() {
+        Long token = dao.acquire("bot:@a:server", "node1", TTL, 0L);
+        assertFalse(dao.renew("bot:@a:server", "node1", token, TTL * 2, TTL));
+    }
+
+    @Test
+    public void owners() {
+        dao.acquire("node:node1", "node1", TTL, 0L);
+        dao.acquire("node:node2", "node2", TTL / 2, 0L);
+        dao.acquire("node_x", "node3", TTL, 0L);
+
+        assertEquals(Collections.singletonList("node1"), dao.owners("node:", TTL / 2));
+    }
+
+    @Test
+    public void concurrentAcquire() throws Exception {
+        List<Long> first = acquireConcurrently(TTL, 0L);
+        assertEquals(1L, first.stream().filter(Objects::nonNull).count());
+
+        // all nodes race for the expired lease, the winner gets the greater token.
+        List<Long> second = acquireConcurrently(TTL * 2, TTL);
+        assertEquals(1L, second.stream().filter(Objects::nonNull).count());
+        Long previous = first.stream().filter(Objects::nonNull).findFirst().orElse(null);
+        Long next = second.stream().filter(Objects::nonNull).findFirst().orElse(null);
+        assertTrue(next > previous);
+    }
+
+    private List<Long> acquireConcurrently(long expiresAt, long now) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(NODES);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < NODES; i++) {
+                String owner = "node" + i;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return dao.acquire("bot:@a:server", owner, expiresAt, now);
+                }));
+            }
+            start.countDown();
+            List<Long> tokens = new ArrayList<>();
+            for (Future<Long> future : futures) {
+                tokens.add(future.get(TTL, TimeUnit.MILLISECONDS));
+            }
+            return tokens;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package io.github.ma1uta.matrix.client;
 
 import io.github.ma1uta.matrix.client.factory.RequestFactory;
+import io.github.ma1uta.matrix.client.filter.FilterRegistry;
 
 import java.util.Objects;
 
@@ -29,6 +30,7 @@ public abstract class AbstractClientBuilder<C> {
 
     private RequestParams defaultParams = new RequestParams();
     private RequestFactory factory;
+    private FilterRegistry filterRegistry = new FilterRegistry();
 
     protected AbstractClientBuilder() {
     }
@@ -41,6 +43,10 @@ public abstract class AbstractClientBuilder<C> {
         return factory;
     }
 
+    public FilterRegistry getFilterRegistry() {
+        return filterRegistry;
+    }
+
     /**
      * Specify a user ID.
      *
@@ -74,6 +80,19 @@ public abstract class AbstractClientBuilder<C> {
         return this;
     }
 
+    /**
+     * Specify a filter registry.
+     * <br>
+     * The same registry can be shared between clients to reuse uploaded filters.
+     *
+     * @param filterRegistry The filter registry.
+     * @return This builder.
+     */
+    public AbstractClientBuilder<C> filterRegistry(FilterRegistry filterRegistry) {
+        this.filterRegistry = Objects.requireNonNull(filterRegistry, "Filter registry must be set.");
+        return this;
+    }
+
     /**
      * Build a new client.
      *
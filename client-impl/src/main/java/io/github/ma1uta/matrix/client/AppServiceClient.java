@@ -18,25 +18,100 @@ package io.github.ma1uta.matrix.client;
 
 import io.github.ma1uta.matrix.EmptyResponse;
 import io.github.ma1uta.matrix.client.factory.RequestFactory;
+import io.github.ma1uta.matrix.client.filter.FilterRegistry;
 import io.github.ma1uta.matrix.client.model.auth.LoginResponse;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Application Service Client.
  */
 public class AppServiceClient extends MatrixClient {
 
+    /**
+     * Default maximum number of the cached per-user clients.
+     */
+    public static final int DEFAULT_USER_CACHE_SIZE = 1024;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final AppServiceClient root;
+
+    private final Map<String, AppServiceClient> users;
+
+    private volatile int userCacheSize = DEFAULT_USER_CACHE_SIZE;
+
     public AppServiceClient(RequestFactory factory, RequestParams defaultParams) {
-        super(factory, defaultParams);
+        this(factory, defaultParams, new FilterRegistry());
+    }
+
+    public AppServiceClient(RequestFactory factory, RequestParams defaultParams, FilterRegistry filterRegistry) {
+        super(factory, defaultParams, filterRegistry);
+        this.root = this;
+        this.users = new LinkedHashMap<String, AppServiceClient>(INITIAL_CAPACITY, LOAD_FACTOR, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, AppServiceClient> eldest) {
+                return size() > userCacheSize;
+            }
+        };
+    }
+
+    private AppServiceClient(AppServiceClient root, RequestParams defaultParams) {
+        super(root.getRequestFactory(), defaultParams, root.getFilterRegistry());
+        this.root = root;
+        this.users = null;
+    }
+
+    public int getUserCacheSize() {
+        return root.userCacheSize;
+    }
+
+    /**
+     * Set the maximum number of the cached per-user clients.
+     *
+     * @param userCacheSize The maximum number of the cached clients or {@code 0} to create a new client on each call.
+     */
+    public void setUserCacheSize(int userCacheSize) {
+        synchronized (root.users) {
+            root.userCacheSize = userCacheSize;
+            Iterator<String> iterator = root.users.keySet().iterator();
+            while (root.users.size() > Math.max(0, userCacheSize) && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
     }
 
     /**
-     * Return a new AppService client with the specified `user_id`.
+     * Return the AppService client with the specified `user_id`.
+     * <br>
+     * Clients are cached by the user id in the LRU and share the request factory and the filter registry. The default params
+     * of the returned client are the read-only view of the params of this client (see {@link RequestParams#userView(String)}):
+     * the access token and the headers are read at the request time, so the rotated token is used by the cached clients too.
+     * The params of the returned client can't be changed, use {@code getDefaultParams().clone()} for the per-request changes.
      *
      * @param userId The user MXID.
-     * @return The new AppService client.
+     * @return The AppService client.
      */
     public AppServiceClient userId(String userId) {
-        return new AppServiceClient(getRequestFactory(), getDefaultParams().clone().userId(userId));
+        if (root != this) {
+            return root.userId(userId);
+        }
+        if (getUserCacheSize() <= 0) {
+            return new AppServiceClient(this, getDefaultParams().userView(userId));
+        }
+        synchronized (users) {
+            AppServiceClient client = users.get(userId);
+            if (client == null) {
+                client = new AppServiceClient(this, getDefaultParams().userView(userId));
+                users.put(userId, client);
+            }
+            return client;
+        }
     }
 
     @Override
@@ -56,7 +131,7 @@ public class AppServiceClient extends MatrixClient {
 
         @Override
         public AppServiceClient newInstance() {
-            return new AppServiceClient(getFactory(), getDefaultParams());
+            return new AppServiceClient(getFactory(), getDefaultParams(), getFilterRegistry());
         }
     }
 }
@@ -18,6 +18,7 @@ package io.github.ma1uta.matrix.client;
 
 import io.github.ma1uta.matrix.EmptyResponse;
 import io.github.ma1uta.matrix.client.factory.RequestFactory;
+import io.github.ma1uta.matrix.client.filter.FilterRegistry;
 import io.github.ma1uta.matrix.client.methods.AccountMethods;
 import io.github.ma1uta.matrix.client.methods.AdminMethods;
 import io.github.ma1uta.matrix.client.methods.AuthMethods;
@@ -48,22 +49,60 @@ import io.github.ma1uta.matrix.client.model.auth.LoginResponse;
 
 import java.io.Closeable;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
 
 /**
  * Matrix client.
  */
 public class MatrixClient implements Closeable {
 
+    private static final int ACCOUNT = 0;
+    private static final int ADMIN = 1;
+    private static final int AUTH = 2;
+    private static final int CLIENT_CONFIG = 3;
+    private static final int CONTENT = 4;
+    private static final int DEVICE = 5;
+    private static final int ENCRYPTION = 6;
+    private static final int EVENT_CONTEXT = 7;
+    private static final int PRESENCE = 8;
+    private static final int PROFILE = 9;
+    private static final int RECEIPT = 10;
+    private static final int REPORT = 11;
+    private static final int SEARCH = 12;
+    private static final int SEND_TO_DEVICE = 13;
+    private static final int SYNC = 14;
+    private static final int EVENT = 15;
+    private static final int FILTER = 16;
+    private static final int ROOM = 17;
+    private static final int TAG = 18;
+    private static final int TYPING = 19;
+    private static final int USER_DIRECTORY = 20;
+    private static final int VERSION = 21;
+    private static final int VOIP = 22;
+    private static final int PUSH = 23;
+    private static final int PROTOCOL = 24;
+    private static final int CAPABILITY = 25;
+    private static final int METHOD_GROUPS = 26;
+
     private final RequestFactory requestFactory;
     private final RequestParams defaultParams;
+    private final FilterRegistry filterRegistry;
+
+    private final AtomicReferenceArray<Object> methods = new AtomicReferenceArray<>(METHOD_GROUPS);
 
     public MatrixClient(RequestFactory requestFactory) {
         this(requestFactory, new RequestParams());
     }
 
     public MatrixClient(RequestFactory requestFactory, RequestParams defaultParams) {
+        this(requestFactory, defaultParams, new FilterRegistry());
+    }
+
+    public MatrixClient(RequestFactory requestFactory, RequestParams defaultParams, FilterRegistry filterRegistry) {
         this.defaultParams = Objects.requireNonNull(defaultParams, "The default `RequestParams` should be specified.");
         this.requestFactory = requestFactory;
+        this.filterRegistry = Objects.requireNonNull(filterRegistry, "The `FilterRegistry` should be specified.");
     }
 
     /**
@@ -93,6 +132,15 @@ public class MatrixClient implements Closeable {
         return defaultParams;
     }
 
+    /**
+     * Get the registry of the uploaded filters.
+     *
+     * @return The {@link FilterRegistry} instance.
+     */
+    public FilterRegistry getFilterRegistry() {
+        return filterRegistry;
+    }
+
     /**
      * Return homeserver url.
      *
@@ -107,13 +155,33 @@ public class MatrixClient implements Closeable {
         auth().logout();
     }
 
+    /**
+     * Return the method group, the group is created on the first call.
+     *
+     * @param group   The index of the group.
+     * @param factory The factory of the group.
+     * @param <T>     The type of the group.
+     * @return The method group.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T methods(int group, Function<MatrixClient, T> factory) {
+        Object current = methods.get(group);
+        if (current == null) {
+            current = factory.apply(this);
+            if (!methods.compareAndSet(group, null, current)) {
+                current = methods.get(group);
+            }
+        }
+        return (T) current;
+    }
+
     /**
      * Account methods.
      *
      * @return account methods.
      */
     public AccountMethods account() {
-        return new AccountMethods(getRequestFactory(), getDefaultParams(), this::afterLogin);
+        return methods(ACCOUNT, client -> new AccountMethods(client.getRequestFactory(), client.getDefaultParams(), client::afterLogin));
     }
 
     /**
@@ -122,7 +190,7 @@ public class MatrixClient implements Closeable {
      * @return admin methods.
      */
     public AdminMethods admin() {
-        return new AdminMethods(getRequestFactory(), getDefaultParams());
+        return methods(ADMIN, client -> new AdminMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -131,7 +199,8 @@ public class MatrixClient implements Closeable {
      * @return auth methods.
      */
     public AuthMethods auth() {
-        return new AuthMethods(getRequestFactory(), getDefaultParams(), this::afterLogin, this::afterLogout);
+        return methods(AUTH, client -> new AuthMethods(
+            client.getRequestFactory(), client.getDefaultParams(), client::afterLogin, client::afterLogout));
     }
 
     /**
@@ -140,7 +209,7 @@ public class MatrixClient implements Closeable {
      * @return client config methods.
      */
     public ClientConfigMethods clientConfig() {
-        return new ClientConfigMethods(getRequestFactory(), getDefaultParams());
+        return methods(CLIENT_CONFIG, client -> new ClientConfigMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -149,7 +218,7 @@ public class MatrixClient implements Closeable {
      * @return content methods.
      */
     public ContentMethods content() {
-        return new ContentMethods(getRequestFactory(), getDefaultParams());
+        return methods(CONTENT, client -> new ContentMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -158,7 +227,7 @@ public class MatrixClient implements Closeable {
      * @return device methods.
      */
     public DeviceMethods device() {
-        return new DeviceMethods(getRequestFactory(), getDefaultParams());
+        return methods(DEVICE, client -> new DeviceMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -167,7 +236,7 @@ public class MatrixClient implements Closeable {
      * @return encryption methods.
      */
     public EncryptionMethods encryption() {
-        return new EncryptionMethods(getRequestFactory(), getDefaultParams());
+        return methods(ENCRYPTION, client -> new EncryptionMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -176,7 +245,7 @@ public class MatrixClient implements Closeable {
      * @return event context method.
      */
     public EventContextMethods eventContext() {
-        return new EventContextMethods(getRequestFactory(), getDefaultParams());
+        return methods(EVENT_CONTEXT, client -> new EventContextMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -185,7 +254,7 @@ public class MatrixClient implements Closeable {
      * @return presence methods.
      */
     public PresenceMethods presence() {
-        return new PresenceMethods(getRequestFactory(), getDefaultParams());
+        return methods(PRESENCE, client -> new PresenceMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -194,7 +263,7 @@ public class MatrixClient implements Closeable {
      * @return profile methods.
      */
     public ProfileMethods profile() {
-        return new ProfileMethods(getRequestFactory(), getDefaultParams());
+        return methods(PROFILE, client -> new ProfileMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -203,7 +272,7 @@ public class MatrixClient implements Closeable {
      * @return receipt method.
      */
     public ReceiptMethods receipt() {
-        return new ReceiptMethods(getRequestFactory(), getDefaultParams());
+        return methods(RECEIPT, client -> new ReceiptMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -212,7 +281,7 @@ public class MatrixClient implements Closeable {
      * @return the report method.
      */
     public ReportMethods report() {
-        return new ReportMethods(getRequestFactory(), getDefaultParams());
+        return methods(REPORT, client -> new ReportMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -221,7 +290,7 @@ public class MatrixClient implements Closeable {
      * @return the search method.
      */
     public SearchMethods search() {
-        return new SearchMethods(getRequestFactory(), getDefaultParams());
+        return methods(SEARCH, client -> new SearchMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -230,7 +299,7 @@ public class MatrixClient implements Closeable {
      * @return the send to device method.
      */
     public SendToDeviceMethods sendToDevice() {
-        return new SendToDeviceMethods(getRequestFactory(), getDefaultParams());
+        return methods(SEND_TO_DEVICE, client -> new SendToDeviceMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -239,7 +308,7 @@ public class MatrixClient implements Closeable {
      * @return sync method.
      */
     public SyncMethods sync() {
-        return new SyncMethods(getRequestFactory(), getDefaultParams());
+        return methods(SYNC, client -> new SyncMethods(client.getRequestFactory(), client.getDefaultParams(), client.getFilterRegistry()));
     }
 
     /**
@@ -248,7 +317,7 @@ public class MatrixClient implements Closeable {
      * @return event methods.
      */
     public EventMethods event() {
-        return new EventMethods(getRequestFactory(), getDefaultParams());
+        return methods(EVENT, client -> new EventMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -257,7 +326,8 @@ public class MatrixClient implements Closeable {
      * @return filter methods.
      */
     public FilterMethods filter() {
-        return new FilterMethods(getRequestFactory(), getDefaultParams());
+        return methods(FILTER, client -> new FilterMethods(
+            client.getRequestFactory(), client.getDefaultParams(), client.getFilterRegistry()));
     }
 
     /**
@@ -266,7 +336,7 @@ public class MatrixClient implements Closeable {
      * @return room apis.
      */
     public RoomMethods room() {
-        return new RoomMethods(getRequestFactory(), getDefaultParams());
+        return methods(ROOM, client -> new RoomMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -275,7 +345,7 @@ public class MatrixClient implements Closeable {
      * @return tag methods.
      */
     public TagMethods tag() {
-        return new TagMethods(getRequestFactory(), getDefaultParams());
+        return methods(TAG, client -> new TagMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -284,7 +354,7 @@ public class MatrixClient implements Closeable {
      * @return typing methods.
      */
     public TypingMethods typing() {
-        return new TypingMethods(getRequestFactory(), getDefaultParams());
+        return methods(TYPING, client -> new TypingMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -293,7 +363,7 @@ public class MatrixClient implements Closeable {
      * @return user directory method.
      */
     public UserDirectoryMethods userDirectory() {
-        return new UserDirectoryMethods(getRequestFactory(), getDefaultParams());
+        return methods(USER_DIRECTORY, client -> new UserDirectoryMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -302,7 +372,7 @@ public class MatrixClient implements Closeable {
      * @return the versions method.
      */
     public VersionMethods versions() {
-        return new VersionMethods(getRequestFactory(), getDefaultParams());
+        return methods(VERSION, client -> new VersionMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -311,7 +381,7 @@ public class MatrixClient implements Closeable {
      * @return the voip methods.
      */
     public VoipMethods turnServers() {
-        return new VoipMethods(getRequestFactory(), getDefaultParams());
+        return methods(VOIP, client -> new VoipMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -320,7 +390,7 @@ public class MatrixClient implements Closeable {
      * @return the push methods.
      */
     public PushMethods push() {
-        return new PushMethods(getRequestFactory(), getDefaultParams());
+        return methods(PUSH, client -> new PushMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -329,7 +399,7 @@ public class MatrixClient implements Closeable {
      * @return the protocol methods.
      */
     public ProtocolMethods protocol() {
-        return new ProtocolMethods(getRequestFactory(), getDefaultParams());
+        return methods(PROTOCOL, client -> new ProtocolMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -338,7 +408,7 @@ public class MatrixClient implements Closeable {
      * @return the capabilities methods.
      */
     public CapabilityMethods capabilities() {
-        return new CapabilityMethods(getRequestFactory(), getDefaultParams());
+        return methods(CAPABILITY, client -> new CapabilityMethods(client.getRequestFactory(), client.getDefaultParams()));
     }
 
     /**
@@ -386,7 +456,7 @@ public class MatrixClient implements Closeable {
 
         @Override
         public MatrixClient newInstance() {
-            return new MatrixClient(getFactory(), getDefaultParams());
+            return new MatrixClient(getFactory(), getDefaultParams(), getFilterRegistry());
         }
     }
 }
@@ -16,6 +16,7 @@
 
 package io.github.ma1uta.matrix.client;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -204,4 +205,160 @@ public class RequestParams implements Cloneable {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Read-only copy of these parameters.
+     * <br>
+     * The copy can be shared between the clients, its mutators throw the {@link UnsupportedOperationException} and
+     * the {@link #clone()} returns the modifiable parameters.
+     *
+     * @return read-only parameters.
+     */
+    public RequestParams readOnly() {
+        return new ReadOnlyParams(this);
+    }
+
+    /**
+     * Read-only view of these parameters with the other user id.
+     * <br>
+     * Unlike the {@link #readOnly()} the view doesn't copy the parameters and reads them from these ones at the request time,
+     * so the changes of these parameters (for example, the rotated access token) are visible through the view. Its mutators throw
+     * the {@link UnsupportedOperationException} and the {@link #clone()} returns the modifiable copy of the current values.
+     *
+     * @param userId The user id of the view.
+     * @return read-only view.
+     */
+    public RequestParams userView(String userId) {
+        return new UserViewParams(this, userId);
+    }
+
+    /**
+     * Read-only parameters.
+     */
+    private static class ReadOnlyParams extends RequestParams {
+
+        ReadOnlyParams() {
+        }
+
+        ReadOnlyParams(RequestParams params) {
+            RequestParams self = this;
+            self.pathParams = Collections.unmodifiableMap(new HashMap<>(params.getPathParams()));
+            self.queryParams = Collections.unmodifiableMap(new HashMap<>(params.getQueryParams()));
+            self.headerParams = Collections.unmodifiableMap(new HashMap<>(params.getHeaderParams()));
+            self.userId = params.getUserId();
+            self.accessToken = params.getAccessToken();
+            self.deviceId = params.getDeviceId();
+        }
+
+        @Override
+        public RequestParams path(String paramName, String paramValue) {
+            throw readOnlyError();
+        }
+
+        @Override
+        public RequestParams query(String paramName, String paramValue) {
+            throw readOnlyError();
+        }
+
+        @Override
+        public RequestParams query(String paramName, Boolean paramValue) {
+            throw readOnlyError();
+        }
+
+        @Override
+        public RequestParams query(String paramName, Long paramValue) {
+            throw readOnlyError();
+        }
+
+        @Override
+        public RequestParams query(String paramName, Integer paramValue) {
+            throw readOnlyError();
+        }
+
+        @Override
+        public RequestParams header(String paramName, String paramValue) {
+            throw readOnlyError();
+        }
+
+        @Override
+        public RequestParams userId(String userId) {
+            throw readOnlyError();
+        }
+
+        @Override
+        public RequestParams accessToken(String accessToken) {
+            throw readOnlyError();
+        }
+
+        @Override
+        public RequestParams deviceId(String deviceId) {
+            throw readOnlyError();
+        }
+
+        @Override
+        public RequestParams readOnly() {
+            return this;
+        }
+
+        @Override
+        public RequestParams clone() {
+            RequestParams clone = new RequestParams();
+            clone.pathParams.putAll(getPathParams());
+            clone.queryParams.putAll(getQueryParams());
+            clone.headerParams.putAll(getHeaderParams());
+            clone.userId = getUserId();
+            clone.accessToken = getAccessToken();
+            clone.deviceId = getDeviceId();
+            return clone;
+        }
+
+        private static UnsupportedOperationException readOnlyError() {
+            return new UnsupportedOperationException("Request params are read-only, use a clone.");
+        }
+    }
+
+    /**
+     * Read-only view of the parameters with the other user id.
+     */
+    private static final class UserViewParams extends ReadOnlyParams {
+
+        private final RequestParams source;
+
+        private final String viewUserId;
+
+        UserViewParams(RequestParams source, String userId) {
+            this.source = source;
+            this.viewUserId = userId;
+        }
+
+        @Override
+        public Map<String, String> getPathParams() {
+            return Collections.unmodifiableMap(source.getPathParams());
+        }
+
+        @Override
+        public Map<String, String> getQueryParams() {
+            return Collections.unmodifiableMap(source.getQueryParams());
+        }
+
+        @Override
+        public Map<String, String> getHeaderParams() {
+            return Collections.unmodifiableMap(source.getHeaderParams());
+        }
+
+        @Override
+        public String getUserId() {
+            return viewUserId;
+        }
+
+        @Override
+        public String getAccessToken() {
+            return source.getAccessToken();
+        }
+
+        @Override
+        public String getDeviceId() {
+            return source.getDeviceId();
+        }
+    }
 }
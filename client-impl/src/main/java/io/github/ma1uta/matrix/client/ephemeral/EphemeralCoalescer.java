@@ -0,0 +1,432 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.ephemeral;
+
+import io.github.ma1uta.matrix.EmptyResponse;
+import io.github.ma1uta.matrix.client.MatrixClient;
+import io.github.ma1uta.matrix.client.model.presence.PresenceStatus;
+import io.github.ma1uta.matrix.client.model.receipt.ReadMarkersRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalescer of the ephemeral signals: receipts, read markers, typing notifications and presence.
+ * <br>
+ * Signals are collected during the window and only the latest ones are sent. Within the window each room gets at most one
+ * receipt (or read markers) request and one typing request. The ordered markers are moved only forward. Typing "off" isn't
+ * sent if the "on" wasn't sent. Presence is sent only if it differs from the previously sent one.
+ */
+public class EphemeralCoalescer implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EphemeralCoalescer.class);
+
+    /**
+     * Default window in milliseconds.
+     */
+    public static final long DEFAULT_WINDOW = 1000L;
+
+    /**
+     * Order of the markers which are always applied.
+     */
+    public static final long UNORDERED = Long.MIN_VALUE;
+
+    private final MatrixClient matrixClient;
+
+    private final long window;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final boolean ownScheduler;
+
+    private final Map<String, RoomSignals> rooms = new ConcurrentHashMap<>();
+
+    private final PresenceSignal presence = new PresenceSignal();
+
+    public EphemeralCoalescer(MatrixClient matrixClient) {
+        this(matrixClient, DEFAULT_WINDOW);
+    }
+
+    public EphemeralCoalescer(MatrixClient matrixClient, long window) {
+        this(matrixClient, window, Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ephemeral-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        }), true);
+    }
+
+    /**
+     * Create the coalescer with the shared scheduler. The scheduler isn't stopped on close.
+     *
+     * @param matrixClient The matrix client.
+     * @param window       The window in milliseconds.
+     * @param scheduler    The scheduler.
+     */
+    public EphemeralCoalescer(MatrixClient matrixClient, long window, ScheduledExecutorService scheduler) {
+        this(matrixClient, window, scheduler, false);
+    }
+
+    protected EphemeralCoalescer(MatrixClient matrixClient, long window, ScheduledExecutorService scheduler, boolean ownScheduler) {
+        if (window < 0) {
+            throw new IllegalArgumentException("Window should be non-negative.");
+        }
+        this.matrixClient = Objects.requireNonNull(matrixClient, "Matrix client should be specified.");
+        this.window = window;
+        this.scheduler = Objects.requireNonNull(scheduler, "Scheduler should be specified.");
+        this.ownScheduler = ownScheduler;
+    }
+
+    public MatrixClient getMatrixClient() {
+        return matrixClient;
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * Send the read receipt.
+     *
+     * @param roomId  The room id.
+     * @param eventId The event id.
+     * @return The future which completes when the latest receipt of the room is sent.
+     */
+    public CompletableFuture<Void> receipt(String roomId, String eventId) {
+        return readMarkers(roomId, null, Objects.requireNonNull(eventId, "EventId cannot be empty."));
+    }
+
+    /**
+     * Send the read receipt only if it is newer than the already requested one.
+     *
+     * @param roomId  The room id.
+     * @param eventId The event id.
+     * @param order   The stream order of the event (for example, the sequence number of the sync), greater is newer.
+     * @return The future which completes when the latest receipt of the room is sent.
+     */
+    public CompletableFuture<Void> receipt(String roomId, String eventId, long order) {
+        return readMarkers(roomId, null, Objects.requireNonNull(eventId, "EventId cannot be empty."), order);
+    }
+
+    /**
+     * Set the read markers.
+     *
+     * @param roomId    The room id.
+     * @param fullyRead The event id the fully read marker should be located at or {@code null}.
+     * @param read      The event id to set the read receipt location at or {@code null}.
+     * @return The future which completes when the latest markers of the room are sent.
+     */
+    public CompletableFuture<Void> readMarkers(String roomId, String fullyRead, String read) {
+        return readMarkers(roomId, fullyRead, read, UNORDERED);
+    }
+
+    /**
+     * Set the read markers.
+     * <br>
+     * The markers are moved only forward: the markers with the order less or equal to the order of the already requested markers
+     * are skipped, so the late markers of the previous batches don't move the markers backwards.
+     *
+     * @param roomId    The room id.
+     * @param fullyRead The event id the fully read marker should be located at or {@code null}.
+     * @param read      The event id to set the read receipt location at or {@code null}.
+     * @param order     The stream order of the markers, greater is newer.
+     * @return The future which completes when the latest markers of the room are sent.
+     */
+    public CompletableFuture<Void> readMarkers(String roomId, String fullyRead, String read, long order) {
+        Objects.requireNonNull(roomId, "RoomId cannot be empty.");
+        Signal signal = new Signal();
+        rooms.compute(roomId, (id, current) -> {
+            RoomSignals signals = current != null ? current : new RoomSignals(id);
+            synchronized (signals) {
+                if (order != UNORDERED) {
+                    if (order <= signals.readOrder) {
+                        signal.future = CompletableFuture.completedFuture(null);
+                        return signals;
+                    }
+                    signals.readOrder = order;
+                }
+                if (fullyRead != null) {
+                    signals.fullyRead = fullyRead;
+                }
+                if (read != null) {
+                    signals.read = read;
+                }
+                if (signals.markersFuture == null) {
+                    signals.markersFuture = new CompletableFuture<>();
+                }
+                signal.future = signals.markersFuture;
+                signal.schedule(signals);
+            }
+            return signals;
+        });
+        signal.delay();
+        return signal.future;
+    }
+
+    /**
+     * Set the typing notification.
+     *
+     * @param roomId  The room id.
+     * @param typing  Whether the user is typing or not.
+     * @param timeout The length of time in milliseconds to mark this user as typing.
+     * @return The future which completes when the latest typing notification of the room is sent.
+     */
+    public CompletableFuture<Void> typing(String roomId, boolean typing, Long timeout) {
+        Objects.requireNonNull(roomId, "RoomId cannot be empty.");
+        Signal signal = new Signal();
+        rooms.compute(roomId, (id, current) -> {
+            RoomSignals signals = current != null ? current : new RoomSignals(id);
+            synchronized (signals) {
+                signals.typing = typing;
+                signals.typingTimeout = timeout;
+                if (signals.typingFuture == null) {
+                    signals.typingFuture = new CompletableFuture<>();
+                }
+                signal.future = signals.typingFuture;
+                signal.schedule(signals);
+            }
+            return signals;
+        });
+        signal.delay();
+        return signal.future;
+    }
+
+    /**
+     * Set the presence.
+     *
+     * @param status The new presence status.
+     * @return The future which completes when the latest presence is sent.
+     */
+    public CompletableFuture<Void> presence(PresenceStatus status) {
+        Objects.requireNonNull(status, "Status cannot be empty.");
+        CompletableFuture<Void> future;
+        boolean schedule;
+        synchronized (presence) {
+            presence.pending = status;
+            if (presence.future == null) {
+                presence.future = new CompletableFuture<>();
+            }
+            future = presence.future;
+            schedule = !presence.scheduled;
+            presence.scheduled = true;
+        }
+        if (schedule) {
+            delay(this::flushPresence);
+        }
+        return future;
+    }
+
+    /**
+     * Send all pending signals immediately.
+     */
+    public void flush() {
+        new ArrayList<>(rooms.values()).forEach(this::flushRoom);
+        flushPresence();
+    }
+
+    /**
+     * Send all pending signals and stop own scheduler.
+     */
+    @Override
+    public void close() {
+        flush();
+        if (ownScheduler) {
+            scheduler.shutdown();
+        }
+    }
+
+    protected void delay(Runnable action) {
+        try {
+            scheduler.schedule(action, window, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("Scheduler is stopped, send the signals immediately.");
+            action.run();
+        }
+    }
+
+    protected void flushRoom(RoomSignals signals) {
+        String fullyRead;
+        String read;
+        CompletableFuture<Void> markersFuture;
+        Boolean typing;
+        Long typingTimeout;
+        CompletableFuture<Void> typingFuture;
+        boolean sendTyping;
+        synchronized (signals) {
+            signals.scheduled = false;
+            fullyRead = signals.fullyRead;
+            read = signals.read;
+            markersFuture = signals.markersFuture;
+            typing = signals.typing;
+            typingTimeout = signals.typingTimeout;
+            typingFuture = signals.typingFuture;
+            sendTyping = typing != null && (typing || Boolean.TRUE.equals(signals.sentTyping));
+            if (sendTyping) {
+                signals.sentTyping = typing;
+            }
+            signals.fullyRead = null;
+            signals.read = null;
+            signals.markersFuture = null;
+            signals.typing = null;
+            signals.typingTimeout = null;
+            signals.typingFuture = null;
+        }
+        // the signals are removed under the map's lock, so the concurrent calls either see the removed signals or add to them.
+        rooms.computeIfPresent(signals.roomId, (id, current) -> current == signals && current.isIdle() ? null : current);
+
+        if (markersFuture != null) {
+            CompletableFuture<EmptyResponse> request;
+            if (fullyRead != null) {
+                ReadMarkersRequest markers = new ReadMarkersRequest();
+                markers.setFullyRead(fullyRead);
+                markers.setRead(read);
+                request = getMatrixClient().receipt().readMarkers(signals.roomId, markers);
+            } else {
+                request = getMatrixClient().receipt().sendReceipt(signals.roomId, read);
+            }
+            link(request, markersFuture);
+        }
+        if (typingFuture != null) {
+            if (sendTyping) {
+                link(getMatrixClient().typing().typing(signals.roomId, typing, typingTimeout), typingFuture);
+            } else {
+                typingFuture.complete(null);
+            }
+        }
+    }
+
+    protected void flushPresence() {
+        PresenceStatus status;
+        CompletableFuture<Void> future;
+        boolean send;
+        synchronized (presence) {
+            presence.scheduled = false;
+            status = presence.pending;
+            future = presence.future;
+            presence.pending = null;
+            presence.future = null;
+            if (status == null) {
+                return;
+            }
+            String key = status.getPresence() + "\n" + status.getStatusMsg();
+            send = !key.equals(presence.sent);
+            presence.sent = key;
+        }
+        if (send) {
+            link(getMatrixClient().presence().setPresenceStatus(status), future);
+        } else {
+            future.complete(null);
+        }
+    }
+
+    protected void link(CompletableFuture<EmptyResponse> request, CompletableFuture<Void> future) {
+        request.whenComplete((response, throwable) -> {
+            if (throwable != null) {
+                LOGGER.error("Cannot send the signal", throwable);
+                future.completeExceptionally(throwable);
+            } else {
+                future.complete(null);
+            }
+        });
+    }
+
+    /**
+     * Pending signals of the room.
+     */
+    protected static final class RoomSignals {
+
+        private final String roomId;
+
+        private String fullyRead;
+
+        private String read;
+
+        private CompletableFuture<Void> markersFuture;
+
+        private Boolean typing;
+
+        private Long typingTimeout;
+
+        private CompletableFuture<Void> typingFuture;
+
+        private Boolean sentTyping;
+
+        private boolean scheduled;
+
+        private long readOrder = UNORDERED;
+
+        RoomSignals(String roomId) {
+            this.roomId = roomId;
+        }
+
+        /**
+         * Check that the signals can be removed: nothing is pending, the typing is off and the order of the markers isn't tracked.
+         *
+         * @return {@code true} if the signals can be removed.
+         */
+        synchronized boolean isIdle() {
+            return !scheduled && markersFuture == null && typingFuture == null && !Boolean.TRUE.equals(sentTyping)
+                && readOrder == UNORDERED;
+        }
+    }
+
+    /**
+     * The signal added inside the map's compute.
+     */
+    private final class Signal {
+
+        private CompletableFuture<Void> future;
+
+        private RoomSignals scheduled;
+
+        void schedule(RoomSignals signals) {
+            if (!signals.scheduled) {
+                signals.scheduled = true;
+                scheduled = signals;
+            }
+        }
+
+        void delay() {
+            if (scheduled != null) {
+                RoomSignals signals = scheduled;
+                EphemeralCoalescer.this.delay(() -> flushRoom(signals));
+            }
+        }
+    }
+
+    /**
+     * Pending presence.
+     */
+    private static final class PresenceSignal {
+
+        private PresenceStatus pending;
+
+        private CompletableFuture<Void> future;
+
+        private String sent;
+
+        private boolean scheduled;
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.filter;
+
+import io.github.ma1uta.matrix.client.model.filter.Filter;
+import io.github.ma1uta.matrix.client.model.filter.FilterData;
+import io.github.ma1uta.matrix.client.model.filter.RoomEventFilter;
+import io.github.ma1uta.matrix.client.model.filter.RoomFilter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Builder of the smallest sync filter which covers the required event types, rooms and sections.
+ * <br>
+ * Each listener registers the event types it handles. The sections without the required event types are excluded
+ * from the sync response completely.
+ */
+public class FilterOptimizer {
+
+    /**
+     * Wildcard to require all event types of the section.
+     */
+    public static final String ALL = "*";
+
+    /**
+     * Sections of the sync response.
+     */
+    public enum Section {
+        /**
+         * Presence events.
+         */
+        PRESENCE,
+        /**
+         * Global account data.
+         */
+        ACCOUNT_DATA,
+        /**
+         * Room timeline.
+         */
+        TIMELINE,
+        /**
+         * Room state.
+         */
+        STATE,
+        /**
+         * Room ephemeral events (typing, receipts).
+         */
+        EPHEMERAL,
+        /**
+         * Room account data.
+         */
+        ROOM_ACCOUNT_DATA
+    }
+
+    private final Map<Section, Set<String>> types = new EnumMap<>(Section.class);
+
+    private Set<String> rooms;
+
+    private boolean lazyLoadMembers;
+
+    private Long timelineLimit;
+
+    private boolean includeLeave;
+
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Add the listener which is invoked after the required events are changed, for example to upload the new filter.
+     *
+     * @param listener The listener.
+     * @return This optimizer.
+     */
+    public FilterOptimizer addListener(Runnable listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    protected void changed() {
+        listeners.forEach(Runnable::run);
+    }
+
+    /**
+     * Require the event types in the specified section.
+     *
+     * @param section    The section of the sync response.
+     * @param eventTypes The event types or {@link #ALL} to require all events of the section.
+     * @return This optimizer.
+     */
+    public synchronized FilterOptimizer require(Section section, String... eventTypes) {
+        return require(section, Arrays.asList(eventTypes));
+    }
+
+    /**
+     * Require the event types in the specified section.
+     *
+     * @param section    The section of the sync response.
+     * @param eventTypes The event types or {@link #ALL} to require all events of the section.
+     * @return This optimizer.
+     */
+    public synchronized FilterOptimizer require(Section section, Collection<String> eventTypes) {
+        if (types.computeIfAbsent(section, s -> new TreeSet<>()).addAll(eventTypes)) {
+            changed();
+        }
+        return this;
+    }
+
+    /**
+     * Remove the event types from the specified section.
+     *
+     * @param section    The section of the sync response.
+     * @param eventTypes The event types.
+     * @return This optimizer.
+     */
+    public synchronized FilterOptimizer release(Section section, String... eventTypes) {
+        Set<String> sectionTypes = types.get(section);
+        if (sectionTypes != null) {
+            boolean removed = sectionTypes.removeAll(Arrays.asList(eventTypes));
+            if (sectionTypes.isEmpty()) {
+                types.remove(section);
+            }
+            if (removed) {
+                changed();
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Restrict the rooms.
+     *
+     * @param roomIds The room ids or {@code null} to receive events from all rooms.
+     * @return This optimizer.
+     */
+    public synchronized FilterOptimizer rooms(Collection<String> roomIds) {
+        this.rooms = roomIds == null ? null : new TreeSet<>(roomIds);
+        changed();
+        return this;
+    }
+
+    /**
+     * Enable or disable lazy-loading of the room members.
+     *
+     * @param lazyLoadMembers {@code true} to receive only members of the senders in the timeline.
+     * @return This optimizer.
+     */
+    public synchronized FilterOptimizer lazyLoadMembers(boolean lazyLoadMembers) {
+        this.lazyLoadMembers = lazyLoadMembers;
+        changed();
+        return this;
+    }
+
+    /**
+     * Set the maximum number of timeline events per room.
+     *
+     * @param timelineLimit The limit or {@code null} to use the server's default.
+     * @return This optimizer.
+     */
+    public synchronized FilterOptimizer timelineLimit(Long timelineLimit) {
+        this.timelineLimit = timelineLimit;
+        changed();
+        return this;
+    }
+
+    /**
+     * Include or not the left rooms.
+     *
+     * @param includeLeave {@code true} to include rooms the user has left.
+     * @return This optimizer.
+     */
+    public synchronized FilterOptimizer includeLeave(boolean includeLeave) {
+        this.includeLeave = includeLeave;
+        changed();
+        return this;
+    }
+
+    /**
+     * Build the filter.
+     *
+     * @return The smallest filter covering all required events.
+     */
+    public synchronized FilterData build() {
+        FilterData filterData = new FilterData();
+        filterData.setPresence(fill(new Filter(), Section.PRESENCE));
+        filterData.setAccountData(fill(new Filter(), Section.ACCOUNT_DATA));
+
+        RoomFilter roomFilter = new RoomFilter();
+        if (rooms != null) {
+            roomFilter.setRooms(new ArrayList<>(rooms));
+        }
+        if (includeLeave) {
+            roomFilter.setIncludeLeave(Boolean.TRUE);
+        }
+
+        RoomEventFilter timeline = fill(new RoomEventFilter(), Section.TIMELINE);
+        if (timelineLimit != null && types.containsKey(Section.TIMELINE)) {
+            timeline.setLimit(timelineLimit);
+        }
+        roomFilter.setTimeline(timeline);
+
+        RoomEventFilter state = fill(new RoomEventFilter(), Section.STATE);
+        if (lazyLoadMembers) {
+            timeline.setLazyLoadMembers(Boolean.TRUE);
+            state.setLazyLoadMembers(Boolean.TRUE);
+        }
+        roomFilter.setState(state);
+        roomFilter.setEphemeral(fill(new RoomEventFilter(), Section.EPHEMERAL));
+        roomFilter.setAccountData(fill(new RoomEventFilter(), Section.ROOM_ACCOUNT_DATA));
+        filterData.setRoom(roomFilter);
+        return filterData;
+    }
+
+    /**
+     * Build the JSON RoomEventFilter of the timeline section.
+     * <br>
+     * Is used by the {@code /messages} requests (for example, to fill the gaps of the limited timelines), so they return
+     * the same events as the sync.
+     *
+     * @return The JSON filter.
+     */
+    public synchronized String timelineFilter() {
+        Set<String> sectionTypes = types.get(Section.TIMELINE);
+        StringBuilder json = new StringBuilder("{");
+        if (sectionTypes == null || sectionTypes.isEmpty()) {
+            json.append("\"not_types\":[\"").append(ALL).append("\"]");
+        } else if (!sectionTypes.contains(ALL)) {
+            json.append("\"types\":[");
+            boolean first = true;
+            for (String type : new TreeSet<>(sectionTypes)) {
+                if (!first) {
+                    json.append(',');
+                }
+                first = false;
+                json.append('"').append(type.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+            json.append(']');
+        }
+        if (lazyLoadMembers) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append("\"lazy_load_members\":true");
+        }
+        return json.append('}').toString();
+    }
+
+    protected <F extends Filter> F fill(F filter, Section section) {
+        Set<String> sectionTypes = types.get(section);
+        if (sectionTypes == null || sectionTypes.isEmpty()) {
+            filter.setNotTypes(Collections.singletonList(ALL));
+        } else if (!sectionTypes.contains(ALL)) {
+            filter.setTypes(new ArrayList<>(sectionTypes));
+        }
+        return filter;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.filter;
+
+import io.github.ma1uta.matrix.client.model.filter.FilterData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Registry of the uploaded filters.
+ * <br>
+ * The filter is converted to the canonical form (properties and collections are sorted, empty properties are skipped)
+ * and hashed. The filter id returned by the homeserver is cached per user and hash, so the same filter is uploaded only once.
+ */
+public class FilterRegistry {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FilterRegistry.class);
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    private static final int HEX_MASK = 0xff;
+
+    private static final int HEX_RADIX = 16;
+
+    private final FilterStore store;
+
+    private final Map<String, CompletableFuture<String>> uploads = new ConcurrentHashMap<>();
+
+    public FilterRegistry() {
+        this(new InMemoryFilterStore());
+    }
+
+    public FilterRegistry(FilterStore store) {
+        this.store = Objects.requireNonNull(store, "The filter store should be specified.");
+    }
+
+    public FilterStore getStore() {
+        return store;
+    }
+
+    /**
+     * Get the filter id of the specified filter or upload the filter if it is unknown.
+     * <br>
+     * Concurrent requests of the same filter share the one upload.
+     *
+     * @param userId   The owner of the filter.
+     * @param filter   The filter.
+     * @param uploader The function to upload the filter and return the filter id.
+     * @return The filter id.
+     */
+    public CompletableFuture<String> resolve(String userId, FilterData filter, Function<FilterData, CompletableFuture<String>> uploader) {
+        Objects.requireNonNull(userId, "UserId cannot be empty.");
+        Objects.requireNonNull(filter, "Filter cannot be empty.");
+
+        String hash = hash(filter);
+        String filterId = getStore().find(userId, hash);
+        if (filterId != null) {
+            return CompletableFuture.completedFuture(filterId);
+        }
+
+        String key = userId + ":" + hash;
+        CompletableFuture<String> upload = uploads.computeIfAbsent(key, k -> {
+            LOGGER.debug("Upload a new filter {} for the user {}", hash, userId);
+            return uploader.apply(filter).thenApply(uploadedId -> {
+                getStore().save(userId, hash, uploadedId);
+                return uploadedId;
+            });
+        });
+        upload.whenComplete((uploadedId, throwable) -> uploads.remove(key, upload));
+        return upload;
+    }
+
+    /**
+     * Forget the filter id of the specified filter, for example when the homeserver doesn't know this filter anymore.
+     *
+     * @param userId The owner of the filter.
+     * @param filter The filter.
+     */
+    public void invalidate(String userId, FilterData filter) {
+        getStore().remove(userId, hash(filter));
+    }
+
+    /**
+     * Calculate the hash of the canonical form of the filter.
+     *
+     * @param filter The filter.
+     * @return The hex-encoded hash.
+     */
+    public String hash(FilterData filter) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+            byte[] hash = digest.digest(canonicalize(filter).getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                String digit = Integer.toString(b & HEX_MASK, HEX_RADIX);
+                if (digit.length() == 1) {
+                    hex.append('0');
+                }
+                hex.append(digit);
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Missing the " + HASH_ALGORITHM + " algorithm.", e);
+        }
+    }
+
+    /**
+     * Build the canonical form of the filter.
+     * <br>
+     * Equal filters always have the same canonical form regardless of the order of the types, rooms and senders.
+     *
+     * @param filter The filter.
+     * @return The canonical form.
+     */
+    public String canonicalize(FilterData filter) {
+        StringBuilder builder = new StringBuilder();
+        write(builder, filter);
+        return builder.toString();
+    }
+
+    protected void write(StringBuilder builder, Object value) {
+        if (value == null) {
+            builder.append("null");
+        } else if (value instanceof CharSequence) {
+            builder.append('"').append(value.toString().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        } else if (value instanceof Number || value instanceof Boolean || value instanceof Enum) {
+            builder.append(value);
+        } else if (value instanceof Collection) {
+            List<String> items = new ArrayList<>();
+            for (Object item : (Collection<?>) value) {
+                StringBuilder itemBuilder = new StringBuilder();
+                write(itemBuilder, item);
+                items.add(itemBuilder.toString());
+            }
+            items.sort(null);
+            builder.append('[').append(String.join(",", items)).append(']');
+        } else if (value instanceof Map) {
+            Map<String, Object> sorted = new TreeMap<>();
+            ((Map<?, ?>) value).forEach((k, v) -> sorted.put(String.valueOf(k), v));
+            writeProperties(builder, sorted);
+        } else {
+            writeProperties(builder, properties(value));
+        }
+    }
+
+    protected void writeProperties(StringBuilder builder, Map<String, Object> properties) {
+        builder.append('{');
+        boolean first = true;
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            if (property.getValue() == null) {
+                continue;
+            }
+            if (!first) {
+                builder.append(',');
+            }
+            first = false;
+            builder.append(property.getKey()).append(':');
+            write(builder, property.getValue());
+        }
+        builder.append('}');
+    }
+
+    protected Map<String, Object> properties(Object bean) {
+        Map<String, Object> properties = new TreeMap<>();
+        for (Method method : bean.getClass().getMethods()) {
+            String name = method.getName();
+            if (method.getParameterCount() != 0 || Modifier.isStatic(method.getModifiers()) || method.getDeclaringClass() == Object.class) {
+                continue;
+            }
+            String property;
+            if (name.startsWith("get") && name.length() > "get".length()) {
+                property = name.substring("get".length());
+            } else if (name.startsWith("is") && name.length() > "is".length()) {
+                property = name.substring("is".length());
+            } else {
+                continue;
+            }
+            try {
+                properties.put(property, method.invoke(bean));
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalArgumentException("Cannot read the property " + property + " of the " + bean.getClass().getName(), e);
+            }
+        }
+        return properties;
+    }
+}
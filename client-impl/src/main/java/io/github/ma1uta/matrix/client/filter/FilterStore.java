@@ -0,0 +1,51 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.filter;
+
+/**
+ * Storage of the uploaded filters.
+ * <br>
+ * Keeps the filter ids returned by the homeserver per user and per hash of the canonical filter.
+ */
+public interface FilterStore {
+
+    /**
+     * Find the filter id.
+     *
+     * @param userId The owner of the filter.
+     * @param hash   The hash of the canonical filter.
+     * @return The filter id or {@code null} if the filter wasn't uploaded.
+     */
+    String find(String userId, String hash);
+
+    /**
+     * Save the filter id.
+     *
+     * @param userId   The owner of the filter.
+     * @param hash     The hash of the canonical filter.
+     * @param filterId The filter id.
+     */
+    void save(String userId, String hash, String filterId);
+
+    /**
+     * Remove the filter id.
+     *
+     * @param userId The owner of the filter.
+     * @param hash   The hash of the canonical filter.
+     */
+    void remove(String userId, String hash);
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.filter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Filter store which keeps filter ids in the memory.
+ */
+public class InMemoryFilterStore implements FilterStore {
+
+    private final Map<String, String> filters = new ConcurrentHashMap<>();
+
+    @Override
+    public String find(String userId, String hash) {
+        return filters.get(key(userId, hash));
+    }
+
+    @Override
+    public void save(String userId, String hash, String filterId) {
+        filters.put(key(userId, hash), filterId);
+    }
+
+    @Override
+    public void remove(String userId, String hash) {
+        filters.remove(key(userId, hash));
+    }
+
+    protected String key(String userId, String hash) {
+        return userId + ":" + hash;
+    }
+}
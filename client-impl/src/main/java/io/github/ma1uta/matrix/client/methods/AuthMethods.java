@@ -67,6 +67,18 @@ public class AuthMethods extends AbstractMethods {
      * @return The login response.
      */
     public CompletableFuture<LoginResponse> login(String login, char[] password) {
+        return login(login, password, null);
+    }
+
+    /**
+     * Login with the existing device.
+     *
+     * @param login    The user MXID.
+     * @param password The password.
+     * @param deviceId The device id to reuse or {@code null} to create a new one.
+     * @return The login response.
+     */
+    public CompletableFuture<LoginResponse> login(String login, char[] password, String deviceId) {
         LOGGER.debug("Login with username: ''{}'' and password: ''<redacted>''", login);
         LoginRequest loginRequest = new LoginRequest();
         loginRequest.setType(AuthApi.AuthType.PASSWORD);
@@ -74,6 +86,7 @@ public class AuthMethods extends AbstractMethods {
         identifier.setUser(login);
         loginRequest.setIdentifier(identifier);
         loginRequest.setPassword(password);
+        loginRequest.setDeviceId(deviceId);
 
         return login(loginRequest);
     }
@@ -19,6 +19,7 @@ package io.github.ma1uta.matrix.client.methods;
 import io.github.ma1uta.matrix.client.RequestParams;
 import io.github.ma1uta.matrix.client.api.FilterApi;
 import io.github.ma1uta.matrix.client.factory.RequestFactory;
+import io.github.ma1uta.matrix.client.filter.FilterRegistry;
 import io.github.ma1uta.matrix.client.model.filter.FilterData;
 import io.github.ma1uta.matrix.client.model.filter.FilterResponse;
 
@@ -30,8 +31,19 @@ import java.util.concurrent.CompletableFuture;
  */
 public class FilterMethods extends AbstractMethods {
 
+    private final FilterRegistry filterRegistry;
+
     public FilterMethods(RequestFactory factory, RequestParams defaultParams) {
+        this(factory, defaultParams, new FilterRegistry());
+    }
+
+    public FilterMethods(RequestFactory factory, RequestParams defaultParams, FilterRegistry filterRegistry) {
         super(factory, defaultParams);
+        this.filterRegistry = filterRegistry;
+    }
+
+    protected FilterRegistry filterRegistry() {
+        return filterRegistry;
     }
 
     /**
@@ -62,4 +74,18 @@ public class FilterMethods extends AbstractMethods {
             .path("filterId", filterId);
         return factory().get(FilterApi.class, "getFilter", params, FilterData.class);
     }
+
+    /**
+     * Get the filter id of the specified filter.
+     * <br>
+     * The filter is uploaded only if the same filter wasn't uploaded before for the current user.
+     *
+     * @param filter The filter.
+     * @return The filter id.
+     */
+    public CompletableFuture<String> filterId(FilterData filter) {
+        Objects.requireNonNull(defaults().getUserId(), "UserId cannot be empty.");
+
+        return filterRegistry().resolve(defaults().getUserId(), filter, f -> uploadFilter(f).thenApply(FilterResponse::getFilterId));
+    }
 }
@@ -219,7 +219,7 @@ public class PushMethods extends AbstractMethods {
         Objects.requireNonNull(kind, "Kind cannot be empty.");
         Objects.requireNonNull(ruleId, "RuleId cannot be empty.");
 
-        RequestParams params = defaults().path("scope", scope).path("kind", kind).path("ruleId", ruleId);
+        RequestParams params = defaults().clone().path("scope", scope).path("kind", kind).path("ruleId", ruleId);
         PushActions request = new PushActions();
         request.setActions(actions);
         return factory().put(PushApi.class, "setActions", params, request, EmptyResponse.class);
@@ -20,6 +20,8 @@ import io.github.ma1uta.matrix.Page;
 import io.github.ma1uta.matrix.client.RequestParams;
 import io.github.ma1uta.matrix.client.api.SyncApi;
 import io.github.ma1uta.matrix.client.factory.RequestFactory;
+import io.github.ma1uta.matrix.client.filter.FilterRegistry;
+import io.github.ma1uta.matrix.client.model.filter.FilterData;
 import io.github.ma1uta.matrix.client.model.sync.SyncResponse;
 import io.github.ma1uta.matrix.event.Event;
 
@@ -31,8 +33,19 @@ import javax.ws.rs.core.GenericType;
  */
 public class SyncMethods extends AbstractMethods {
 
+    private final FilterRegistry filterRegistry;
+
     public SyncMethods(RequestFactory factory, RequestParams defaultParams) {
+        this(factory, defaultParams, new FilterRegistry());
+    }
+
+    public SyncMethods(RequestFactory factory, RequestParams defaultParams, FilterRegistry filterRegistry) {
         super(factory, defaultParams);
+        this.filterRegistry = filterRegistry;
+    }
+
+    protected FilterRegistry filterRegistry() {
+        return filterRegistry;
     }
 
     /**
@@ -55,6 +68,26 @@ public class SyncMethods extends AbstractMethods {
         return factory().get(SyncApi.class, "sync", params, SyncResponse.class);
     }
 
+    /**
+     * Sync events with the filter passed by value.
+     * <br>
+     * The filter is uploaded only once, the next requests reuse the filter id from the {@link FilterRegistry}.
+     *
+     * @param filter    The filter.
+     * @param since     The next batch token.
+     * @param fullState The full state or not.
+     * @param presence  The offline presence or not.
+     * @param timeout   The timeout.
+     * @return The sync data.
+     */
+    public CompletableFuture<SyncResponse> sync(FilterData filter, String since, boolean fullState, String presence, Long timeout) {
+        if (filter == null) {
+            return sync((String) null, since, fullState, presence, timeout);
+        }
+        return new FilterMethods(factory(), defaults(), filterRegistry()).filterId(filter)
+            .thenCompose(filterId -> sync(filterId, since, fullState, presence, timeout));
+    }
+
     /**
      * This will listen for new events related to a particular room and return them to the caller. This will block until an event is
      * received, or until the timeout is reached.
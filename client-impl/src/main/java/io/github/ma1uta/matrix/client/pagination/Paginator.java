@@ -0,0 +1,322 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.pagination;
+
+import io.github.ma1uta.matrix.Page;
+import io.github.ma1uta.matrix.client.methods.EventMethods;
+import io.github.ma1uta.matrix.client.methods.PushMethods;
+import io.github.ma1uta.matrix.client.methods.RoomMethods;
+import io.github.ma1uta.matrix.client.methods.SearchMethods;
+import io.github.ma1uta.matrix.client.model.push.Notification;
+import io.github.ma1uta.matrix.client.model.push.NotificationResponse;
+import io.github.ma1uta.matrix.client.model.room.PublicRoomsChunk;
+import io.github.ma1uta.matrix.client.model.room.PublicRoomsResponse;
+import io.github.ma1uta.matrix.client.model.search.Result;
+import io.github.ma1uta.matrix.client.model.search.RoomEventResults;
+import io.github.ma1uta.matrix.client.model.search.SearchRequest;
+import io.github.ma1uta.matrix.client.model.search.SearchResponse;
+import io.github.ma1uta.matrix.event.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Paginator over the paginated endpoints.
+ * <br>
+ * The next page is requested as soon as the previous one is received, so up to {@code prefetch} pages are loaded
+ * while the consumer handles the current one. When the buffer is full the requests are paused until the consumer takes
+ * the next page. The paginator should be closed (or the stream from the {@link #stream()}) to cancel the pending request.
+ *
+ * @param <R> response type.
+ * @param <T> item type.
+ */
+public class Paginator<R, T> implements Spliterator<T>, AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Paginator.class);
+
+    /**
+     * Default number of the prefetched pages.
+     */
+    public static final int DEFAULT_PREFETCH = 2;
+
+    /**
+     * Backward direction.
+     */
+    public static final String BACKWARD = "b";
+
+    /**
+     * Forward direction.
+     */
+    public static final String FORWARD = "f";
+
+    private final Function<String, CompletableFuture<R>> request;
+
+    private final Function<R, List<T>> items;
+
+    private final Function<R, String> nextToken;
+
+    private final int prefetch;
+
+    private final Queue<List<T>> pages = new ArrayDeque<>();
+
+    private Iterator<T> current = Collections.emptyIterator();
+
+    private String token;
+
+    private CompletableFuture<R> pending;
+
+    private boolean finished;
+
+    private boolean closed;
+
+    private Throwable failure;
+
+    /**
+     * Create the paginator.
+     *
+     * @param request   The page request by the token. The first page is requested with the {@code from} token.
+     * @param items     The items of the page.
+     * @param nextToken The token of the next page, {@code null} if it is the last page.
+     * @param from      The token of the first page, may be {@code null}.
+     * @param prefetch  The maximum number of the loaded but not consumed pages.
+     */
+    public Paginator(Function<String, CompletableFuture<R>> request, Function<R, List<T>> items, Function<R, String> nextToken,
+                     String from, int prefetch) {
+        if (prefetch < 1) {
+            throw new IllegalArgumentException("Prefetch should be positive.");
+        }
+        this.request = Objects.requireNonNull(request, "Request should be specified.");
+        this.items = Objects.requireNonNull(items, "Items should be specified.");
+        this.nextToken = Objects.requireNonNull(nextToken, "Next token should be specified.");
+        this.token = from;
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * Room events.
+     *
+     * @param eventMethods The event methods.
+     * @param roomId       The room id.
+     * @param from         The token to start.
+     * @param to           The token to stop.
+     * @param dir          The direction, {@link #BACKWARD} or {@link #FORWARD}.
+     * @param limit        The page size.
+     * @param filter       A JSON RoomEventFilter to filter returned events with.
+     * @param prefetch     The number of the prefetched pages.
+     * @return The paginator.
+     */
+    public static Paginator<Page<Event>, Event> messages(EventMethods eventMethods, String roomId, String from, String to, String dir,
+                                                         Integer limit, String filter, int prefetch) {
+        return new Paginator<>(token -> eventMethods.messages(roomId, token, to, dir, limit, filter), Page::getChunk, Page::getEnd,
+            from, prefetch);
+    }
+
+    /**
+     * Notifications.
+     *
+     * @param pushMethods The push methods.
+     * @param only        Allows basic filtering of events returned. Supply "highlight" to return only events where the
+     *                    notification had the highlight tweak set.
+     * @param limit       The page size.
+     * @param prefetch    The number of the prefetched pages.
+     * @return The paginator.
+     */
+    public static Paginator<NotificationResponse, Notification> notifications(PushMethods pushMethods, String only, Long limit,
+                                                                              int prefetch) {
+        return new Paginator<>(token -> pushMethods.notifications(token, only, limit), NotificationResponse::getNotifications,
+            NotificationResponse::getNextToken, null, prefetch);
+    }
+
+    /**
+     * Public rooms.
+     *
+     * @param roomMethods The room methods.
+     * @param limit       The page size.
+     * @param server      The server to fetch the public room lists from.
+     * @param prefetch    The number of the prefetched pages.
+     * @return The paginator.
+     */
+    public static Paginator<PublicRoomsResponse, PublicRoomsChunk> publicRooms(RoomMethods roomMethods, Long limit, String server,
+                                                                               int prefetch) {
+        return new Paginator<>(token -> roomMethods.showPublicRooms(limit, token, server), PublicRoomsResponse::getChunk,
+            PublicRoomsResponse::getNextBatch, null, prefetch);
+    }
+
+    /**
+     * Room event search results.
+     *
+     * @param searchMethods The search methods.
+     * @param request       The search request.
+     * @param prefetch      The number of the prefetched pages.
+     * @return The paginator.
+     */
+    public static Paginator<SearchResponse, Result> search(SearchMethods searchMethods, SearchRequest request, int prefetch) {
+        return new Paginator<>(token -> searchMethods.search(request, token), response -> {
+            RoomEventResults results = roomEvents(response);
+            return results != null ? results.getResults() : null;
+        }, response -> {
+            RoomEventResults results = roomEvents(response);
+            return results != null ? results.getNextBatch() : null;
+        }, null, prefetch);
+    }
+
+    private static RoomEventResults roomEvents(SearchResponse response) {
+        return response.getSearchCategories() != null ? response.getSearchCategories().getRoomEvents() : null;
+    }
+
+    /**
+     * Sequential stream of the items. The stream should be closed to stop prefetching.
+     *
+     * @return The stream of the items.
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(this, false).onClose(this::close);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        Objects.requireNonNull(action);
+        while (!current.hasNext()) {
+            List<T> page = take();
+            if (page == null) {
+                return false;
+            }
+            current = page.iterator();
+        }
+        action.accept(current.next());
+        return true;
+    }
+
+    /**
+     * Take the next loaded page, wait it if necessary.
+     *
+     * @return The next page or {@code null} if there are no more pages.
+     */
+    protected synchronized List<T> take() {
+        fetch();
+        while (pages.isEmpty()) {
+            if (failure != null) {
+                throw new CompletionException(failure);
+            }
+            if (finished || closed) {
+                return null;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new CompletionException(e);
+            }
+        }
+        List<T> page = pages.poll();
+        fetch();
+        return page;
+    }
+
+    /**
+     * Request the next page if there is the free space in the buffer.
+     */
+    protected synchronized void fetch() {
+        if (pending != null || finished || closed || pages.size() >= prefetch) {
+            return;
+        }
+        String from = token;
+        CompletableFuture<R> future = request.apply(from);
+        pending = future;
+        future.whenComplete((response, throwable) -> received(future, from, response, throwable));
+    }
+
+    /**
+     * Handle the received page.
+     *
+     * @param future    The completed request.
+     * @param from      The token of the requested page.
+     * @param response  The response.
+     * @param throwable The error if the request failed.
+     */
+    protected synchronized void received(CompletableFuture<R> future, String from, R response, Throwable throwable) {
+        if (pending != future) {
+            return;
+        }
+        pending = null;
+        if (throwable != null) {
+            failure = throwable;
+            finished = true;
+        } else {
+            try {
+                List<T> page = items.apply(response);
+                String next = nextToken.apply(response);
+                if (page != null && !page.isEmpty()) {
+                    pages.add(page);
+                }
+                token = next;
+                finished = page == null || page.isEmpty() || next == null || next.equals(from);
+            } catch (RuntimeException e) {
+                failure = e;
+                finished = true;
+            }
+        }
+        notifyAll();
+        fetch();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        pages.clear();
+        if (pending != null) {
+            LOGGER.debug("Cancel the pending page request");
+            CompletableFuture<R> cancelled = pending;
+            // reset before the cancel, so the cancellation isn't handled as the failure of the request.
+            pending = null;
+            cancelled.cancel(false);
+        }
+        notifyAll();
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.sync;
+
+import io.github.ma1uta.matrix.client.methods.EventMethods;
+import io.github.ma1uta.matrix.client.model.sync.JoinedRoom;
+import io.github.ma1uta.matrix.client.model.sync.LeftRoom;
+import io.github.ma1uta.matrix.client.model.sync.Rooms;
+import io.github.ma1uta.matrix.client.model.sync.SyncResponse;
+import io.github.ma1uta.matrix.event.Event;
+import io.github.ma1uta.matrix.event.RoomMember;
+import io.github.ma1uta.matrix.event.content.RoomMemberContent;
+import io.github.ma1uta.matrix.impl.exception.MatrixException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.HttpURLConnection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Client-side cache of the room members.
+ * <br>
+ * Intended to use with lazy-loaded members: the cache is filled from the sync {@code state} and {@code timeline} sections
+ * and the missing member is requested on demand as the one {@code m.room.member} state event via
+ * {@link EventMethods#eventContent(String, String, String)}, so the member list of the large rooms is never loaded.
+ * Inactive rooms are evicted when the cache exceeds the maximum number of rooms.
+ */
+public class RoomMemberCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RoomMemberCache.class);
+
+    /**
+     * Default maximum number of the cached rooms.
+     */
+    public static final int DEFAULT_MAX_ROOMS = 1000;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private static final String NOT_FOUND = "M_NOT_FOUND";
+
+    private final Supplier<EventMethods> eventMethods;
+
+    private final Map<String, RoomMembers> rooms;
+
+    public RoomMemberCache(Supplier<EventMethods> eventMethods) {
+        this(eventMethods, DEFAULT_MAX_ROOMS);
+    }
+
+    public RoomMemberCache(Supplier<EventMethods> eventMethods, int maxRooms) {
+        this.eventMethods = Objects.requireNonNull(eventMethods, "Event methods should be specified.");
+        this.rooms = new LinkedHashMap<String, RoomMembers>(maxRooms, LOAD_FACTOR, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RoomMembers> eldest) {
+                return size() > maxRooms;
+            }
+        };
+    }
+
+    /**
+     * Update the cache from the sync response.
+     *
+     * @param syncResponse The sync response.
+     */
+    public void update(SyncResponse syncResponse) {
+        Rooms syncRooms = syncResponse.getRooms();
+        if (syncRooms == null) {
+            return;
+        }
+        if (syncRooms.getJoin() != null) {
+            for (Map.Entry<String, JoinedRoom> entry : syncRooms.getJoin().entrySet()) {
+                JoinedRoom joinedRoom = entry.getValue();
+                if (joinedRoom.getState() != null) {
+                    update(entry.getKey(), joinedRoom.getState().getEvents());
+                }
+                if (joinedRoom.getTimeline() != null) {
+                    update(entry.getKey(), joinedRoom.getTimeline().getEvents());
+                }
+            }
+        }
+        if (syncRooms.getLeave() != null) {
+            for (Map.Entry<String, LeftRoom> entry : syncRooms.getLeave().entrySet()) {
+                evict(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Update the cache with the membership events of the room.
+     *
+     * @param roomId The room id.
+     * @param events The events, all events except the {@code m.room.member} are skipped.
+     */
+    public void update(String roomId, List<Event> events) {
+        if (events == null || events.isEmpty()) {
+            return;
+        }
+        RoomMembers roomMembers = null;
+        for (Event event : events) {
+            if (event instanceof RoomMember) {
+                if (roomMembers == null) {
+                    roomMembers = room(roomId);
+                }
+                Member member = Member.of((RoomMember) event);
+                if (member != null) {
+                    roomMembers.members.put(member.getUserId(), member);
+                    roomMembers.absent.remove(member.getUserId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the cached member without requests to the homeserver.
+     *
+     * @param roomId The room id.
+     * @param userId The user id.
+     * @return The member or empty if the member isn't cached.
+     */
+    public Optional<Member> cached(String roomId, String userId) {
+        RoomMembers roomMembers;
+        synchronized (rooms) {
+            roomMembers = rooms.get(roomId);
+        }
+        return roomMembers == null ? Optional.empty() : Optional.ofNullable(roomMembers.members.get(userId));
+    }
+
+    /**
+     * Get the member of the room.
+     * <br>
+     * If the member isn't cached then the membership state event of this user is requested. Concurrent requests of the same
+     * member share the one request, the users without the membership event are remembered until the sync brings their event.
+     *
+     * @param roomId The room id.
+     * @param userId The user id.
+     * @return The member or empty if the user isn't a member of the room.
+     */
+    public CompletableFuture<Optional<Member>> member(String roomId, String userId) {
+        RoomMembers roomMembers = room(roomId);
+        Member member = roomMembers.members.get(userId);
+        if (member != null || roomMembers.absent.contains(userId)) {
+            return CompletableFuture.completedFuture(Optional.ofNullable(member));
+        }
+        return load(roomId, userId, roomMembers);
+    }
+
+    /**
+     * Get the display name of the member.
+     *
+     * @param roomId The room id.
+     * @param userId The user id.
+     * @return The display name or {@code null} if the member doesn't have the display name.
+     */
+    public CompletableFuture<String> displayName(String roomId, String userId) {
+        return member(roomId, userId).thenApply(m -> m.map(Member::getDisplayName).orElse(null));
+    }
+
+    /**
+     * Get the membership of the member.
+     *
+     * @param roomId The room id.
+     * @param userId The user id.
+     * @return The membership or {@code null} if the user isn't a member of the room.
+     */
+    public CompletableFuture<String> membership(String roomId, String userId) {
+        return member(roomId, userId).thenApply(m -> m.map(Member::getMembership).orElse(null));
+    }
+
+    /**
+     * Remove the room from the cache.
+     *
+     * @param roomId The room id.
+     */
+    public void evict(String roomId) {
+        synchronized (rooms) {
+            rooms.remove(roomId);
+        }
+    }
+
+    protected RoomMembers room(String roomId) {
+        synchronized (rooms) {
+            return rooms.computeIfAbsent(roomId, id -> new RoomMembers());
+        }
+    }
+
+    protected CompletableFuture<Optional<Member>> load(String roomId, String userId, RoomMembers roomMembers) {
+        CompletableFuture<Optional<Member>> request = roomMembers.requests.computeIfAbsent(userId, id -> {
+            LOGGER.debug("Load member {} of the room {}", userId, roomId);
+            return eventMethods.get().eventContent(roomId, RoomMember.TYPE, userId).handle((content, error) -> {
+                if (error != null) {
+                    if (!isNotFound(error)) {
+                        throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+                    }
+                    roomMembers.absent.add(userId);
+                    return Optional.<Member>empty();
+                }
+                if (!(content instanceof RoomMemberContent)) {
+                    roomMembers.absent.add(userId);
+                    return Optional.<Member>empty();
+                }
+                RoomMemberContent memberContent = (RoomMemberContent) content;
+                Member loaded = new Member(userId, memberContent.getMembership(), memberContent.getDisplayName(),
+                    memberContent.getAvatarUrl());
+                // the sync events are newer than the loaded one.
+                Member current = roomMembers.members.putIfAbsent(userId, loaded);
+                return Optional.of(current != null ? current : loaded);
+            });
+        });
+        request.whenComplete((result, error) -> roomMembers.requests.remove(userId, request));
+        return request;
+    }
+
+    private static boolean isNotFound(Throwable error) {
+        Throwable cause = error;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause instanceof MatrixException && (NOT_FOUND.equals(((MatrixException) cause).getErrcode())
+            || Integer.valueOf(HttpURLConnection.HTTP_NOT_FOUND).equals(((MatrixException) cause).getStatus()));
+    }
+
+    /**
+     * Members of the one room.
+     */
+    protected static class RoomMembers {
+
+        private final Map<String, Member> members = new ConcurrentHashMap<>();
+
+        /**
+         * Users without the membership event.
+         */
+        private final Set<String> absent = ConcurrentHashMap.newKeySet();
+
+        /**
+         * Pending requests of the members.
+         */
+        private final Map<String, CompletableFuture<Optional<Member>>> requests = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Room member.
+     */
+    public static final class Member {
+
+        private final String userId;
+
+        private final String membership;
+
+        private final String displayName;
+
+        private final String avatarUrl;
+
+        public Member(String userId, String membership, String displayName, String avatarUrl) {
+            this.userId = userId;
+            this.membership = membership;
+            this.displayName = displayName;
+            this.avatarUrl = avatarUrl;
+        }
+
+        /**
+         * Create a member from the membership event.
+         *
+         * @param event The membership event.
+         * @return The member or {@code null} if the event doesn't have a state key or content.
+         */
+        public static Member of(RoomMember event) {
+            RoomMemberContent content = event.getContent();
+            if (event.getStateKey() == null || content == null) {
+                return null;
+            }
+            return new Member(event.getStateKey(), content.getMembership(), content.getDisplayName(), content.getAvatarUrl());
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public String getMembership() {
+            return membership;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        public String getAvatarUrl() {
+            return avatarUrl;
+        }
+
+        /**
+         * Check that the user is joined to the room.
+         *
+         * @return {@code true} if joined, else {@code false}.
+         */
+        public boolean isJoined() {
+            return RoomMemberContent.JOIN.equals(membership);
+        }
+    }
+}
@@ -38,6 +38,8 @@ public class SyncLoop implements Runnable {
     private BiFunction<SyncResponse, SyncParams, SyncParams> inboundListener;
     private SyncParams init = new SyncParams();
     private final SyncParams current = new SyncParams();
+    private RoomMemberCache memberCache;
+    private TimelineGapFiller gapFiller;
 
     public SyncLoop(SyncMethods syncMethods) {
         this.syncMethods = syncMethods;
@@ -55,6 +57,32 @@ public class SyncLoop implements Runnable {
         this.inboundListener = inboundListener;
     }
 
+    public RoomMemberCache getMemberCache() {
+        return memberCache;
+    }
+
+    /**
+     * Set the member cache which will be updated from each sync response before the inbound listener.
+     *
+     * @param memberCache The member cache or {@code null} to disable updates.
+     */
+    public void setMemberCache(RoomMemberCache memberCache) {
+        this.memberCache = memberCache;
+    }
+
+    public TimelineGapFiller getGapFiller() {
+        return gapFiller;
+    }
+
+    /**
+     * Set the gap filler which will fill the limited timelines before the inbound listener.
+     *
+     * @param gapFiller The gap filler or {@code null} to pass limited timelines as is.
+     */
+    public void setGapFiller(TimelineGapFiller gapFiller) {
+        this.gapFiller = gapFiller;
+    }
+
     public SyncParams getInit() {
         return init;
     }
@@ -90,7 +118,9 @@ public class SyncLoop implements Runnable {
         while (!Thread.interrupted()) {
             try {
                 CompletableFuture<SyncResponse> future;
+                String since;
                 synchronized (current) {
+                    since = current.getNextBatch();
                     future = getSyncMethods().sync(
                         current.getFilter(),
                         current.getNextBatch(),
@@ -101,10 +131,18 @@ public class SyncLoop implements Runnable {
                 }
                 SyncResponse sync = future.get(2 * current.getTimeout(), TimeUnit.MILLISECONDS);
 
+                if (getGapFiller() != null) {
+                    sync = getGapFiller().fill(sync, since).join();
+                }
+
                 synchronized (current) {
                     current.setNextBatch(sync.getNextBatch());
                 }
 
+                if (getMemberCache() != null) {
+                    getMemberCache().update(sync);
+                }
+
                 setCurrent(getInboundListener().apply(sync, new SyncParams(current)));
             } catch (TimeoutException e) {
                 LOGGER.error("Timeout exceeded", e);
@@ -0,0 +1,185 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.sync;
+
+import io.github.ma1uta.matrix.Page;
+import io.github.ma1uta.matrix.client.methods.EventMethods;
+import io.github.ma1uta.matrix.client.model.sync.JoinedRoom;
+import io.github.ma1uta.matrix.client.model.sync.SyncResponse;
+import io.github.ma1uta.matrix.client.model.sync.Timeline;
+import io.github.ma1uta.matrix.event.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+/**
+ * Gap filler for the limited timelines.
+ * <br>
+ * When the sync returns a limited timeline the skipped events are requested via {@link EventMethods#messages} from the
+ * {@code prev_batch} back to the previous {@code next_batch} and inserted before the live events in the chronological order.
+ * Rooms are filled in parallel with the bounded number of concurrent requests.
+ */
+public class TimelineGapFiller {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TimelineGapFiller.class);
+
+    /**
+     * Default number of rooms filled at the same time.
+     */
+    public static final int DEFAULT_CONCURRENCY = 4;
+
+    /**
+     * Default number of events in the one request.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    /**
+     * Default maximum number of events to fill the one gap.
+     */
+    public static final int DEFAULT_MAX_EVENTS = 1000;
+
+    /**
+     * Backward pagination.
+     */
+    private static final String BACKWARD = "b";
+
+    private final Supplier<EventMethods> eventMethods;
+
+    private final int concurrency;
+
+    private final int pageSize;
+
+    private final int maxEvents;
+
+    private String filter;
+
+    public TimelineGapFiller(Supplier<EventMethods> eventMethods) {
+        this(eventMethods, DEFAULT_CONCURRENCY, DEFAULT_PAGE_SIZE, DEFAULT_MAX_EVENTS);
+    }
+
+    public TimelineGapFiller(Supplier<EventMethods> eventMethods, int concurrency, int pageSize, int maxEvents) {
+        if (concurrency < 1 || pageSize < 1 || maxEvents < 1) {
+            throw new IllegalArgumentException("Concurrency, page size and max events should be positive.");
+        }
+        this.eventMethods = Objects.requireNonNull(eventMethods, "Event methods should be specified.");
+        this.concurrency = concurrency;
+        this.pageSize = pageSize;
+        this.maxEvents = maxEvents;
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    /**
+     * Set the filter of the requested events.
+     *
+     * @param filter A JSON RoomEventFilter, should be the same as the timeline filter of the sync.
+     */
+    public void setFilter(String filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Fill gaps of all limited timelines in the sync response.
+     * <br>
+     * The timelines are modified in place, the filled timelines are marked as not limited.
+     *
+     * @param syncResponse The sync response.
+     * @param since        The batch token which was used to request this sync response.
+     * @return The same sync response with filled timelines.
+     */
+    public CompletableFuture<SyncResponse> fill(SyncResponse syncResponse, String since) {
+        if (since == null || syncResponse.getRooms() == null || syncResponse.getRooms().getJoin() == null) {
+            return CompletableFuture.completedFuture(syncResponse);
+        }
+
+        Queue<Map.Entry<String, Timeline>> gaps = new ConcurrentLinkedQueue<>();
+        for (Map.Entry<String, JoinedRoom> entry : syncResponse.getRooms().getJoin().entrySet()) {
+            Timeline timeline = entry.getValue().getTimeline();
+            if (timeline != null && Boolean.TRUE.equals(timeline.getLimited()) && timeline.getPrevBatch() != null) {
+                gaps.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), timeline));
+            }
+        }
+        if (gaps.isEmpty()) {
+            return CompletableFuture.completedFuture(syncResponse);
+        }
+
+        LOGGER.debug("Fill {} limited timelines", gaps.size());
+        List<CompletableFuture<Void>> workers = new ArrayList<>(concurrency);
+        for (int i = 0; i < Math.min(concurrency, gaps.size()); i++) {
+            workers.add(next(gaps, since));
+        }
+        return CompletableFuture.allOf(workers.toArray(new CompletableFuture[0])).thenApply(v -> syncResponse);
+    }
+
+    protected CompletableFuture<Void> next(Queue<Map.Entry<String, Timeline>> gaps, String since) {
+        Map.Entry<String, Timeline> gap = gaps.poll();
+        if (gap == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        String roomId = gap.getKey();
+        Timeline timeline = gap.getValue();
+        return backfill(roomId, timeline.getPrevBatch(), since, new ArrayList<>()).handle((events, throwable) -> {
+            if (throwable != null) {
+                LOGGER.error(String.format("Cannot fill the gap in the room %s", roomId), throwable);
+            } else {
+                merge(timeline, events);
+            }
+            return null;
+        }).thenCompose(v -> next(gaps, since));
+    }
+
+    protected CompletableFuture<List<Event>> backfill(String roomId, String from, String to, List<Event> collected) {
+        int limit = Math.min(pageSize, maxEvents - collected.size());
+        return eventMethods.get().messages(roomId, from, to, BACKWARD, limit, getFilter()).thenCompose(page -> {
+            List<Event> chunk = page.getChunk();
+            if (chunk != null) {
+                collected.addAll(chunk);
+            }
+            if (isLastPage(page, from) || collected.size() >= maxEvents) {
+                return CompletableFuture.completedFuture(collected);
+            }
+            return backfill(roomId, page.getEnd(), to, collected);
+        });
+    }
+
+    protected boolean isLastPage(Page<Event> page, String from) {
+        return page.getChunk() == null || page.getChunk().isEmpty() || page.getEnd() == null || page.getEnd().equals(from);
+    }
+
+    protected void merge(Timeline timeline, List<Event> backward) {
+        List<Event> events = new ArrayList<>(backward.size() + (timeline.getEvents() == null ? 0 : timeline.getEvents().size()));
+        events.addAll(backward);
+        Collections.reverse(events);
+        if (timeline.getEvents() != null) {
+            events.addAll(timeline.getEvents());
+        }
+        timeline.setEvents(events);
+        timeline.setLimited(backward.size() >= maxEvents);
+    }
+}
@@ -1,7 +1,10 @@
 module matrix.client.impl {
     exports io.github.ma1uta.matrix.client;
     exports io.github.ma1uta.matrix.client.factory;
+    exports io.github.ma1uta.matrix.client.ephemeral;
+    exports io.github.ma1uta.matrix.client.filter;
     exports io.github.ma1uta.matrix.client.methods;
+    exports io.github.ma1uta.matrix.client.pagination;
     exports io.github.ma1uta.matrix.client.sync;
 
     requires transitive matrix.client.api;
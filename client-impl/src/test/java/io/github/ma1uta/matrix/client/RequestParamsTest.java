@@ -0,0 +1,71 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+public class RequestParamsTest {
+
+    @Test
+    public void userViewReadsCurrentValues() {
+        RequestParams root = new RequestParams().userId("@bridge:example.org").accessToken("first").header("X-Trace", "1");
+        RequestParams view = root.userView("@irc_alice:example.org");
+
+        root.accessToken("second").header("X-Trace", "2");
+
+        assertEquals("@irc_alice:example.org", view.getUserId());
+        assertEquals("second", view.getAccessToken());
+        assertEquals("2", view.getHeaderParams().get("X-Trace"));
+        assertEquals("@bridge:example.org", root.getUserId());
+    }
+
+    @Test
+    public void userViewIsReadOnly() {
+        RequestParams view = new RequestParams().accessToken("token").userView("@alice:example.org");
+
+        assertThrows(UnsupportedOperationException.class, () -> view.accessToken("other"));
+        assertThrows(UnsupportedOperationException.class, () -> view.query("limit", 1));
+        assertThrows(UnsupportedOperationException.class, () -> view.getHeaderParams().put("X-Trace", "1"));
+        assertEquals(view, view.readOnly());
+    }
+
+    @Test
+    public void cloneOfUserViewIsModifiable() {
+        RequestParams root = new RequestParams().accessToken("first");
+        RequestParams view = root.userView("@alice:example.org");
+
+        RequestParams clone = view.clone().query("limit", 1);
+        root.accessToken("second");
+
+        assertEquals("@alice:example.org", clone.getUserId());
+        assertEquals("first", clone.getAccessToken());
+        assertEquals("1", clone.getQueryParams().get("limit"));
+    }
+
+    @Test
+    public void readOnlyIsSnapshot() {
+        RequestParams root = new RequestParams().accessToken("first");
+        RequestParams copy = root.readOnly();
+
+        root.accessToken("second");
+
+        assertEquals("first", copy.getAccessToken());
+    }
+}
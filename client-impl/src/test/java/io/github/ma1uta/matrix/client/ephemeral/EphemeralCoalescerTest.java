@@ -0,0 +1,276 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.ephemeral;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.github.ma1uta.matrix.EmptyResponse;
+import io.github.ma1uta.matrix.client.MatrixClient;
+import io.github.ma1uta.matrix.client.RequestParams;
+import io.github.ma1uta.matrix.client.factory.RequestFactory;
+import io.github.ma1uta.matrix.client.model.receipt.ReadMarkersRequest;
+import io.github.ma1uta.matrix.client.model.typing.TypingRequest;
+import io.github.ma1uta.matrix.event.content.EventContent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.core.GenericType;
+
+public class EphemeralCoalescerTest {
+
+    private static final long LONG_WINDOW = TimeUnit.MINUTES.toMillis(1);
+
+    private RecordingFactory factory;
+
+    private ScheduledExecutorService scheduler;
+
+    @BeforeEach
+    public void setUp() {
+        factory = new RecordingFactory();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void oneReceiptPerRoomPerWindow() {
+        EphemeralCoalescer coalescer = coalescer(LONG_WINDOW);
+
+        CompletableFuture<Void> first = coalescer.receipt("!room:example.org", "$1");
+        CompletableFuture<Void> second = coalescer.receipt("!room:example.org", "$2");
+        CompletableFuture<Void> third = coalescer.receipt("!room:example.org", "$3");
+        assertTrue(factory.requests.isEmpty());
+
+        coalescer.flush();
+
+        assertEquals(1, factory.requests.size());
+        Request request = factory.requests.get(0);
+        assertEquals("receipt", request.method);
+        assertEquals("!room:example.org", request.params.getPathParams().get("roomId"));
+        assertEquals("$3", request.params.getPathParams().get("eventId"));
+        assertSame(first, second);
+        assertSame(first, third);
+        assertTrue(first.isDone());
+    }
+
+    @Test
+    public void roomsAreSentSeparately() {
+        EphemeralCoalescer coalescer = coalescer(LONG_WINDOW);
+
+        coalescer.receipt("!first:example.org", "$1");
+        coalescer.receipt("!second:example.org", "$2");
+        coalescer.receipt("!first:example.org", "$3");
+        coalescer.flush();
+
+        assertEquals(2, factory.requests.size());
+        assertEquals("$3", factory.receipt("!first:example.org").params.getPathParams().get("eventId"));
+        assertEquals("$2", factory.receipt("!second:example.org").params.getPathParams().get("eventId"));
+    }
+
+    @Test
+    public void windowIsFlushedByScheduler() throws Exception {
+        EphemeralCoalescer coalescer = coalescer(50L);
+
+        coalescer.receipt("!room:example.org", "$1");
+        CompletableFuture<Void> future = coalescer.receipt("!room:example.org", "$2");
+        future.get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, factory.requests.size());
+        assertEquals("$2", factory.requests.get(0).params.getPathParams().get("eventId"));
+
+        coalescer.receipt("!room:example.org", "$3").get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, factory.requests.size());
+        assertEquals("$3", factory.requests.get(1).params.getPathParams().get("eventId"));
+    }
+
+    @Test
+    public void fullyReadIsMergedWithReceipt() {
+        EphemeralCoalescer coalescer = coalescer(LONG_WINDOW);
+
+        coalescer.readMarkers("!room:example.org", "$1", null);
+        coalescer.receipt("!room:example.org", "$2");
+        coalescer.flush();
+
+        assertEquals(1, factory.requests.size());
+        Request request = factory.requests.get(0);
+        assertEquals("readMarkers", request.method);
+        ReadMarkersRequest markers = (ReadMarkersRequest) request.payload;
+        assertEquals("$1", markers.getFullyRead());
+        assertEquals("$2", markers.getRead());
+    }
+
+    @Test
+    public void orderedMarkersMoveOnlyForward() {
+        EphemeralCoalescer coalescer = coalescer(LONG_WINDOW);
+
+        coalescer.receipt("!room:example.org", "$2", 2L);
+        CompletableFuture<Void> late = coalescer.receipt("!room:example.org", "$1", 1L);
+        coalescer.flush();
+
+        assertTrue(late.isDone());
+        assertEquals(1, factory.requests.size());
+        assertEquals("$2", factory.requests.get(0).params.getPathParams().get("eventId"));
+
+        coalescer.receipt("!room:example.org", "$1", 1L);
+        coalescer.flush();
+
+        assertEquals(1, factory.requests.size());
+    }
+
+    @Test
+    public void typingOffWithoutOnIsSkipped() {
+        EphemeralCoalescer coalescer = coalescer(LONG_WINDOW);
+
+        CompletableFuture<Void> off = coalescer.typing("!room:example.org", false, null);
+        coalescer.flush();
+
+        assertTrue(off.isDone());
+        assertTrue(factory.requests.isEmpty());
+    }
+
+    @Test
+    public void typingSendsLatestStateOnce() {
+        EphemeralCoalescer coalescer = coalescer(LONG_WINDOW);
+
+        coalescer.typing("!room:example.org", true, 1000L);
+        coalescer.typing("!room:example.org", false, null);
+        coalescer.typing("!room:example.org", true, 3000L);
+        coalescer.flush();
+
+        assertEquals(1, factory.requests.size());
+        TypingRequest typing = (TypingRequest) factory.requests.get(0).payload;
+        assertTrue(typing.getTyping());
+        assertEquals(Long.valueOf(3000L), typing.getTimeout());
+
+        coalescer.typing("!room:example.org", false, null);
+        coalescer.flush();
+
+        assertEquals(2, factory.requests.size());
+        typing = (TypingRequest) factory.requests.get(1).payload;
+        assertFalse(typing.getTyping());
+        assertNull(typing.getTimeout());
+    }
+
+    @Test
+    public void receiptAndTypingAreSeparateRequests() {
+        EphemeralCoalescer coalescer = coalescer(LONG_WINDOW);
+
+        coalescer.receipt("!room:example.org", "$1");
+        coalescer.typing("!room:example.org", true, 1000L);
+        coalescer.receipt("!room:example.org", "$2");
+        coalescer.typing("!room:example.org", true, 2000L);
+        coalescer.flush();
+
+        assertEquals(2, factory.requests.size());
+        assertEquals(1, factory.requests.stream().filter(request -> "receipt".equals(request.method)).count());
+        assertEquals(1, factory.requests.stream().filter(request -> "typing".equals(request.method)).count());
+    }
+
+    private EphemeralCoalescer coalescer(long window) {
+        return new EphemeralCoalescer(new MatrixClient(factory, new RequestParams().userId("@bot:example.org")), window,
+            scheduler);
+    }
+
+    private static final class Request {
+
+        private final String method;
+
+        private final RequestParams params;
+
+        private final Object payload;
+
+        Request(String method, RequestParams params, Object payload) {
+            this.method = method;
+            this.params = params;
+            this.payload = payload;
+        }
+    }
+
+    private static final class RecordingFactory implements RequestFactory {
+
+        private final List<Request> requests = new CopyOnWriteArrayList<>();
+
+        Request receipt(String roomId) {
+            return requests.stream().filter(request -> roomId.equals(request.params.getPathParams().get("roomId")))
+                .findFirst().orElseThrow(() -> new AssertionError("No request to the " + roomId));
+        }
+
+        @SuppressWarnings("unchecked")
+        private <R> CompletableFuture<R> record(String apiMethod, RequestParams params, Object payload) {
+            requests.add(new Request(apiMethod, params, payload));
+            return CompletableFuture.completedFuture((R) new EmptyResponse());
+        }
+
+        @Override
+        public String getHomeserverUrl() {
+            return "https://example.org";
+        }
+
+        @Override
+        public <T, R> CompletableFuture<R> post(Class<?> apiClass, String apiMethod, RequestParams params, T payload,
+                                                Class<R> responseClass) {
+            return record(apiMethod, params, payload);
+        }
+
+        @Override
+        public <T, R> CompletableFuture<R> post(Class<?> apiClass, String apiMethod, RequestParams params, T payload,
+                                                Class<R> responseClass, String contentType) {
+            return record(apiMethod, params, payload);
+        }
+
+        @Override
+        public <R> CompletableFuture<R> get(Class<?> apiClass, String apiMethod, RequestParams params, GenericType<R> genericType) {
+            return record(apiMethod, params, null);
+        }
+
+        @Override
+        public <R> CompletableFuture<R> get(Class<?> apiClass, String apiMethod, RequestParams params, Class<R> responseClass) {
+            return record(apiMethod, params, null);
+        }
+
+        @Override
+        public <T, R> CompletableFuture<R> put(Class<?> apiClass, String apiMethod, RequestParams params, T payload,
+                                               Class<R> responseClass) {
+            return record(apiMethod, params, payload);
+        }
+
+        @Override
+        public CompletableFuture<EmptyResponse> delete(Class<?> apiClass, String apiMethod, RequestParams params) {
+            return record(apiMethod, params, null);
+        }
+
+        @Override
+        public EventContent deserialize(byte[] content, String eventType) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.filter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import io.github.ma1uta.matrix.client.model.filter.FilterData;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FilterOptimizerTest {
+
+    @Test
+    public void sectionsWithoutTypesAreExcluded() {
+        FilterData filter = new FilterOptimizer().require(FilterOptimizer.Section.TIMELINE, "m.room.message").build();
+
+        assertEquals(Collections.singletonList(FilterOptimizer.ALL), filter.getPresence().getNotTypes());
+        assertEquals(Collections.singletonList(FilterOptimizer.ALL), filter.getAccountData().getNotTypes());
+        assertEquals(Collections.singletonList(FilterOptimizer.ALL), filter.getRoom().getState().getNotTypes());
+        assertEquals(Collections.singletonList(FilterOptimizer.ALL), filter.getRoom().getEphemeral().getNotTypes());
+        assertEquals(Collections.singletonList("m.room.message"), filter.getRoom().getTimeline().getTypes());
+        assertNull(filter.getRoom().getTimeline().getNotTypes());
+    }
+
+    @Test
+    public void wildcardRequiresWholeSection() {
+        FilterData filter = new FilterOptimizer().require(FilterOptimizer.Section.STATE, "m.room.member", FilterOptimizer.ALL).build();
+
+        assertNull(filter.getRoom().getState().getTypes());
+        assertNull(filter.getRoom().getState().getNotTypes());
+    }
+
+    @Test
+    public void typesAreSorted() {
+        FilterData filter = new FilterOptimizer()
+            .require(FilterOptimizer.Section.TIMELINE, "m.room.message")
+            .require(FilterOptimizer.Section.TIMELINE, "m.room.encrypted", "m.room.member")
+            .rooms(Arrays.asList("!b:example.org", "!a:example.org"))
+            .build();
+
+        assertEquals(Arrays.asList("m.room.encrypted", "m.room.member", "m.room.message"), filter.getRoom().getTimeline().getTypes());
+        assertEquals(Arrays.asList("!a:example.org", "!b:example.org"), filter.getRoom().getRooms());
+    }
+
+    @Test
+    public void releasedSectionIsExcluded() {
+        FilterOptimizer optimizer = new FilterOptimizer().require(FilterOptimizer.Section.EPHEMERAL, "m.typing", "m.receipt");
+
+        optimizer.release(FilterOptimizer.Section.EPHEMERAL, "m.typing", "m.receipt");
+
+        assertEquals(Collections.singletonList(FilterOptimizer.ALL), optimizer.build().getRoom().getEphemeral().getNotTypes());
+    }
+
+    @Test
+    public void listenerIsInvokedOnlyOnChanges() {
+        AtomicInteger changes = new AtomicInteger();
+        FilterOptimizer optimizer = new FilterOptimizer().addListener(changes::incrementAndGet);
+
+        optimizer.require(FilterOptimizer.Section.TIMELINE, "m.room.message");
+        optimizer.require(FilterOptimizer.Section.TIMELINE, "m.room.message");
+        optimizer.release(FilterOptimizer.Section.STATE, "m.room.member");
+        optimizer.release(FilterOptimizer.Section.TIMELINE, "m.room.message");
+
+        assertEquals(2, changes.get());
+    }
+
+    @Test
+    public void timelineFilter() {
+        FilterOptimizer optimizer = new FilterOptimizer();
+
+        assertEquals("{\"not_types\":[\"*\"]}", optimizer.timelineFilter());
+
+        optimizer.require(FilterOptimizer.Section.TIMELINE, "m.room.member", "m.room.message");
+        assertEquals("{\"types\":[\"m.room.member\",\"m.room.message\"]}", optimizer.timelineFilter());
+
+        optimizer.lazyLoadMembers(true);
+        assertEquals("{\"types\":[\"m.room.member\",\"m.room.message\"],\"lazy_load_members\":true}", optimizer.timelineFilter());
+
+        optimizer.require(FilterOptimizer.Section.TIMELINE, FilterOptimizer.ALL);
+        assertEquals("{\"lazy_load_members\":true}", optimizer.timelineFilter());
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.filter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.github.ma1uta.matrix.client.model.filter.Filter;
+import io.github.ma1uta.matrix.client.model.filter.FilterData;
+import io.github.ma1uta.matrix.client.model.filter.RoomEventFilter;
+import io.github.ma1uta.matrix.client.model.filter.RoomFilter;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FilterRegistryTest {
+
+    @Test
+    public void canonicalForm() {
+        FilterData filter = new FilterData();
+        filter.setEventFormat("client");
+        Filter presence = new Filter();
+        presence.setTypes(Arrays.asList("m.presence", "m.custom\"quoted"));
+        filter.setPresence(presence);
+
+        assertEquals("{EventFormat:\"client\",Presence:{Types:[\"m.custom\\\"quoted\",\"m.presence\"]}}",
+            new FilterRegistry().canonicalize(filter));
+    }
+
+    @Test
+    public void hashIgnoresOrder() {
+        FilterRegistry registry = new FilterRegistry();
+
+        String hash = registry.hash(filter(Arrays.asList("m.room.message", "m.room.member"), Arrays.asList("!a:example.org",
+            "!b:example.org")));
+
+        assertEquals(hash, registry.hash(filter(Arrays.asList("m.room.member", "m.room.message"), Arrays.asList("!b:example.org",
+            "!a:example.org"))));
+        assertEquals(hash, new FilterRegistry().hash(filter(Arrays.asList("m.room.message", "m.room.member"),
+            Arrays.asList("!a:example.org", "!b:example.org"))));
+        assertEquals(64, hash.length());
+        assertTrue(hash.matches("[0-9a-f]+"));
+    }
+
+    @Test
+    public void hashDependsOnContent() {
+        FilterRegistry registry = new FilterRegistry();
+
+        String hash = registry.hash(filter(Arrays.asList("m.room.message"), Arrays.asList("!a:example.org")));
+
+        assertNotEquals(hash, registry.hash(filter(Arrays.asList("m.room.member"), Arrays.asList("!a:example.org"))));
+        assertNotEquals(hash, registry.hash(filter(Arrays.asList("m.room.message"), Arrays.asList("!b:example.org"))));
+
+        FilterData lazy = filter(Arrays.asList("m.room.message"), Arrays.asList("!a:example.org"));
+        lazy.getRoom().getTimeline().setLazyLoadMembers(Boolean.TRUE);
+        assertNotEquals(hash, registry.hash(lazy));
+    }
+
+    @Test
+    public void sameFilterIsUploadedOnce() throws Exception {
+        FilterRegistry registry = new FilterRegistry();
+        AtomicInteger uploads = new AtomicInteger();
+
+        String first = registry.resolve("@alice:example.org", filter(Arrays.asList("a", "b"), null),
+            filter -> CompletableFuture.completedFuture("filter" + uploads.incrementAndGet())).get();
+        String second = registry.resolve("@alice:example.org", filter(Arrays.asList("b", "a"), null),
+            filter -> CompletableFuture.completedFuture("filter" + uploads.incrementAndGet())).get();
+        String other = registry.resolve("@bob:example.org", filter(Arrays.asList("a", "b"), null),
+            filter -> CompletableFuture.completedFuture("filter" + uploads.incrementAndGet())).get();
+
+        assertEquals("filter1", first);
+        assertEquals("filter1", second);
+        assertEquals("filter2", other);
+        assertEquals(2, uploads.get());
+    }
+
+    @Test
+    public void concurrentRequestsShareUpload() throws Exception {
+        FilterRegistry registry = new FilterRegistry();
+        CompletableFuture<String> upload = new CompletableFuture<>();
+        AtomicInteger uploads = new AtomicInteger();
+
+        CompletableFuture<String> first = registry.resolve("@alice:example.org", filter(Arrays.asList("a"), null), filter -> {
+            uploads.incrementAndGet();
+            return upload;
+        });
+        CompletableFuture<String> second = registry.resolve("@alice:example.org", filter(Arrays.asList("a"), null), filter -> {
+            uploads.incrementAndGet();
+            return upload;
+        });
+        upload.complete("filter");
+
+        assertSame(first, second);
+        assertEquals("filter", second.get());
+        assertEquals(1, uploads.get());
+    }
+
+    @Test
+    public void invalidatedFilterIsUploadedAgain() throws Exception {
+        FilterRegistry registry = new FilterRegistry();
+        AtomicInteger uploads = new AtomicInteger();
+        FilterData filter = filter(Arrays.asList("a"), null);
+
+        registry.resolve("@alice:example.org", filter, f -> CompletableFuture.completedFuture("filter" + uploads.incrementAndGet()))
+            .get();
+        registry.invalidate("@alice:example.org", filter);
+        String filterId = registry.resolve("@alice:example.org", filter,
+            f -> CompletableFuture.completedFuture("filter" + uploads.incrementAndGet())).get();
+
+        assertEquals("filter2", filterId);
+    }
+
+    @Test
+    public void optimizedFilterHashIsStable() {
+        FilterRegistry registry = new FilterRegistry();
+        FilterOptimizer first = new FilterOptimizer()
+            .require(FilterOptimizer.Section.TIMELINE, "m.room.message", "m.room.member")
+            .require(FilterOptimizer.Section.STATE, FilterOptimizer.ALL)
+            .rooms(Arrays.asList("!a:example.org", "!b:example.org"));
+        FilterOptimizer second = new FilterOptimizer()
+            .rooms(Arrays.asList("!b:example.org", "!a:example.org"))
+            .require(FilterOptimizer.Section.STATE, FilterOptimizer.ALL)
+            .require(FilterOptimizer.Section.TIMELINE, "m.room.member")
+            .require(FilterOptimizer.Section.TIMELINE, "m.room.message");
+
+        assertEquals(registry.hash(first.build()), registry.hash(second.build()));
+        assertEquals(registry.hash(first.build()), registry.hash(first.build()));
+
+        second.require(FilterOptimizer.Section.EPHEMERAL, "m.typing");
+
+        assertNotEquals(registry.hash(first.build()), registry.hash(second.build()));
+    }
+
+    private FilterData filter(List<String> types, List<String> rooms) {
+        RoomEventFilter timeline = new RoomEventFilter();
+        timeline.setTypes(types);
+        RoomFilter room = new RoomFilter();
+        room.setRooms(rooms);
+        room.setTimeline(timeline);
+        FilterData filter = new FilterData();
+        filter.setRoom(room);
+        return filter;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.pagination;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.github.ma1uta.matrix.Page;
+import io.github.ma1uta.matrix.client.RequestParams;
+import io.github.ma1uta.matrix.client.methods.EventMethods;
+import io.github.ma1uta.matrix.event.Event;
+import io.github.ma1uta.matrix.event.RoomEvent;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+public class PaginatorTest {
+
+    private static final int PAGES = 10;
+
+    private static final int PAGE_SIZE = 3;
+
+    @Test
+    public void allPagesInOrder() {
+        List<String> tokens = new ArrayList<>();
+        Paginator<Response, Integer> paginator = new Paginator<>(token -> {
+            tokens.add(token);
+            return CompletableFuture.completedFuture(response(token == null ? 0 : Integer.parseInt(token)));
+        }, Response::getItems, Response::getNext, null, Paginator.DEFAULT_PREFETCH);
+
+        try (Stream<Integer> stream = paginator.stream()) {
+            assertEquals(IntStream.range(0, PAGES * PAGE_SIZE).boxed().collect(Collectors.toList()), stream.collect(Collectors.toList()));
+        }
+        assertNull(tokens.get(0));
+        assertEquals(IntStream.range(1, PAGES).mapToObj(String::valueOf).collect(Collectors.toList()), tokens.subList(1, PAGES));
+        assertEquals(PAGES, tokens.size());
+    }
+
+    @Test
+    public void prefetchIsBounded() {
+        List<String> tokens = new ArrayList<>();
+        Paginator<Response, Integer> paginator = new Paginator<>(token -> {
+            tokens.add(token);
+            return CompletableFuture.completedFuture(response(Integer.parseInt(token)));
+        }, Response::getItems, Response::getNext, "0", 2);
+
+        assertTrue(tokens.isEmpty());
+        assertTrue(paginator.tryAdvance(item -> assertEquals(Integer.valueOf(0), item)));
+
+        // the consumed page and two prefetched pages.
+        assertEquals(Arrays.asList("0", "1", "2"), tokens);
+
+        for (int i = 1; i < PAGE_SIZE; i++) {
+            paginator.tryAdvance(item -> {
+            });
+        }
+        assertEquals(3, tokens.size());
+        paginator.tryAdvance(item -> assertEquals(Integer.valueOf(PAGE_SIZE), item));
+        assertEquals(4, tokens.size());
+    }
+
+    @Test
+    public void repeatedTokenFinishes() {
+        List<String> tokens = new ArrayList<>();
+        Paginator<Response, Integer> paginator = new Paginator<>(token -> {
+            tokens.add(token);
+            return CompletableFuture.completedFuture(new Response(Collections.singletonList(1), "same"));
+        }, Response::getItems, Response::getNext, "same", 1);
+
+        assertEquals(Collections.singletonList(1), paginator.stream().collect(Collectors.toList()));
+        assertEquals(Collections.singletonList("same"), tokens);
+    }
+
+    @Test
+    public void emptyPageFinishes() {
+        Paginator<Response, Integer> paginator = new Paginator<>(
+            token -> CompletableFuture.completedFuture(new Response(Collections.emptyList(), "next")), Response::getItems,
+            Response::getNext, null, 1);
+
+        assertFalse(paginator.tryAdvance(item -> {
+        }));
+    }
+
+    @Test
+    public void failureIsThrownAfterLoadedPages() {
+        Paginator<Response, Integer> paginator = new Paginator<>(token -> {
+            if (token == null) {
+                return CompletableFuture.completedFuture(new Response(Arrays.asList(1, 2), "next"));
+            }
+            CompletableFuture<Response> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("Server error"));
+            return failed;
+        }, Response::getItems, Response::getNext, null, 1);
+        List<Integer> items = new ArrayList<>();
+
+        CompletionException exception = assertThrows(CompletionException.class, () -> paginator.forEachRemaining(items::add));
+
+        assertEquals(Arrays.asList(1, 2), items);
+        assertTrue(exception.getCause() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void closeCancelsPendingRequest() {
+        List<CompletableFuture<Response>> requests = new ArrayList<>();
+        Paginator<Response, Integer> paginator = new Paginator<>(token -> {
+            CompletableFuture<Response> request = new CompletableFuture<>();
+            requests.add(request);
+            return request;
+        }, Response::getItems, Response::getNext, null, 1);
+        paginator.fetch();
+
+        paginator.stream().close();
+
+        assertEquals(1, requests.size());
+        assertTrue(requests.get(0).isCancelled());
+        assertFalse(paginator.tryAdvance(item -> {
+        }));
+        assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void messages() {
+        List<String> requests = new ArrayList<>();
+        EventMethods eventMethods = new EventMethods(null, new RequestParams()) {
+            @Override
+            public CompletableFuture<Page<Event>> messages(String roomId, String from, String to, String dir, Integer limit,
+                                                           String filter) {
+                requests.add(String.join(" ", roomId, from, to, dir, String.valueOf(limit), filter));
+                Page<Event> page = new Page<>();
+                if ("t0".equals(from)) {
+                    page.setChunk(Arrays.asList(roomEvent("$2"), roomEvent("$1")));
+                    page.setEnd("t1");
+                } else {
+                    page.setChunk(Collections.singletonList(roomEvent("$0")));
+                }
+                return CompletableFuture.completedFuture(page);
+            }
+        };
+
+        List<String> ids = Paginator.messages(eventMethods, "!room:example.org", "t0", "t9", Paginator.BACKWARD, 2, "{}", 1).stream()
+            .map(event -> ((RoomEvent) event).getEventId()).collect(Collectors.toList());
+
+        assertEquals(Arrays.asList("$2", "$1", "$0"), ids);
+        assertEquals(Arrays.asList("!room:example.org t0 t9 b 2 {}", "!room:example.org t1 t9 b 2 {}"), requests);
+    }
+
+    private static Event roomEvent(String eventId) {
+        RoomEvent event = new RoomEvent();
+        event.setEventId(eventId);
+        return event;
+    }
+
+    private static Response response(int page) {
+        List<Integer> items = IntStream.range(page * PAGE_SIZE, (page + 1) * PAGE_SIZE).boxed().collect(Collectors.toList());
+        return new Response(items, page + 1 < PAGES ? String.valueOf(page + 1) : null);
+    }
+
+    private static final class Response {
+
+        private final List<Integer> items;
+
+        private final String next;
+
+        Response(List<Integer> items, String next) {
+            this.items = items;
+            this.next = next;
+        }
+
+        List<Integer> getItems() {
+            return items;
+        }
+
+        String getNext() {
+            return next;
+        }
+    }
+}
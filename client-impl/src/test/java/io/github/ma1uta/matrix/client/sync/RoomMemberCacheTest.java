@@ -0,0 +1,203 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.sync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.github.ma1uta.matrix.client.RequestParams;
+import io.github.ma1uta.matrix.client.methods.EventMethods;
+import io.github.ma1uta.matrix.client.model.sync.JoinedRoom;
+import io.github.ma1uta.matrix.client.model.sync.LeftRoom;
+import io.github.ma1uta.matrix.client.model.sync.Rooms;
+import io.github.ma1uta.matrix.client.model.sync.State;
+import io.github.ma1uta.matrix.client.model.sync.SyncResponse;
+import io.github.ma1uta.matrix.client.model.sync.Timeline;
+import io.github.ma1uta.matrix.event.Event;
+import io.github.ma1uta.matrix.event.RoomMember;
+import io.github.ma1uta.matrix.event.content.EventContent;
+import io.github.ma1uta.matrix.event.content.RoomMemberContent;
+import io.github.ma1uta.matrix.impl.exception.MatrixException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class RoomMemberCacheTest {
+
+    private static final String ROOM = "!room:example.org";
+
+    private RecordingEventMethods eventMethods;
+
+    private RoomMemberCache cache;
+
+    @BeforeEach
+    public void setUp() {
+        eventMethods = new RecordingEventMethods();
+        cache = new RoomMemberCache(() -> eventMethods);
+    }
+
+    @Test
+    public void membersFromSync() throws Exception {
+        JoinedRoom joinedRoom = new JoinedRoom();
+        State state = new State();
+        state.setEvents(Arrays.asList(member("@alice:example.org", RoomMemberContent.JOIN, "Alice"),
+            member("@bob:example.org", RoomMemberContent.JOIN, "Bob")));
+        joinedRoom.setState(state);
+        Timeline timeline = new Timeline();
+        timeline.setEvents(Collections.singletonList(member("@alice:example.org", RoomMemberContent.JOIN, "Alice Cooper")));
+        joinedRoom.setTimeline(timeline);
+
+        cache.update(sync(Collections.singletonMap(ROOM, joinedRoom), null));
+
+        assertEquals("Alice Cooper", cache.displayName(ROOM, "@alice:example.org").get());
+        assertEquals("Bob", cache.displayName(ROOM, "@bob:example.org").get());
+        assertTrue(cache.cached(ROOM, "@bob:example.org").get().isJoined());
+        assertTrue(eventMethods.requests.isEmpty());
+    }
+
+    @Test
+    public void leftRoomIsEvicted() {
+        cache.update(ROOM, Collections.singletonList(member("@alice:example.org", RoomMemberContent.JOIN, "Alice")));
+
+        cache.update(sync(null, Collections.singletonMap(ROOM, new LeftRoom())));
+
+        assertFalse(cache.cached(ROOM, "@alice:example.org").isPresent());
+    }
+
+    @Test
+    public void missingMemberIsLoadedOnce() throws Exception {
+        CompletableFuture<Optional<RoomMemberCache.Member>> first = cache.member(ROOM, "@alice:example.org");
+        CompletableFuture<Optional<RoomMemberCache.Member>> second = cache.member(ROOM, "@alice:example.org");
+
+        assertSame(first, second);
+        assertEquals(Collections.singletonList(ROOM + "/@alice:example.org"), eventMethods.requests);
+
+        eventMethods.responses.get(0).complete(content(RoomMemberContent.INVITE, "Alice"));
+
+        assertEquals(RoomMemberContent.INVITE, first.get().get().getMembership());
+        assertEquals("Alice", cache.displayName(ROOM, "@alice:example.org").get());
+        assertEquals(1, eventMethods.requests.size());
+    }
+
+    @Test
+    public void syncMemberIsNewerThanLoaded() throws Exception {
+        CompletableFuture<Optional<RoomMemberCache.Member>> loading = cache.member(ROOM, "@alice:example.org");
+
+        cache.update(ROOM, Collections.singletonList(member("@alice:example.org", RoomMemberContent.LEAVE, "Alice")));
+        eventMethods.responses.get(0).complete(content(RoomMemberContent.JOIN, "Old Alice"));
+
+        assertEquals(RoomMemberContent.LEAVE, loading.get().get().getMembership());
+        assertEquals(RoomMemberContent.LEAVE, cache.membership(ROOM, "@alice:example.org").get());
+    }
+
+    @Test
+    public void absentMemberIsRemembered() throws Exception {
+        CompletableFuture<Optional<RoomMemberCache.Member>> absent = cache.member(ROOM, "@alice:example.org");
+        eventMethods.responses.get(0).completeExceptionally(new MatrixException("M_NOT_FOUND", "Not found", 404));
+
+        assertFalse(absent.get().isPresent());
+        assertFalse(cache.member(ROOM, "@alice:example.org").get().isPresent());
+        assertEquals(1, eventMethods.requests.size());
+
+        cache.update(ROOM, Collections.singletonList(member("@alice:example.org", RoomMemberContent.JOIN, "Alice")));
+
+        assertEquals(RoomMemberContent.JOIN, cache.membership(ROOM, "@alice:example.org").get());
+        assertEquals(1, eventMethods.requests.size());
+    }
+
+    @Test
+    public void failedRequestIsRetried() throws Exception {
+        CompletableFuture<Optional<RoomMemberCache.Member>> failed = cache.member(ROOM, "@alice:example.org");
+        eventMethods.responses.get(0).completeExceptionally(new MatrixException("M_FORBIDDEN", "Forbidden", 403));
+
+        ExecutionException exception = assertThrows(ExecutionException.class, failed::get);
+        assertTrue(exception.getCause() instanceof MatrixException);
+
+        cache.member(ROOM, "@alice:example.org");
+
+        assertEquals(2, eventMethods.requests.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedRoomIsEvicted() {
+        cache = new RoomMemberCache(() -> eventMethods, 2);
+        cache.update("!a:example.org", Collections.singletonList(member("@alice:example.org", RoomMemberContent.JOIN, "Alice")));
+        cache.update("!b:example.org", Collections.singletonList(member("@alice:example.org", RoomMemberContent.JOIN, "Alice")));
+        cache.cached("!a:example.org", "@alice:example.org");
+
+        cache.update("!c:example.org", Collections.singletonList(member("@alice:example.org", RoomMemberContent.JOIN, "Alice")));
+
+        assertTrue(cache.cached("!a:example.org", "@alice:example.org").isPresent());
+        assertFalse(cache.cached("!b:example.org", "@alice:example.org").isPresent());
+        assertTrue(cache.cached("!c:example.org", "@alice:example.org").isPresent());
+    }
+
+    private SyncResponse sync(Map<String, JoinedRoom> join, Map<String, LeftRoom> leave) {
+        Rooms rooms = new Rooms();
+        rooms.setJoin(join);
+        rooms.setLeave(leave);
+        SyncResponse syncResponse = new SyncResponse();
+        syncResponse.setRooms(rooms);
+        return syncResponse;
+    }
+
+    private Event member(String userId, String membership, String displayName) {
+        RoomMember event = new RoomMember();
+        event.setType(RoomMember.TYPE);
+        event.setStateKey(userId);
+        event.setContent(content(membership, displayName));
+        return event;
+    }
+
+    private RoomMemberContent content(String membership, String displayName) {
+        RoomMemberContent content = new RoomMemberContent();
+        content.setMembership(membership);
+        content.setDisplayName(displayName);
+        return content;
+    }
+
+    private static final class RecordingEventMethods extends EventMethods {
+
+        private final List<String> requests = new ArrayList<>();
+
+        private final List<CompletableFuture<EventContent>> responses = new ArrayList<>();
+
+        RecordingEventMethods() {
+            super(null, new RequestParams());
+        }
+
+        @Override
+        public CompletableFuture<EventContent> eventContent(String roomId, String eventType, String stateKey) {
+            assertEquals(RoomMember.TYPE, eventType);
+            requests.add(roomId + "/" + stateKey);
+            CompletableFuture<EventContent> response = new CompletableFuture<>();
+            responses.add(response);
+            return response;
+        }
+    }
+}
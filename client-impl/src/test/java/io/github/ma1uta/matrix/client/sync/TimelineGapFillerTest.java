@@ -0,0 +1,268 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.matrix.client.sync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.github.ma1uta.matrix.Page;
+import io.github.ma1uta.matrix.client.RequestParams;
+import io.github.ma1uta.matrix.client.methods.EventMethods;
+import io.github.ma1uta.matrix.client.model.sync.JoinedRoom;
+import io.github.ma1uta.matrix.client.model.sync.Rooms;
+import io.github.ma1uta.matrix.client.model.sync.SyncResponse;
+import io.github.ma1uta.matrix.client.model.sync.Timeline;
+import io.github.ma1uta.matrix.event.Event;
+import io.github.ma1uta.matrix.event.RoomEvent;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+public class TimelineGapFillerTest {
+
+    private static final long TIMEOUT = 5L;
+
+    @Test
+    public void gapIsFilledInChronologicalOrder() throws Exception {
+        RecordingEventMethods eventMethods = new RecordingEventMethods(request -> {
+            if ("prev".equals(request.from)) {
+                return completed(page("page2", "$4", "$3"));
+            }
+            if ("page2".equals(request.from)) {
+                return completed(page("page3", "$2", "$1"));
+            }
+            return completed(page("page3"));
+        });
+        TimelineGapFiller filler = new TimelineGapFiller(() -> eventMethods, 4, 2, 10);
+        filler.setFilter("{\"types\":[\"m.room.message\"]}");
+        Timeline timeline = timeline("prev", "$5", "$6");
+
+        SyncResponse syncResponse = sync(Collections.singletonMap("!room:example.org", timeline));
+        assertSame(syncResponse, filler.fill(syncResponse, "since").get(TIMEOUT, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList("$1", "$2", "$3", "$4", "$5", "$6"), ids(timeline));
+        assertFalse(timeline.getLimited());
+        assertEquals(3, eventMethods.requests.size());
+        Request first = eventMethods.requests.get(0);
+        assertEquals("prev", first.from);
+        assertEquals("since", first.to);
+        assertEquals("b", first.dir);
+        assertEquals(Integer.valueOf(2), first.limit);
+        assertEquals("{\"types\":[\"m.room.message\"]}", first.filter);
+        assertEquals("page2", eventMethods.requests.get(1).from);
+        assertEquals("page3", eventMethods.requests.get(2).from);
+    }
+
+    @Test
+    public void gapIsLimitedByMaxEvents() throws Exception {
+        RecordingEventMethods eventMethods = new RecordingEventMethods(request -> {
+            List<String> ids = new ArrayList<>();
+            for (int i = 0; i < request.limit; i++) {
+                ids.add("$" + request.from + i);
+            }
+            return completed(page(request.from + "+", ids.toArray(new String[0])));
+        });
+        TimelineGapFiller filler = new TimelineGapFiller(() -> eventMethods, 4, 2, 3);
+        Timeline timeline = timeline("prev", "$live");
+
+        filler.fill(sync(Collections.singletonMap("!room:example.org", timeline)), "since").get(TIMEOUT, TimeUnit.SECONDS);
+
+        assertEquals(4, timeline.getEvents().size());
+        assertTrue(timeline.getLimited());
+        assertEquals(Arrays.asList(2, 1), eventMethods.requests.stream().map(request -> request.limit).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void onlyLimitedTimelinesAreFilled() throws Exception {
+        RecordingEventMethods eventMethods = new RecordingEventMethods(request -> completed(page(null, "$0")));
+        TimelineGapFiller filler = new TimelineGapFiller(() -> eventMethods);
+        Timeline limited = timeline("prev", "$1");
+        Timeline full = timeline("other", "$2");
+        full.setLimited(Boolean.FALSE);
+        Map<String, Timeline> timelines = new LinkedHashMap<>();
+        timelines.put("!limited:example.org", limited);
+        timelines.put("!full:example.org", full);
+
+        filler.fill(sync(timelines), "since").get(TIMEOUT, TimeUnit.SECONDS);
+
+        assertEquals(1, eventMethods.requests.size());
+        assertEquals("!limited:example.org", eventMethods.requests.get(0).roomId);
+        assertEquals(Arrays.asList("$0", "$1"), ids(limited));
+        assertEquals(Collections.singletonList("$2"), ids(full));
+    }
+
+    @Test
+    public void initialSyncIsNotFilled() throws Exception {
+        RecordingEventMethods eventMethods = new RecordingEventMethods(request -> completed(page(null, "$0")));
+        Timeline timeline = timeline("prev", "$1");
+
+        new TimelineGapFiller(() -> eventMethods).fill(sync(Collections.singletonMap("!room:example.org", timeline)), null)
+            .get(TIMEOUT, TimeUnit.SECONDS);
+
+        assertTrue(eventMethods.requests.isEmpty());
+        assertTrue(timeline.getLimited());
+    }
+
+    @Test
+    public void failedRoomIsLeftLimited() throws Exception {
+        RecordingEventMethods eventMethods = new RecordingEventMethods(request -> {
+            if ("!broken:example.org".equals(request.roomId)) {
+                CompletableFuture<Page<Event>> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IllegalStateException("Server error"));
+                return failed;
+            }
+            return completed(page(null, "$0"));
+        });
+        TimelineGapFiller filler = new TimelineGapFiller(() -> eventMethods);
+        Timeline broken = timeline("prev", "$1");
+        Timeline filled = timeline("prev", "$2");
+        Map<String, Timeline> timelines = new LinkedHashMap<>();
+        timelines.put("!broken:example.org", broken);
+        timelines.put("!filled:example.org", filled);
+
+        filler.fill(sync(timelines), "since").get(TIMEOUT, TimeUnit.SECONDS);
+
+        assertTrue(broken.getLimited());
+        assertEquals(Collections.singletonList("$1"), ids(broken));
+        assertFalse(filled.getLimited());
+        assertEquals(Arrays.asList("$0", "$2"), ids(filled));
+    }
+
+    @Test
+    public void concurrencyIsBounded() throws Exception {
+        List<CompletableFuture<Page<Event>>> pending = new ArrayList<>();
+        RecordingEventMethods eventMethods = new RecordingEventMethods(request -> {
+            CompletableFuture<Page<Event>> response = new CompletableFuture<>();
+            pending.add(response);
+            return response;
+        });
+        TimelineGapFiller filler = new TimelineGapFiller(() -> eventMethods, 2, 10, 10);
+        Map<String, Timeline> timelines = new LinkedHashMap<>();
+        for (int i = 0; i < 5; i++) {
+            timelines.put("!room" + i + ":example.org", timeline("prev", "$" + i));
+        }
+
+        CompletableFuture<SyncResponse> result = filler.fill(sync(timelines), "since");
+
+        for (int i = 0; i < timelines.size(); i++) {
+            assertEquals(Math.min(i + 2, timelines.size()), pending.size());
+            assertFalse(result.isDone());
+            pending.get(i).complete(page(null, "$gap"));
+        }
+        result.get(TIMEOUT, TimeUnit.SECONDS);
+
+        assertEquals(timelines.size(), eventMethods.requests.size());
+        timelines.values().forEach(timeline -> assertFalse(timeline.getLimited()));
+    }
+
+    private static CompletableFuture<Page<Event>> completed(Page<Event> page) {
+        return CompletableFuture.completedFuture(page);
+    }
+
+    private static Page<Event> page(String end, String... ids) {
+        Page<Event> page = new Page<>();
+        page.setChunk(Arrays.stream(ids).map(TimelineGapFillerTest::event).collect(Collectors.toList()));
+        page.setEnd(end);
+        return page;
+    }
+
+    private static Event event(String eventId) {
+        RoomEvent event = new RoomEvent();
+        event.setEventId(eventId);
+        return event;
+    }
+
+    private static Timeline timeline(String prevBatch, String... ids) {
+        Timeline timeline = new Timeline();
+        timeline.setLimited(Boolean.TRUE);
+        timeline.setPrevBatch(prevBatch);
+        timeline.setEvents(Arrays.stream(ids).map(TimelineGapFillerTest::event).collect(Collectors.toList()));
+        return timeline;
+    }
+
+    private static SyncResponse sync(Map<String, Timeline> timelines) {
+        Map<String, JoinedRoom> join = new LinkedHashMap<>();
+        timelines.forEach((roomId, timeline) -> {
+            JoinedRoom joinedRoom = new JoinedRoom();
+            joinedRoom.setTimeline(timeline);
+            join.put(roomId, joinedRoom);
+        });
+        Rooms rooms = new Rooms();
+        rooms.setJoin(join);
+        SyncResponse syncResponse = new SyncResponse();
+        syncResponse.setRooms(rooms);
+        return syncResponse;
+    }
+
+    private static List<String> ids(Timeline timeline) {
+        return timeline.getEvents().stream().map(event -> ((RoomEvent) event).getEventId()).collect(Collectors.toList());
+    }
+
+    private static final class Request {
+
+        private final String roomId;
+
+        private final String from;
+
+        private final String to;
+
+        private final String dir;
+
+        private final Integer limit;
+
+        private final String filter;
+
+        Request(String roomId, String from, String to, String dir, Integer limit, String filter) {
+            this.roomId = roomId;
+            this.from = from;
+            this.to = to;
+            this.dir = dir;
+            this.limit = limit;
+            this.filter = filter;
+        }
+    }
+
+    private static final class RecordingEventMethods extends EventMethods {
+
+        private final List<Request> requests = Collections.synchronizedList(new ArrayList<>());
+
+        private final Function<Request, CompletableFuture<Page<Event>>> responses;
+
+        RecordingEventMethods(Function<Request, CompletableFuture<Page<Event>>> responses) {
+            super(null, new RequestParams());
+            this.responses = responses;
+        }
+
+        @Override
+        public CompletableFuture<Page<Event>> messages(String roomId, String from, String to, String dir, Integer limit, String filter) {
+            Request request = new Request(roomId, from, to, dir, limit, filter);
+            requests.add(request);
+            return responses.apply(request);
+        }
+    }
+}